@@ -22,6 +22,13 @@ public interface StorageClient{
 	 * @param hash the hash
 	 */
 	public void get(byte[] hash);
+	
+	/**
+	 * Deletes the data associated with the hash. The data is removed once every put of it has been deleted.
+	 *
+	 * @param hash the hash
+	 */
+	public void delete(byte[] hash);
 		
 	public void setStartTime(long startTime);
 	
@@ -6,6 +6,7 @@ package api;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
+import entities.BloomFilter;
 import entities.Task;
 
 /**
@@ -20,4 +21,12 @@ public interface StorageServer extends Remote{
 	 * @param task the task
 	 */
 	public void assignTask(int bucket_hash, Task task) throws RemoteException;
+	
+	/**
+	 * Gets a copy of the membership filter of the bucket. The hashes that it rules out are definitely not stored.
+	 *
+	 * @param bucket_hash the bucket_hash
+	 * @return the filter
+	 */
+	public BloomFilter getFilter(int bucket_hash) throws RemoteException;
 }
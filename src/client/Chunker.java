@@ -0,0 +1,64 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package client;
+
+import java.util.Random;
+
+import utils.Constants;
+
+/**
+ * Splits a payload into content-defined chunks with a rolling (gear) hash.
+ *
+ * The hash is updated with every byte as hash = (hash << 1) + GEAR[byte], so it only depends on the last 64 bytes.
+ * A chunk ends where the top bits of the hash are all zero, which happens every CHUNK_AVG_SIZE bytes on average.
+ * Since the boundaries depend only on the content around them, an insertion or deletion only changes the chunks around it,
+ * and the rest of the chunks deduplicate against the earlier version of the payload.
+ * No chunk is shorter than CHUNK_MIN_SIZE (except the last one) or longer than CHUNK_MAX_SIZE.
+ */
+public class Chunker {
+
+	/** The random value of each byte value. The seed must never change, or the chunks of new payloads no longer match the stored chunks. */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(1);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/** The top bits of the hash that are zero at a chunk boundary. */
+	private static final long BOUNDARY_MASK = -1L << (64 - Integer.numberOfTrailingZeros(Constants.CHUNK_AVG_SIZE));
+
+	/**
+	 * Splits the data into chunks.
+	 *
+	 * @param data the data
+	 * @return the end offsets of the chunks, in order
+	 */
+	public static int[] split(byte[] data) {
+		int[] ends = new int[data.length / Constants.CHUNK_MIN_SIZE + 1];
+		int count = 0;
+		int start = 0;
+
+		while (start < data.length) {
+			int end = Math.min(start + Constants.CHUNK_MAX_SIZE, data.length);
+			long hash = 0;
+			// The bytes before the minimum size are not hashed. The hash only covers the last 64 bytes anyway.
+			for (int i = Math.max(start, Math.min(start + Constants.CHUNK_MIN_SIZE, end) - 64); i < end; i++) {
+				hash = (hash << 1) + GEAR[data[i] & 0xff];
+				if (i + 1 - start >= Constants.CHUNK_MIN_SIZE && (hash & BOUNDARY_MASK) == 0) {
+					end = i + 1;
+					break;
+				}
+			}
+			ends[count++] = end;
+			start = end;
+		}
+
+		int[] result = new int[count];
+		System.arraycopy(ends, 0, result, 0, count);
+		return result;
+	}
+}
@@ -118,6 +118,10 @@ public class InputReceiver extends Thread{
 	            	else if (operation == Constants.OPERATION_GET) {
 	            		client.get(hash);
 	            	}
+	            	
+	            	else if (operation == Constants.OPERATION_DELETE) {
+	            		client.delete(hash);
+	            	}
 	                data = null;
 	            	
 	            	buffer = null;
@@ -0,0 +1,164 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The manifest of a chunked payload: the hashes and the lengths of its chunks, in order. It is stored under the payload's hash.
+ *
+ * It is laid out as: magic (8 bytes), payload length (4 bytes), chunk count (4 bytes), then the hash (20 bytes) and the length (4 bytes) of each chunk,
+ * and a CRC32 of all the preceding bytes (4 bytes). A payload that was stored as a whole is only taken for a manifest if it has the magic, the exact
+ * length of a manifest of its chunk count and a matching CRC.
+ */
+public class Manifest {
+
+	/** The magic number at the start of a manifest. */
+	private static final long MAGIC = 0x4152434d414e4931L;
+
+	/** The length of the fields that precede the chunks. */
+	private static final int HEADER_LENGTH = 8 + 4 + 4;
+
+	/** The length of a chunk's entry. */
+	private static final int CHUNK_LENGTH = Constants.HASH_LENGTH + 4;
+
+	/** The length of the payload. */
+	private int payloadLength;
+
+	/** The hashes of the chunks. */
+	private List<byte[]> hashes = new ArrayList<byte[]>();
+
+	/** The lengths of the chunks. */
+	private List<Integer> lengths = new ArrayList<Integer>();
+
+	/**
+	 * Adds the next chunk.
+	 *
+	 * @param hash the chunk's hash
+	 * @param length the chunk's length
+	 */
+	public void add(byte[] hash, int length) {
+		hashes.add(hash);
+		lengths.add(length);
+		payloadLength += length;
+	}
+
+	/**
+	 * Gets the number of chunks.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return hashes.size();
+	}
+
+	/**
+	 * Gets the hash of a chunk.
+	 *
+	 * @param i the chunk index
+	 * @return the hash
+	 */
+	public byte[] getHash(int i) {
+		return hashes.get(i);
+	}
+
+	/**
+	 * Gets the length of a chunk.
+	 *
+	 * @param i the chunk index
+	 * @return the length
+	 */
+	public int getLength(int i) {
+		return lengths.get(i);
+	}
+
+	/**
+	 * Gets the length of the payload.
+	 *
+	 * @return the payload length
+	 */
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * Encodes the manifest.
+	 *
+	 * @return the bytes
+	 */
+	public byte[] toByteArray() {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + hashes.size() * CHUNK_LENGTH + 4);
+		buffer.putLong(MAGIC);
+		buffer.putInt(payloadLength);
+		buffer.putInt(hashes.size());
+		for (int i = 0; i < hashes.size(); i++) {
+			buffer.put(hashes.get(i));
+			buffer.putInt(lengths.get(i));
+		}
+		buffer.putInt(crc(buffer.array(), buffer.position()));
+		return buffer.array();
+	}
+
+	/**
+	 * Checks whether the data is a manifest.
+	 *
+	 * @param data the data
+	 * @return true, if it is a manifest
+	 */
+	public static boolean isManifest(byte[] data) {
+		if (data == null || data.length < HEADER_LENGTH + 4) {
+			return false;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if (buffer.getLong() != MAGIC) {
+			return false;
+		}
+		buffer.getInt();
+		long count = buffer.getInt();
+		if (count < 0 || data.length != HEADER_LENGTH + count * CHUNK_LENGTH + 4) {
+			return false;
+		}
+		return crc(data, data.length - 4) == ByteBuffer.wrap(data, data.length - 4, 4).getInt();
+	}
+
+	/**
+	 * Decodes a manifest.
+	 *
+	 * @param data the data, which must be a manifest
+	 * @return the manifest
+	 */
+	public static Manifest fromByteArray(byte[] data) {
+		if (! isManifest(data)) {
+			throw new ArchiveException("Not a manifest");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data, 8, data.length - 8);
+		int payloadLength = buffer.getInt();
+		int count = buffer.getInt();
+		Manifest manifest = new Manifest();
+		for (int i = 0; i < count; i++) {
+			byte[] hash = new byte[Constants.HASH_LENGTH];
+			buffer.get(hash);
+			manifest.add(hash, buffer.getInt());
+		}
+		if (manifest.getPayloadLength() != payloadLength) {
+			throw new ArchiveException("Corrupt manifest: " + manifest.getPayloadLength() + " != " + payloadLength);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Computes the CRC32 of the start of the data.
+	 */
+	private static int crc(byte[] data, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		return (int) crc.getValue();
+	}
+}
@@ -3,15 +3,18 @@
  */
 package client;
 
+import java.nio.ByteBuffer;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import utils.Constants;
@@ -19,12 +22,17 @@ import api.Router;
 import api.RouterToClient;
 import api.ServerToRouter;
 import api.StorageServer;
+import entities.BloomFilter;
+import entities.PutTask;
 import entities.Task;
 import entities.TaskPair;
 import exceptions.ArchiveException;
 
 /**
  * The Class RouterImpl contains the implementations of the logic to route the archiving requests to the appropriate Storage servers based on the hash.
+ *
+ * In the reference filter mode, the router keeps a membership filter of each bucket, fetched from its storage server and kept up to date with the acknowledged PUTs.
+ * A PUT of a hash that the filter holds is sent as a reference without its data. When the server does not have the block after all, it fails the reference and the data is sent again.
  */
 public class RouterImpl extends UnicastRemoteObject implements Router, ServerToRouter{
 
@@ -46,6 +54,15 @@ public class RouterImpl extends UnicastRemoteObject implements Router, ServerToR
 	/** The status queue. */
 	private BlockingQueue<List<? extends Task>> statusQueue = new LinkedBlockingQueue<List<? extends Task>>();
 	
+	/** The membership filters of the buckets. */
+	private Map<Integer, BloomFilter> filterMap = new ConcurrentHashMap<Integer, BloomFilter>();
+	
+	/** The locks that the filter of each bucket is fetched under, so that it is fetched once. */
+	private Object[] filterLocks = new Object[1 << Constants.BUCKET_NUM_BITS];
+	
+	/** The data of the PUTs that are sent as references, by hash, until they are acknowledged. */
+	private Map<ByteBuffer, ReferencedData> referenceMap = new HashMap<ByteBuffer, ReferencedData>();
+	
 	/**
 	 * Gets the single instance of RouterImpl.
 	 *
@@ -68,6 +85,9 @@ public class RouterImpl extends UnicastRemoteObject implements Router, ServerToR
 		super();
 		serverMap = new HashMap<Integer, StorageServerProxy>();
 		numServers = 0;
+		for (int i = 0; i < filterLocks.length; i++) {
+			filterLocks[i] = new Object();
+		}
 		for(int i = 0; i < Constants.RESPONSE_ROUTER_THREADS; i++) {
 			new ResponseRouter().start();
 		}
@@ -99,7 +119,26 @@ public class RouterImpl extends UnicastRemoteObject implements Router, ServerToR
 	 * @throws RemoteException the remote exception
 	 */
 	public void routeRequest(Task task) throws RemoteException {
-		byte[] hash = task.getHash();
+		int bucketValue = getBucketId(task.getHash());
+		
+		//int modValue = (bucketValue < 0) ? (numServers - (Math.abs(bucketValue) % numServers) ) % numServers : (bucketValue % numServers);
+		int modValue = bucketValue % numServers;
+        //if(bucketValue == 111) System.out.println("byte[] " + Arrays.toString(hash)); 
+        // System.out.println("Routing to Server " + modValue);
+		StorageServerProxy proxy = serverMap.get(modValue);
+		if (Constants.ROUTER_FILTER == Constants.ROUTER_FILTER_REFERENCE && task instanceof PutTask) {
+			task = toReference(bucketValue, proxy, (PutTask) task);
+		}
+		proxy.assignTask(new TaskPair(bucketValue, task));		
+	}
+	
+	/**
+	 * Gets the bucket of the hash.
+	 *
+	 * @param hash the hash
+	 * @return the bucket id
+	 */
+	private int getBucketId(byte[] hash) {
 		int value = 0;
 		int numBits = Constants.BUCKET_NUM_BITS;
 		
@@ -123,12 +162,120 @@ public class RouterImpl extends UnicastRemoteObject implements Router, ServerToR
 		}
 		
 		// System.out.println("Bucket hash value: " + bucketValue);
+		return bucketValue;
+	}
+	
+	/**
+	 * Replaces the PUT with a reference without data when the bucket's filter holds its hash.
+	 *
+	 * @param bucketId the bucket id
+	 * @param proxy the proxy of the bucket's server
+	 * @param task the task
+	 * @return the task to send
+	 * @throws RemoteException the remote exception
+	 */
+	private PutTask toReference(int bucketId, StorageServerProxy proxy, PutTask task) throws RemoteException {
+		if (task.isReference()) {
+			return task;
+		}
+		BloomFilter filter = getFilter(bucketId, proxy);
+		synchronized (filter) {
+			if (! filter.mightContain(task.getHash())) {
+				return task;
+			}
+		}
 		
-		//int modValue = (bucketValue < 0) ? (numServers - (Math.abs(bucketValue) % numServers) ) % numServers : (bucketValue % numServers);
-		int modValue = bucketValue % numServers;
-        //if(bucketValue == 111) System.out.println("byte[] " + Arrays.toString(hash)); 
-        // System.out.println("Routing to Server " + modValue);
-		serverMap.get(modValue).assignTask(new TaskPair(bucketValue, task));		
+		synchronized (referenceMap) {
+			ByteBuffer key = ByteBuffer.wrap(task.getHash());
+			ReferencedData referencedData = referenceMap.get(key);
+			if (referencedData == null) {
+				referencedData = new ReferencedData(task.getData());
+				referenceMap.put(key, referencedData);
+			}
+			referencedData.count++;
+		}
+		PutTask reference = new PutTask();
+		reference.setHash(task.getHash());
+		reference.setStartTime(task.getStartTime());
+		reference.setReference(true);
+		return reference;
+	}
+	
+	/**
+	 * Gets the filter of the bucket. It is fetched from the server once, under the bucket's lock, so that concurrent requests do not fetch it again
+	 * and overwrite the PUTs that have been added to it since. From then on, it is kept up to date with the acknowledged PUTs.
+	 *
+	 * @param bucketId the bucket id
+	 * @param proxy the proxy of the bucket's server
+	 * @return the filter
+	 * @throws RemoteException the remote exception
+	 */
+	private BloomFilter getFilter(int bucketId, StorageServerProxy proxy) throws RemoteException {
+		BloomFilter filter = filterMap.get(bucketId);
+		if (filter != null) {
+			return filter;
+		}
+		synchronized (filterLocks[bucketId]) {
+			filter = filterMap.get(bucketId);
+			if (filter == null) {
+				filter = proxy.getServer().getFilter(bucketId);
+				filterMap.put(bucketId, filter);
+			}
+			return filter;
+		}
+	}
+	
+	/**
+	 * Updates the filters with the acknowledged PUTs and sends the data of the failed references again.
+	 *
+	 * @param status the status
+	 * @return the status to pass on to the client
+	 * @throws RemoteException the remote exception
+	 */
+	private List<? extends Task> processPutStatus(List<? extends Task> status) throws RemoteException {
+		List<Task> clientStatus = new ArrayList<Task>(status.size());
+		for (Task task : status) {
+			if (! (task instanceof PutTask)) {
+				clientStatus.add(task);
+				continue;
+			}
+			PutTask putTask = (PutTask) task;
+			
+			byte[] data = null;
+			if (putTask.isReference()) {
+				synchronized (referenceMap) {
+					ByteBuffer key = ByteBuffer.wrap(putTask.getHash());
+					ReferencedData referencedData = referenceMap.get(key);
+					if (referencedData != null) {
+						data = referencedData.data;
+						if (--referencedData.count == 0) {
+							referenceMap.remove(key);
+						}
+					}
+				}
+			}
+			
+			if (putTask.isReference() && ! putTask.getStatus() && data != null) {
+				PutTask retry = new PutTask();
+				retry.setHash(putTask.getHash());
+				retry.setStartTime(putTask.getStartTime());
+				retry.setData(data);
+				// The retry bypasses the filter, which still holds the hash.
+				int bucketId = getBucketId(retry.getHash());
+				serverMap.get(bucketId % numServers).assignTask(new TaskPair(bucketId, retry));
+				continue;
+			}
+			if (putTask.getStatus()) {
+				BloomFilter filter = filterMap.get(getBucketId(putTask.getHash()));
+				if (filter != null) {
+					synchronized (filter) {
+						filter.add(putTask.getHash());
+					}
+				}
+			}
+			clientStatus.add(task);
+		}
+		return clientStatus;
 	}
 	
 	/* (non-Javadoc)
@@ -187,6 +334,15 @@ public class RouterImpl extends UnicastRemoteObject implements Router, ServerToR
 			}
 		}
 		
+		/**
+		 * Gets the server.
+		 *
+		 * @return the server
+		 */
+		public StorageServer getServer() {
+			return server;
+		}
+		
 		/**
 		 * Assign task.
 		 *
@@ -213,7 +369,12 @@ public class RouterImpl extends UnicastRemoteObject implements Router, ServerToR
 			while(true) {
 				try {
 					List<? extends Task> status = statusQueue.take();
-					client.setStatus(status);
+					if (Constants.ROUTER_FILTER == Constants.ROUTER_FILTER_REFERENCE) {
+						status = processPutStatus(status);
+					}
+					if (! status.isEmpty()) {
+						client.setStatus(status);
+					}
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				} catch (RemoteException e) {
@@ -223,6 +384,27 @@ public class RouterImpl extends UnicastRemoteObject implements Router, ServerToR
 		}
 	}
 	
+	/**
+	 * The data of a PUT that is sent as a reference, with the number of such PUTs that are not acknowledged yet.
+	 */
+	static class ReferencedData {
+		
+		/** The data. */
+		private byte[] data;
+		
+		/** The number of references that are not acknowledged yet. */
+		private int count;
+		
+		/**
+		 * Instantiates a new referenced data.
+		 *
+		 * @param data the data
+		 */
+		ReferencedData(byte[] data) {
+			this.data = data;
+		}
+	}
+	
 	/**
 	 * The main method.
 	 *
@@ -9,20 +9,29 @@ import java.rmi.NotBoundException;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import utils.Constants;
 import api.Router;
 import api.RouterToClient;
 import api.StorageClient;
+import entities.DeleteTask;
 import entities.GetTask;
 import entities.PutTask;
 import entities.Task;
+import exceptions.ArchiveException;
 
 /**
  * The Class StorageClientImpl.
@@ -47,8 +56,17 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 	/** The get time. */
 	private List<Long> getTime = Collections.synchronizedList(new ArrayList<Long>());
 	
+	/** The delete time. */
+	private List<Long> deleteTime = Collections.synchronizedList(new ArrayList<Long>());
+	
 	private long startTime;
 	
+	/**
+	 * The handlers of the responses to the requests that the client makes on its own (for the chunks of a payload), keyed by operation and hash.
+	 * A response goes to the oldest handler of its key. Requests with the same key carry the same data, so it does not matter which one it answers.
+	 */
+	private Map<ByteBuffer, Queue<ResponseHandler>> pendingRequests = new HashMap<ByteBuffer, Queue<ResponseHandler>>();
+	
 	/**
 	 * Gets the single instance of StorageClientImpl.
 	 *
@@ -109,6 +127,14 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 	 */
 	@Override
 	public void put(byte[] hash, byte[] data) {
+		if (Constants.INGEST_MODE == Constants.INGEST_MODE_CHUNKED && data.length >= Constants.CHUNKING_THRESHOLD) {
+			int[] ends = Chunker.split(data);
+			if (ends.length > 1) {
+				putChunked(hash, data, ends);
+				return;
+			}
+		}
+		
 		String strHash = new String(hash);
 		PutTask task = new PutTask();
 		task.setData(data);
@@ -133,6 +159,268 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 		task = null;
 	}
 	
+	/* (non-Javadoc)
+	 * @see api.StorageClient#delete(byte[])
+	 */
+	@Override
+	public void delete(byte[] hash) {
+		if (Constants.INGEST_MODE == Constants.INGEST_MODE_CHUNKED) {
+			deleteChunked(hash);
+			return;
+		}
+		
+		DeleteTask task = new DeleteTask();
+		task.setHash(hash);		
+		task.setStartTime(System.currentTimeMillis());
+		
+		routeRequest(task);
+		task = null;
+	}
+	
+	/**
+	 * Puts the chunks of the payload, and then the manifest of the chunks under the payload's hash.
+	 * The manifest is only put once all the chunks have been stored, so a stored manifest never refers to a missing chunk.
+	 * Every chunk is put, even a repeated one, so that each reference of the manifest holds a reference to its chunk.
+	 *
+	 * @param hash the payload's hash
+	 * @param data the payload
+	 * @param ends the end offsets of the chunks
+	 */
+	private void putChunked(byte[] hash, byte[] data, int[] ends) {
+		final long startTime = System.currentTimeMillis();
+		// The caller may reuse the hash array.
+		final byte[] payloadHash = hash.clone();
+		final Manifest manifest = new Manifest();
+		List<PutTask> chunkTasks = new ArrayList<PutTask>();
+		
+		int start = 0;
+		for (int end : ends) {
+			byte[] chunk = Arrays.copyOfRange(data, start, end);
+			byte[] chunkHash = sha1(chunk);
+			manifest.add(chunkHash, chunk.length);
+			
+			PutTask task = new PutTask();
+			task.setData(chunk);
+			task.setHash(chunkHash);
+			task.setStartTime(startTime);
+			chunkTasks.add(task);
+			start = end;
+		}
+		
+		ResponseHandler chunkHandler = new ResponseHandler() {
+			
+			/** The number of chunks that have not been acknowledged yet. */
+			private int remaining = manifest.size();
+			
+			/** The chunks that have been stored. */
+			private List<byte[]> stored = new ArrayList<byte[]>();
+			
+			public void handle(Task response) {
+				if (response.getStatus()) {
+					stored.add(response.getHash());
+				}
+				if (--remaining > 0) {
+					return;
+				}
+				
+				if (stored.size() == manifest.size()) {
+					PutTask task = new PutTask();
+					task.setData(manifest.toByteArray());
+					task.setHash(payloadHash);
+					task.setStartTime(startTime);
+					routeRequest(task);
+				}
+				else {
+					// Drop the references of the chunks that were stored, and report the put as done (it failed).
+					System.out.println("Failed to store " + (manifest.size() - stored.size()) + " chunk(s) of a payload");
+					for (byte[] chunkHash : stored) {
+						DeleteTask task = new DeleteTask();
+						task.setHash(chunkHash);
+						routeInternalRequest(task, IGNORE_RESPONSE);
+					}
+					putTime.add(System.currentTimeMillis() - startTime);
+				}
+			}
+		};
+		
+		for (PutTask task : chunkTasks) {
+			routeInternalRequest(task, chunkHandler);
+		}
+	}
+	
+	/**
+	 * Gets the chunks of the manifest that a get returned, and reassembles the payload.
+	 * The get is done once all the chunks have been received.
+	 *
+	 * @param status the status of the get, with the manifest as its response data
+	 * @param endTime the time when the manifest was received
+	 */
+	private void getChunked(final GetTask status, final long endTime) {
+		final Manifest manifest = Manifest.fromByteArray(status.getResponseData());
+		final byte[] data = new byte[manifest.getPayloadLength()];
+		
+		// The offsets of each distinct chunk in the payload. A chunk is only fetched once, even if it is repeated.
+		final Map<ByteBuffer, List<Integer>> offsets = new HashMap<ByteBuffer, List<Integer>>();
+		// The length of each distinct chunk, as the manifest records it.
+		final Map<ByteBuffer, Integer> lengths = new HashMap<ByteBuffer, Integer>();
+		int offset = 0;
+		for (int i = 0; i < manifest.size(); i++) {
+			ByteBuffer key = ByteBuffer.wrap(manifest.getHash(i));
+			List<Integer> chunkOffsets = offsets.get(key);
+			if (chunkOffsets == null) {
+				chunkOffsets = new ArrayList<Integer>();
+				offsets.put(key, chunkOffsets);
+				lengths.put(key, manifest.getLength(i));
+			}
+			chunkOffsets.add(offset);
+			offset += manifest.getLength(i);
+		}
+		
+		ResponseHandler chunkHandler = new ResponseHandler() {
+			
+			/** The number of chunks that have not been received yet. */
+			private int remaining = offsets.size();
+			
+			/** Whether any chunk could not be read. */
+			private boolean failed;
+			
+			public void handle(Task response) {
+				byte[] chunk = ((GetTask) response).getResponseData();
+				ByteBuffer key = ByteBuffer.wrap(response.getHash());
+				// A chunk of the wrong length would overrun the payload or leave a gap in it, so it fails the payload like a missing chunk.
+				if (! response.getStatus() || chunk == null || chunk.length != lengths.get(key)) {
+					failed = true;
+				}
+				else {
+					for (int chunkOffset : offsets.get(key)) {
+						System.arraycopy(chunk, 0, data, chunkOffset, chunk.length);
+					}
+				}
+				if (--remaining > 0) {
+					return;
+				}
+				
+				if (failed) {
+					System.out.println("Failed to read the chunks of a payload");
+				}
+				status.setStatus(! failed);
+				status.setResponseData(failed ? null : data);
+				getTime.add(System.currentTimeMillis() - status.getStartTime());
+			}
+		};
+		
+		for (ByteBuffer key : offsets.keySet()) {
+			GetTask task = new GetTask();
+			task.setHash(key.array());
+			task.setStartTime(endTime);
+			routeInternalRequest(task, chunkHandler);
+		}
+	}
+	
+	/**
+	 * Deletes a payload that may have been chunked. The payload is looked up first.
+	 * If it is a manifest, the manifest is deleted and then each of its chunks. Otherwise, the payload itself is deleted.
+	 * The manifest goes first, so that a failure in the middle leaves unreferenced chunks behind rather than a manifest with missing chunks.
+	 *
+	 * @param hash the payload's hash
+	 */
+	private void deleteChunked(byte[] hash) {
+		final long startTime = System.currentTimeMillis();
+		final byte[] payloadHash = hash.clone();
+		
+		GetTask lookup = new GetTask();
+		lookup.setHash(payloadHash);
+		lookup.setStartTime(startTime);
+		routeInternalRequest(lookup, new ResponseHandler() {
+			
+			public void handle(Task response) {
+				DeleteTask task = new DeleteTask();
+				task.setHash(payloadHash);
+				task.setStartTime(startTime);
+				// The delete of the payload (or the manifest) is reported as the delete.
+				routeRequest(task);
+				
+				byte[] data = ((GetTask) response).getResponseData();
+				if (response.getStatus() && Manifest.isManifest(data)) {
+					Manifest manifest = Manifest.fromByteArray(data);
+					for (int i = 0; i < manifest.size(); i++) {
+						DeleteTask chunkTask = new DeleteTask();
+						chunkTask.setHash(manifest.getHash(i));
+						routeInternalRequest(chunkTask, IGNORE_RESPONSE);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Routes a request that the client makes on its own. Its response goes to the given handler instead of the stats.
+	 *
+	 * @param task the task
+	 * @param handler the handler of the response
+	 */
+	private void routeInternalRequest(Task task, ResponseHandler handler) {
+		ByteBuffer key = getRequestKey(task);
+		synchronized (pendingRequests) {
+			Queue<ResponseHandler> handlers = pendingRequests.get(key);
+			if (handlers == null) {
+				handlers = new LinkedList<ResponseHandler>();
+				pendingRequests.put(key, handlers);
+			}
+			handlers.add(handler);
+		}
+		routeRequest(task);
+	}
+	
+	/**
+	 * Takes the handler of the response, if it answers a request that the client made on its own.
+	 *
+	 * @param response the response
+	 * @return the handler, or null if the response answers a request of the user
+	 */
+	private ResponseHandler takeResponseHandler(Task response) {
+		ByteBuffer key = getRequestKey(response);
+		synchronized (pendingRequests) {
+			Queue<ResponseHandler> handlers = pendingRequests.get(key);
+			if (handlers == null) {
+				return null;
+			}
+			ResponseHandler handler = handlers.poll();
+			if (handlers.isEmpty()) {
+				pendingRequests.remove(key);
+			}
+			return handler;
+		}
+	}
+	
+	/**
+	 * Gets the key of a request: its operation followed by its hash.
+	 *
+	 * @param task the task
+	 * @return the key
+	 */
+	private ByteBuffer getRequestKey(Task task) {
+		int operation = task instanceof GetTask ? Constants.OPERATION_GET : (task instanceof DeleteTask ? Constants.OPERATION_DELETE : Constants.OPERATION_PUT);
+		ByteBuffer key = ByteBuffer.allocate(1 + task.getHash().length);
+		key.put((byte) operation).put(task.getHash());
+		key.flip();
+		return key;
+	}
+	
+	/**
+	 * Computes the SHA-1 hash of the data.
+	 *
+	 * @param data the data
+	 * @return the hash
+	 */
+	private byte[] sha1(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new ArchiveException(e);
+		}
+	}
+	
 	/**
 	 * Route request.
 	 *
@@ -161,12 +449,19 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 					List<? extends Task> statusList = statusQueue.take();
 					long endTime = System.currentTimeMillis();
 					for(Task status : statusList) {
-					if (status instanceof GetTask) {
-						processGetStatus((GetTask) status, endTime);
-					}
-					else {
-						processPutStatus((PutTask) status, endTime);
-					}
+						ResponseHandler handler = takeResponseHandler(status);
+						if (handler != null) {
+							handler.handle(status);
+						}
+						else if (status instanceof GetTask) {
+							processGetStatus((GetTask) status, endTime);
+						}
+						else if (status instanceof DeleteTask) {
+							deleteTime.add(endTime - status.getStartTime());
+						}
+						else {
+							processPutStatus((PutTask) status, endTime);
+						}
 					}
 					statusList = null;
 					
@@ -185,7 +480,11 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 		 * @param status the status
 		 */
 		private void processGetStatus(GetTask status, long endTime) {
-						
+			if (status.getStatus() && Manifest.isManifest(status.getResponseData())) {
+				getChunked(status, endTime);
+				return;
+			}
+			
 			// getTime.add((currentTime - requestMap.get(status.getHash()).getStartTime()));
 			getTime.add(endTime - status.getStartTime());
 			//Collections.sort(get_AvgTimeTaken);
@@ -220,7 +519,7 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 	@Override
 	public void calculateStats(long numRequests) {
 		
-		while(numRequests != (getTime.size() + putTime.size())) {			
+		while(numRequests != (getTime.size() + putTime.size() + deleteTime.size())) {			
 		}
 		
 		long completionTime = (System.currentTimeMillis() - this.startTime);
@@ -234,6 +533,22 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 		if(putTime.size() > 0) {
 			calculatePutStats();
 		}		
+		
+		if(deleteTime.size() > 0) {
+			calculateDeleteStats();
+		}
+	}
+	
+	/**
+	 * Calculate delete stats.
+	 */
+	private void calculateDeleteStats() {
+		long sum = 0;
+		for(long i : deleteTime) {
+			sum += i;
+		}
+		System.out.println("Total delete responses " + deleteTime.size());
+		System.out.println("Average delete time: " + sum/deleteTime.size());		
 	}
 	
 	/**
@@ -265,5 +580,25 @@ public class StorageClientImpl extends UnicastRemoteObject implements StorageCli
 	public void setStartTime(long startTime) {
 		this.startTime = startTime;
 	}
+	
+	/**
+	 * The handler of the response to a request that the client made on its own.
+	 */
+	interface ResponseHandler {
+		
+		/**
+		 * Handles the response.
+		 *
+		 * @param response the response
+		 */
+		void handle(Task response);
+	}
+	
+	/** The handler of the responses that need no handling. */
+	private static final ResponseHandler IGNORE_RESPONSE = new ResponseHandler() {
+		
+		public void handle(Task response) {
+		}
+	};
 
 }
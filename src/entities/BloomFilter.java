@@ -0,0 +1,206 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package entities;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A Bloom filter over the 20-byte SHA-1 hashes of the data blocks of a bucket.
+ * It answers "definitely not stored" without the bucket index, at the cost of a small false positive rate.
+ *
+ * The hash is already uniformly distributed, so the bit positions are derived from it directly (double hashing)
+ * instead of hashing it again.
+ *
+ * A filter can have parts: the filters of other buckets whose hashes it holds as well (see union). Filters of different sizes cannot be merged bit by bit,
+ * so the parts are kept as they are. The hashes added to the filter only go to its own bits.
+ */
+public class BloomFilter implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = -1880911294593227232L;
+
+	/** The bits. */
+	private long[] bits;
+
+	/** The number of bits. */
+	private long numBits;
+
+	/** The number of bit positions per hash. */
+	private int numHashes;
+
+	/** The number of entries that the filter was sized for. */
+	private int capacity;
+
+	/** The number of hashes added. */
+	private int count;
+
+	/** The filters whose hashes the filter holds as well, or null. */
+	private BloomFilter[] parts;
+
+	/**
+	 * Instantiates a new bloom filter.
+	 *
+	 * @param capacity the number of entries to size the filter for
+	 * @param bitsPerEntry the number of bits per entry
+	 * @param numHashes the number of bit positions per hash
+	 */
+	public BloomFilter(int capacity, int bitsPerEntry, int numHashes) {
+		this.capacity = capacity;
+		this.numHashes = numHashes;
+		this.bits = new long[(int) (((long) capacity * bitsPerEntry + 63) / 64)];
+		this.numBits = (long) bits.length * 64;
+	}
+
+	/**
+	 * Instantiates a new bloom filter with the given state.
+	 */
+	private BloomFilter(long[] bits, int numHashes, int capacity, int count) {
+		this.bits = bits;
+		this.numBits = (long) bits.length * 64;
+		this.numHashes = numHashes;
+		this.capacity = capacity;
+		this.count = count;
+	}
+
+	/**
+	 * Adds the hash.
+	 *
+	 * @param hash the hash
+	 */
+	public void add(byte[] hash) {
+		long h1 = readLong(hash, 0);
+		long h2 = readLong(hash, 8) | 1;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		count++;
+	}
+
+	/**
+	 * Checks whether the hash may have been added.
+	 *
+	 * @param hash the hash
+	 * @return false, if the hash has definitely not been added
+	 */
+	public boolean mightContain(byte[] hash) {
+		if (parts != null) {
+			for (BloomFilter part : parts) {
+				if (part.mightContain(hash)) {
+					return true;
+				}
+			}
+		}
+		long h1 = readLong(hash, 0);
+		long h2 = readLong(hash, 8) | 1;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the filter.
+	 *
+	 * @return the copy
+	 */
+	public BloomFilter copy() {
+		BloomFilter filter = new BloomFilter(bits.clone(), numHashes, capacity, count);
+		if (parts != null) {
+			filter.parts = new BloomFilter[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				filter.parts[i] = parts[i].copy();
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Makes the filter hold the hashes of the given filters too. The filters become parts of this one, so the caller must not change them afterwards.
+	 *
+	 * @param filters the filters
+	 * @return the filter
+	 */
+	public BloomFilter union(List<BloomFilter> filters) {
+		parts = filters.toArray(new BloomFilter[filters.size()]);
+		for (BloomFilter part : parts) {
+			capacity += part.capacity;
+			count += part.count;
+		}
+		return this;
+	}
+
+	/**
+	 * Reads 8 bytes of the hash as a big-endian long.
+	 */
+	private static long readLong(byte[] b, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (b[i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Gets the number of entries that the filter was sized for.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of hashes added.
+	 *
+	 * @return the count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes the filter. A filter with parts is only sent to the router, it is never written.
+	 *
+	 * @param dos the output stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write(DataOutputStream dos) throws IOException {
+		if (parts != null) {
+			throw new IOException("A filter with parts cannot be written");
+		}
+		dos.writeInt(numHashes);
+		dos.writeInt(capacity);
+		dos.writeInt(count);
+		dos.writeInt(bits.length);
+		for (long word : bits) {
+			dos.writeLong(word);
+		}
+	}
+
+	/**
+	 * Reads a filter written by write.
+	 *
+	 * @param dis the input stream
+	 * @return the bloom filter
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static BloomFilter read(DataInputStream dis) throws IOException {
+		int numHashes = dis.readInt();
+		int capacity = dis.readInt();
+		int count = dis.readInt();
+		long[] bits = new long[dis.readInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = dis.readLong();
+		}
+		return new BloomFilter(bits, numHashes, capacity, count);
+	}
+}
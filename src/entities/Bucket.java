@@ -3,8 +3,11 @@
  */
 package entities;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -14,12 +17,25 @@ public class Bucket implements Serializable{
 	
 	/** The Constant serialVersionUID. */
 	private static final long serialVersionUID = -3271477285326935085L;
+	
+	/** 
+	 * The serialized fields. 
+	 * 'index' is the HashMap<String, DataEntry> that the older snapshots hold. It is only ever read, so that those snapshots can be migrated.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("id", Integer.TYPE),
+		new ObjectStreamField("index", Map.class),
+		new ObjectStreamField("entries", BucketIndex.class)
+	};
 
 	/** The id. */
 	private int id;
 	
 	/** The index. */
-	private Map<String, DataEntry> index;
+	private BucketIndex index;
+	
+	/** The index read from an older snapshot, which is keyed by the (lossy) String form of the hash. Null once migrated. */
+	private transient Map<String, DataEntry> legacyIndex;
 	
 	/**
 	 * Instantiates a new bucket.
@@ -28,7 +44,7 @@ public class Bucket implements Serializable{
 	 */
 	public Bucket(int id){
 		this.id = id;
-		this.index  = new HashMap<String, DataEntry>();
+		this.index  = new BucketIndex();
 	}
 
 	/**
@@ -54,7 +70,7 @@ public class Bucket implements Serializable{
 	 *
 	 * @return the index
 	 */
-	public Map<String, DataEntry> getIndex() {
+	public BucketIndex getIndex() {
 		return index;
 	}
 
@@ -63,10 +79,68 @@ public class Bucket implements Serializable{
 	 *
 	 * @param index the index
 	 */
-	public void setIndex(Map<String, DataEntry> index) {
+	public void setIndex(BucketIndex index) {
 		this.index = index;
 	}	
 	
+	/**
+	 * Gets the legacy index.
+	 *
+	 * @return the legacy index, or null if the bucket was not read from an older snapshot
+	 */
+	public Map<String, DataEntry> getLegacyIndex() {
+		return legacyIndex;
+	}
+
+	/**
+	 * Sets the legacy index.
+	 *
+	 * @param legacyIndex the legacy index
+	 */
+	public void setLegacyIndex(Map<String, DataEntry> legacyIndex) {
+		this.legacyIndex = legacyIndex;
+	}
+	
+	/**
+	 * Estimates the memory used by the bucket's index.
+	 *
+	 * @return the size in bytes
+	 */
+	public long estimateSize() {
+		return index.memoryUsage();
+	}
+	
+	/**
+	 * Write object.
+	 *
+	 * @param out the out
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("id", id);
+		fields.put("entries", index);
+		out.writeFields();
+	}
+	
+	/**
+	 * Read object.
+	 *
+	 * @param in the in
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws ClassNotFoundException the class not found exception
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		id = fields.get("id", 0);
+		index = (BucketIndex) fields.get("entries", null);
+		if (index == null) {
+			index = new BucketIndex();
+			legacyIndex = (Map<String, DataEntry>) fields.get("index", null);
+		}
+	}
+	
 	@Override
 	public int hashCode() {
 		return id;
@@ -0,0 +1,499 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package entities;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.nio.LongBuffer;
+
+import utils.Constants;
+
+/**
+ * The index of a bucket, mapping the 20-byte SHA-1 hash of a data block to its offset and length on disk.
+ *
+ * The entries are stored inline in a single table of longs that is used as an open-addressing (linear probing) hash table,
+ * so an entry costs a few longs instead of a String, a DataEntry and a HashMap node, and the garbage collector has no references to trace.
+ * Lookups work straight from the hash bytes and do not allocate.
+ *
+ * Every slot takes SLOT_WIDTH longs:
+ * the first 8 bytes of the hash, the next 8 bytes of the hash, the last 4 bytes of the hash together with the data length and the codec,
+ * and the offset together with the reference count.
+ * The data length is the length of the block as stored on disk. The codec, in the top bits of the data length, tells how the block is stored.
+ * An offset of EMPTY marks a free slot.
+ *
+ * The reference count is the number of PUTs of the block minus the number of DELETEs. It is kept in the top bits of the offset as (count - 1),
+ * so the entries of older snapshots have a count of one. A count that reaches MAX_REF_COUNT sticks there: the block is never deleted.
+ *
+ * The table is either on the heap or mapped from an index file (see server.IndexFile), in which case the lookups probe the file in place.
+ * A mapped table is private to the process: the updates never reach the file. The table moves to the heap once it has to grow.
+ * 
+ * The index is not thread safe. It is accessed under the lock of its bucket.
+ */
+public class BucketIndex implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 6104187406226345513L;
+
+	/** 
+	 * The serialized fields. The table is serialized as a long[], as in the snapshots that predate the mapped tables.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("table", long[].class),
+		new ObjectStreamField("capacity", Integer.TYPE),
+		new ObjectStreamField("size", Integer.TYPE)
+	};
+
+	/** The number of longs in a slot. */
+	public static final int SLOT_WIDTH = 4;
+
+	/** The offset that marks a free slot. */
+	private static final long EMPTY = -1L;
+
+	/** The position of the reference count in the offset long. */
+	private static final int REF_COUNT_SHIFT = 56;
+
+	/** The bits of the offset long that hold the offset. */
+	public static final long MAX_OFFSET = (1L << REF_COUNT_SHIFT) - 1;
+
+	/** The position of the codec in the data length. */
+	public static final int CODEC_SHIFT = 30;
+
+	/** The bits of the data length that hold the data length. */
+	public static final int MAX_DATA_LENGTH = (1 << CODEC_SHIFT) - 1;
+
+	/** The reference count at which a block becomes permanent. */
+	public static final int MAX_REF_COUNT = 128;
+
+	/** The initial number of slots. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** The maximum load factor of the table. */
+	private static final float LOAD_FACTOR = 0.75f;
+
+	/** The table. */
+	private LongBuffer table;
+
+	/** The number of slots. Always a power of two. */
+	private int capacity;
+
+	/** The number of entries. */
+	private int size;
+
+	/**
+	 * Instantiates a new bucket index.
+	 */
+	public BucketIndex() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new bucket index.
+	 *
+	 * @param capacity the number of slots. Must be a power of two.
+	 */
+	private BucketIndex(int capacity) {
+		this.capacity = capacity;
+		this.table = LongBuffer.allocate(capacity * SLOT_WIDTH);
+		for (int slot = 0; slot < capacity; slot++) {
+			table.put(slot * SLOT_WIDTH + 3, EMPTY);
+		}
+	}
+
+	/**
+	 * Instantiates a new bucket index over an existing table, e.g. one that is mapped from an index file.
+	 *
+	 * @param table the table of SLOT_WIDTH longs per slot. The number of slots must be a power of two.
+	 * @param size the number of entries in the table
+	 */
+	public BucketIndex(LongBuffer table, int size) {
+		this.capacity = table.capacity() / SLOT_WIDTH;
+		if (Integer.bitCount(capacity) != 1 || capacity * SLOT_WIDTH != table.capacity()) {
+			throw new IllegalArgumentException("Invalid table of " + table.capacity() + " longs");
+		}
+		this.table = table;
+		this.size = size;
+	}
+
+	/**
+	 * Finds the slot of the given hash.
+	 *
+	 * @param hash the hash
+	 * @return the slot, or -1 if the index does not contain the hash
+	 */
+	public int find(byte[] hash) {
+		if (hash.length != Constants.HASH_LENGTH) {
+			return -1;
+		}
+		long key0 = readLong(hash, 0);
+		long key1 = readLong(hash, 8);
+		long key2 = readInt(hash, 16);
+
+		int mask = capacity - 1;
+		for (int slot = home(key0, mask); ; slot = (slot + 1) & mask) {
+			int base = slot * SLOT_WIDTH;
+			if (table.get(base + 3) == EMPTY) {
+				return -1;
+			}
+			if (table.get(base) == key0 && table.get(base + 1) == key1 && (table.get(base + 2) >>> 32) == key2) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the index contains the given hash.
+	 *
+	 * @param hash the hash
+	 * @return true, if the hash is in the index
+	 */
+	public boolean contains(byte[] hash) {
+		return find(hash) >= 0;
+	}
+
+	/**
+	 * Gets the offset of the entry in the given slot.
+	 *
+	 * @param slot the slot
+	 * @return the offset
+	 */
+	public long getOffset(int slot) {
+		return table.get(slot * SLOT_WIDTH + 3) & MAX_OFFSET;
+	}
+
+	/**
+	 * Gets the reference count of the entry in the given slot.
+	 *
+	 * @param slot the slot
+	 * @return the reference count
+	 */
+	public int getRefCount(int slot) {
+		return (int) (table.get(slot * SLOT_WIDTH + 3) >>> REF_COUNT_SHIFT) + 1;
+	}
+
+	/**
+	 * Adds a reference to the entry in the given slot.
+	 *
+	 * @param slot the slot
+	 */
+	public void addReference(int slot) {
+		if (getRefCount(slot) < MAX_REF_COUNT) {
+			table.put(slot * SLOT_WIDTH + 3, table.get(slot * SLOT_WIDTH + 3) + (1L << REF_COUNT_SHIFT));
+		}
+	}
+
+	/**
+	 * Makes the entry in the given slot permanent, i.e. it has the maximum reference count and keeps it.
+	 *
+	 * @param slot the slot
+	 */
+	public void makePermanent(int slot) {
+		int i = slot * SLOT_WIDTH + 3;
+		table.put(i, (table.get(i) & MAX_OFFSET) | ((long) (MAX_REF_COUNT - 1) << REF_COUNT_SHIFT));
+	}
+
+	/**
+	 * Sets the reference count of the entry in the given slot, e.g. of an entry that is copied from another index.
+	 *
+	 * @param slot the slot
+	 * @param refCount the reference count, at least one
+	 */
+	public void setRefCount(int slot, int refCount) {
+		int i = slot * SLOT_WIDTH + 3;
+		table.put(i, (table.get(i) & MAX_OFFSET) | ((long) (Math.min(refCount, MAX_REF_COUNT) - 1) << REF_COUNT_SHIFT));
+	}
+
+	/**
+	 * Removes a reference from the entry in the given slot. The entry is removed from the index once it has no references left.
+	 * A permanent entry keeps its references.
+	 *
+	 * @param slot the slot
+	 * @return the remaining reference count
+	 */
+	public int removeReference(int slot) {
+		int refCount = getRefCount(slot);
+		if (refCount == MAX_REF_COUNT) {
+			return refCount;
+		}
+		if (refCount == 1) {
+			remove(slot);
+			return 0;
+		}
+		table.put(slot * SLOT_WIDTH + 3, table.get(slot * SLOT_WIDTH + 3) - (1L << REF_COUNT_SHIFT));
+		return refCount - 1;
+	}
+
+	/**
+	 * Removes the entry in the given slot.
+	 * The entries that follow in the probe sequence are shifted back, so that no lookup stops at the freed slot too early.
+	 *
+	 * @param slot the slot
+	 */
+	private void remove(int slot) {
+		int mask = capacity - 1;
+		int free = slot;
+		for (int next = (free + 1) & mask; table.get(next * SLOT_WIDTH + 3) != EMPTY; next = (next + 1) & mask) {
+			int home = home(table.get(next * SLOT_WIDTH), mask);
+			// The entry can move to the free slot if its home is not cyclically between the free slot and itself.
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				for (int i = 0; i < SLOT_WIDTH; i++) {
+					table.put(free * SLOT_WIDTH + i, table.get(next * SLOT_WIDTH + i));
+				}
+				free = next;
+			}
+		}
+		table.put(free * SLOT_WIDTH + 3, EMPTY);
+		size--;
+	}
+
+	/**
+	 * Gets the data length of the entry in the given slot.
+	 *
+	 * @param slot the slot
+	 * @return the data length
+	 */
+	public int getDataLength(int slot) {
+		return (int) table.get(slot * SLOT_WIDTH + 2) & MAX_DATA_LENGTH;
+	}
+
+	/**
+	 * Gets the codec of the entry in the given slot.
+	 *
+	 * @param slot the slot
+	 * @return the codec
+	 */
+	public int getCodec(int slot) {
+		return (int) table.get(slot * SLOT_WIDTH + 2) >>> CODEC_SHIFT;
+	}
+
+	/**
+	 * Puts the entry of the given hash. A new entry has one reference.
+	 * An existing entry is moved to the given offset and keeps its references.
+	 *
+	 * @param hash the hash
+	 * @param offset the offset
+	 * @param dataLength the data length
+	 * @param codec the codec
+	 */
+	public void put(byte[] hash, long offset, int dataLength, int codec) {
+		if (hash.length != Constants.HASH_LENGTH) {
+			throw new IllegalArgumentException("Invalid hash length " + hash.length);
+		}
+		if (offset < 0 || offset > MAX_OFFSET) {
+			throw new IllegalArgumentException("Invalid offset " + offset);
+		}
+		if (dataLength < 0 || dataLength > MAX_DATA_LENGTH) {
+			throw new IllegalArgumentException("Invalid data length " + dataLength);
+		}
+		if (size + 1 > capacity * LOAD_FACTOR) {
+			resize(capacity * 2);
+		}
+
+		long key0 = readLong(hash, 0);
+		long key1 = readLong(hash, 8);
+		long key2 = readInt(hash, 16);
+		if (insert(key0, key1, key2, offset, (codec << CODEC_SHIFT) | dataLength)) {
+			size++;
+		}
+	}
+
+	/**
+	 * Inserts the entry into the table.
+	 *
+	 * @return true, if a new slot was taken
+	 */
+	private boolean insert(long key0, long key1, long key2, long offset, int dataLength) {
+		int mask = capacity - 1;
+		for (int slot = home(key0, mask); ; slot = (slot + 1) & mask) {
+			int base = slot * SLOT_WIDTH;
+			boolean empty = table.get(base + 3) == EMPTY;
+			if (empty || (table.get(base) == key0 && table.get(base + 1) == key1 && (table.get(base + 2) >>> 32) == key2)) {
+				long refBits = empty ? 0 : table.get(base + 3) & ~MAX_OFFSET;
+				table.put(base, key0);
+				table.put(base + 1, key1);
+				table.put(base + 2, (key2 << 32) | (dataLength & 0xffffffffL));
+				table.put(base + 3, refBits | offset);
+				return empty;
+			}
+		}
+	}
+
+	/**
+	 * Copies a slot of another table, with its reference count, into a free slot of this table.
+	 *
+	 * @param source the source table
+	 * @param sourceBase the index of the slot in the source table
+	 */
+	private void insertSlot(LongBuffer source, int sourceBase) {
+		int mask = capacity - 1;
+		int slot = home(source.get(sourceBase), mask);
+		while (table.get(slot * SLOT_WIDTH + 3) != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		for (int i = 0; i < SLOT_WIDTH; i++) {
+			table.put(slot * SLOT_WIDTH + i, source.get(sourceBase + i));
+		}
+	}
+
+	/**
+	 * Rehashes all the entries into a table with the given number of slots.
+	 *
+	 * @param newCapacity the new capacity
+	 */
+	private void resize(int newCapacity) {
+		if (newCapacity > Integer.MAX_VALUE / SLOT_WIDTH) {
+			throw new IllegalStateException("The bucket index cannot grow beyond " + capacity + " slots");
+		}
+		LongBuffer oldTable = table;
+		int oldCapacity = capacity;
+
+		BucketIndex resized = new BucketIndex(newCapacity);
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			int base = slot * SLOT_WIDTH;
+			if (oldTable.get(base + 3) != EMPTY) {
+				resized.insertSlot(oldTable, base);
+			}
+		}
+		this.table = resized.table;
+		this.capacity = newCapacity;
+	}
+
+	/**
+	 * Gets the home slot of a key. The hash is a SHA-1, so its leading bytes are already uniformly distributed.
+	 *
+	 * @param key0 the first 8 bytes of the hash
+	 * @param mask the mask
+	 * @return the slot
+	 */
+	private static int home(long key0, int mask) {
+		return (int) (key0 ^ (key0 >>> 32)) & mask;
+	}
+
+	/**
+	 * Reads 8 bytes of the hash as a big-endian long.
+	 */
+	private static long readLong(byte[] b, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (b[i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads 4 bytes of the hash as an unsigned big-endian int.
+	 */
+	private static long readInt(byte[] b, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 4; i++) {
+			value = (value << 8) | (b[i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Gets the number of slots. Together with isOccupied, this allows iterating over the entries.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Checks whether the given slot holds an entry.
+	 *
+	 * @param slot the slot
+	 * @return true, if the slot is occupied
+	 */
+	public boolean isOccupied(int slot) {
+		return table.get(slot * SLOT_WIDTH + 3) != EMPTY;
+	}
+
+	/**
+	 * Copies the hash of the entry in the given slot into the given array.
+	 *
+	 * @param slot the slot
+	 * @param hash the array of HASH_LENGTH bytes to fill
+	 */
+	public void getHash(int slot, byte[] hash) {
+		int base = slot * SLOT_WIDTH;
+		writeLong(hash, 0, table.get(base));
+		writeLong(hash, 8, table.get(base + 1));
+		long key2 = table.get(base + 2) >>> 32;
+		for (int i = 19; i >= 16; i--) {
+			hash[i] = (byte) key2;
+			key2 >>>= 8;
+		}
+	}
+
+	/**
+	 * Writes the long into 8 bytes of the hash in big-endian order.
+	 */
+	private static void writeLong(byte[] b, int offset, long value) {
+		for (int i = offset + 7; i >= offset; i--) {
+			b[i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the memory used by the table.
+	 *
+	 * @return the size in bytes
+	 */
+	public long memoryUsage() {
+		return (long) table.capacity() * 8;
+	}
+
+	/**
+	 * Gets the table, e.g. to write it to an index file.
+	 *
+	 * @return a read-only view of the table
+	 */
+	public LongBuffer getTable() {
+		return table.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Write object.
+	 *
+	 * @param out the out
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		long[] array = new long[table.capacity()];
+		table.duplicate().get(array);
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("table", array);
+		fields.put("capacity", capacity);
+		fields.put("size", size);
+		out.writeFields();
+	}
+
+	/**
+	 * Read object.
+	 *
+	 * @param in the in
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws ClassNotFoundException the class not found exception
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		table = LongBuffer.wrap((long[]) fields.get("table", null));
+		capacity = fields.get("capacity", 0);
+		size = fields.get("size", 0);
+	}
+}
@@ -16,11 +16,14 @@ public class DataEntry implements Comparable<DataEntry>, Serializable {
 	/** The offset of the data in disk. */
 	private long offset;
 
-	/** The length of the data in bytes. */
+	/** The length of the data in bytes, as stored on disk. */
 	private int dataLength;
+	
+	/** The codec with which the data is stored. */
+	private int codec;
 		
-	/** The hash. This need not be serialized. It is used only during reading data from disk and returning them to the client. */
-	private transient String hash;
+	/** The task that reads this entry. This need not be serialized. It is used only during reading data from disk and returning them to the client. */
+	private transient GetTask task;
 
 	/**
 	 * Gets the offset.
@@ -58,6 +61,24 @@ public class DataEntry implements Comparable<DataEntry>, Serializable {
 		this.dataLength = dataLength;
 	}
 
+	/**
+	 * Gets the codec.
+	 *
+	 * @return the codec
+	 */
+	public int getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec.
+	 *
+	 * @param codec the new codec
+	 */
+	public void setCodec(int codec) {
+		this.codec = codec;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Comparable#compareTo(java.lang.Object)
 	 */
@@ -67,21 +88,21 @@ public class DataEntry implements Comparable<DataEntry>, Serializable {
 	}
 
 	/**
-	 * Gets the hash.
+	 * Gets the task.
 	 *
-	 * @return the hash
+	 * @return the task
 	 */
-	public String getHash() {
-		return hash;
+	public GetTask getTask() {
+		return task;
 	}
 
 	/**
-	 * Sets the hash.
+	 * Sets the task.
 	 *
-	 * @param hash the new hash
+	 * @param task the new task
 	 */
-	public void setHash(String hash) {
-		this.hash = hash;
+	public void setTask(GetTask task) {
+		this.task = task;
 	}
 	
 	@Override
@@ -0,0 +1,14 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package entities;
+
+/**
+ * The Class DeleteTask. It removes a reference to the data block of the hash. The block is deleted once it has no references left.
+ */
+public class DeleteTask extends Task {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 4623047271857392214L;
+
+}
@@ -13,6 +13,9 @@ public class PutTask extends Task{
 	
 	/** The data. */
 	private byte[] data;
+	
+	/** Whether the task only adds a reference to a block that is stored already. Such a task carries no data. */
+	private boolean reference;
 
 	/**
 	 * Gets the data.
@@ -32,4 +35,22 @@ public class PutTask extends Task{
 		this.data = data;
 	}
 
+	/**
+	 * Checks if the task only adds a reference to a stored block.
+	 *
+	 * @return true, if the task is a reference
+	 */
+	public boolean isReference() {
+		return reference;
+	}
+
+	/**
+	 * Sets whether the task only adds a reference to a stored block.
+	 *
+	 * @param reference the new reference
+	 */
+	public void setReference(boolean reference) {
+		this.reference = reference;
+	}
+
 }
@@ -3,37 +3,50 @@
  */
 package server;
 
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import utils.Constants;
+import entities.DeleteTask;
 import entities.GetTask;
 import entities.PutTask;
 
 /**
  * The Class Accumulator.
+ * The tasks of a bucket accumulate in its current batch (see BucketBatch), which a scheduler thread takes whole.
+ * Adding a task takes no lock: the batch is created with an atomic put-if-absent, and a scheduler swaps it out atomically,
+ * so a task never lands in a batch that has been taken already.
+ * Each data directory (disk) has a schedule queue of its own, served by its own scheduler threads, so that a slow disk only holds up its own buckets.
  */
 public class Accumulator {
 
-	/** The map that would contain all the 'get' tasks associated with a bucket. */
-	private Map<Integer, Queue<PutTask>> putMap;
+	/** The current batch of each bucket that has tasks. */
+	private ConcurrentMap<Integer, BucketBatch> batches;
 	
-	/** The map that would contain all the 'put' tasks associated with a bucket. */
-	private Map<Integer, Queue<GetTask>> getMap;	
+	/** The scheduler queues of the disks. Each contains the buckets of its disk that are ready to be scheduled. */
+	private List<ReadyQueue> scheduleQueues;	
 	
-	/** The scheduler queue contains all the buckets that are ready to be scheduled. */
-	private BlockingQueue<Integer> scheduleQueue;	
+	/**
+	 * The buckets whose batch a scheduler is processing. The value is true once another scheduler has found the bucket busy,
+	 * so that the bucket is scheduled again when the batch is done.
+	 */
+	private ConcurrentMap<Integer, Boolean> processing;
 	
 	/** The map that would contain the time that each bucket has spent without being scheduled. */
-	private Map<Integer, Long> timerMap;
+	private ConcurrentMap<Integer, Long> timerMap;
+	
+	/** The timer of the buckets that are waiting without being ready. */
+	private ScheduledTimer scheduledTimer;
 	
 	/** The accumulator. */
 	private static Accumulator accumulator;
@@ -47,10 +60,12 @@ public class Accumulator {
 		if (accumulator == null) {
 			accumulator = new Accumulator();
 			
-			// Start the scheduler threads.
-			int numThreads = Constants.THREADS_PER_PROCESSOR; //Runtime.getRuntime().availableProcessors() * Constants.THREADS_PER_PROCESSOR;
-			for (int i = 1; i <= numThreads; i++) {
-				new Scheduler(i, accumulator).start();
+			// Start the scheduler threads of each disk.
+			int numThreads = Constants.THREADS_PER_DISK; //Runtime.getRuntime().availableProcessors() * Constants.THREADS_PER_PROCESSOR;
+			for (int disk = 0; disk < Constants.DATA_DIRS.length; disk++) {
+				for (int i = 1; i <= numThreads; i++) {
+					new Scheduler(disk * numThreads + i, disk, accumulator).start();
+				}
 			}
 		}
 		return accumulator;
@@ -60,85 +75,118 @@ public class Accumulator {
 	 * Instantiates a new accumulator.
 	 */
 	private Accumulator() {		
-		this.putMap = new ConcurrentHashMap<Integer, Queue<PutTask>>();
-		this.getMap = new ConcurrentHashMap<Integer, Queue<GetTask>>();
-		this.scheduleQueue = new PriorityBlockingQueue<Integer>(10, new ScheduleComparator());
+		this.batches = new ConcurrentHashMap<Integer, BucketBatch>();
+		this.scheduleQueues = new ArrayList<ReadyQueue>();
+		for (int disk = 0; disk < Constants.DATA_DIRS.length; disk++) {
+			scheduleQueues.add(new ReadyQueue());
+		}
+		this.processing = new ConcurrentHashMap<Integer, Boolean>();
 		this.timerMap = new ConcurrentHashMap<Integer, Long>();
-		new ScheduledTimer().execute();
-	}
-	
-	/**
-	 * Gets the put map.
-	 *
-	 * @return the put map
-	 */
-	public Map<Integer, Queue<PutTask>> getPutMap() {
-		return putMap;
+		this.scheduledTimer = new ScheduledTimer();
+		scheduledTimer.execute();
 	}
 
 	/**
-	 * Sets the put map.
+	 * Gets the schedule queue of a disk.
 	 *
-	 * @param putMap the put map
+	 * @param disk the disk
+	 * @return the queue
 	 */
-	public void setPutMap(Map<Integer, Queue<PutTask>> putMap) {
-		this.putMap = putMap;
+	public ReadyQueue getScheduleQueue(int disk) {
+		return scheduleQueues.get(disk);
 	}
 
 	/**
-	 * Gets the gets the map.
+	 * Sets the schedule queue of a disk.
 	 *
-	 * @return the gets the map
+	 * @param disk the disk
+	 * @param queue the new queue
 	 */
-	public Map<Integer, Queue<GetTask>> getGetMap() {
-		return getMap;
+	public void setScheduleQueue(int disk, ReadyQueue queue) {
+		this.scheduleQueues.set(disk, queue);
 	}
 
 	/**
-	 * Sets the get map.
+	 * Gets the timer map.
 	 *
-	 * @param getMap the get map
+	 * @return the timer map
 	 */
-	public void setGetMap(Map<Integer, Queue<GetTask>> getMap) {
-		this.getMap = getMap;
+	public Map<Integer, Long> getTimerMap() {
+		return timerMap;
 	}
 
 	/**
-	 * Gets the schedule queue.
+	 * Starts processing the bucket's current batch. The batches of a bucket are processed one at a time, in order,
+	 * so the gets of a batch are answered after the puts of the batches before it are written.
+	 * If another scheduler is processing the bucket, the bucket is left to be scheduled again when that scheduler is done (see endBatch).
 	 *
-	 * @return the queue
+	 * @param bucketId the bucketId
+	 * @return the batch, or null if the bucket has no tasks or is being processed. The caller must call endBatch if it is not null
 	 */
-	public BlockingQueue<Integer> getScheduleQueue() {
-		return scheduleQueue;
+	public BucketBatch beginBatch(int bucketId) {
+		while (processing.putIfAbsent(bucketId, Boolean.FALSE) != null) {
+			// The scheduler that is processing the bucket reschedules it, unless it has just finished.
+			if (processing.replace(bucketId, Boolean.TRUE) != null) {
+				return null;
+			}
+		}
+		BucketBatch batch = takeBatch(bucketId);
+		if (batch == null) {
+			endBatch(bucketId);
+		}
+		return batch;
 	}
-
+	
 	/**
-	 * Sets the schedule queue.
+	 * Ends the processing of the bucket's batch, and schedules the bucket again if another scheduler found it busy in the meantime.
 	 *
-	 * @param queue the new queue
+	 * @param bucketId the bucketId
 	 */
-	public void setScheduleQueue(BlockingQueue<Integer> queue) {
-		this.scheduleQueue = queue;
+	public void endBatch(int bucketId) {
+		if (Boolean.TRUE.equals(processing.remove(bucketId))) {
+			addToScheduleQueue(bucketId);
+		}
 	}
 	
-	
-
 	/**
-	 * Gets the timer map.
+	 * Takes the current batch of the bucket, so that the tasks that are added from now on go to a new batch.
+	 * The batch is swapped out first and then sealed, which waits for the producers that are still adding to it.
+	 * The timer is cleared before the batch is swapped out, so that the first producer of the next batch starts a new one.
+	 * A timer that is started for the batch that is being taken only schedules a bucket without a batch, which the scheduler skips.
 	 *
-	 * @return the timer map
+	 * @param bucketId the bucketId
+	 * @return the batch, or null if the bucket has no tasks
 	 */
-	public Map<Integer, Long> getTimerMap() {
-		return timerMap;
+	private BucketBatch takeBatch(int bucketId) {
+		timerMap.remove(bucketId);
+		BucketBatch batch = batches.remove(bucketId);
+		if (batch != null) {
+			batch.seal();
+		}
+		return batch;
 	}
 
 	/**
-	 * Sets the timer map.
+	 * Enters the current batch of the bucket, creating it if the bucket has none.
+	 * If a scheduler takes the batch in the meantime, the producer goes on to the next one. It never waits for the scheduler.
 	 *
-	 * @param timerMap the timer map
+	 * @param bucketId the bucketId
+	 * @return the batch, which the caller must exit
 	 */
-	public void setTimerMap(Map<Integer, Long> timerMap) {
-		this.timerMap = timerMap;
+	private BucketBatch enterBatch(int bucketId) {
+		while (true) {
+			BucketBatch batch = batches.get(bucketId);
+			if (batch == null) {
+				BucketBatch newBatch = new BucketBatch();
+				batch = batches.putIfAbsent(bucketId, newBatch);
+				if (batch == null) {
+					batch = newBatch;
+				}
+			}
+			if (batch.enter()) {
+				return batch;
+			}
+		}
 	}
 
 	/**
@@ -148,30 +196,18 @@ public class Accumulator {
 	 * @param task the task
 	 */
 	public void addToPutQueue(int bucketId, PutTask task) {
-		// Check if the putMap already has a task queue for this bucket.
-		Queue<PutTask> tasks = putMap.get(bucketId);
-		if (tasks == null) {
-			tasks = new LinkedBlockingQueue<PutTask>();
-		}
-		
-		tasks.add(task);
-		
-		// Check if the total number of tasks has exceeded the threshold.
-		Queue<GetTask> getQueue = getMap.get(bucketId);
-		int queueSize = ((getQueue != null) ? getQueue.size() : 0 ) + tasks.size();
-		if (queueSize >= Constants.BUFFER_SIZE) {
-			addToScheduleQueue(bucketId);			
-		}
-		else {
-			/** When the bucket doesn't have enough requests buffered, mark the time.
-			 * When it stays without being scheduled for a specified amount of time, schedule it forcefully.
-			 */
-			if(timerMap.get(bucketId) == null) {
-				timerMap.put(bucketId, System.currentTimeMillis());
+		BucketBatch batch = enterBatch(bucketId);
+		int queueSize;
+		try {
+			batch.getPutQueue().add(task);
+			// Make the data readable before it is written. A reference carries no data.
+			if (! task.isReference()) {
+				batch.getPendingPuts().put(ByteBuffer.wrap(task.getHash()), task);
 			}
+		} finally {
+			queueSize = batch.exit();
 		}
-		
-		putMap.put(bucketId, tasks);
+		checkQueueSize(bucketId, queueSize);
 	}
 		
 	/**
@@ -181,87 +217,167 @@ public class Accumulator {
 	 * @param task the task
 	 */
 	public void addToGetQueue(int bucketId, GetTask task) {
-		// Check if the getMap already has a task queue for this bucket.		
-		Queue<GetTask> tasks = getMap.get(bucketId);		
-		if (tasks == null) {
-			tasks = new LinkedBlockingQueue<GetTask>();
+		// The data of a pending put is answered right away, without waiting for the bucket to be written and read back.
+		if (answerFromPendingPut(bucketId, task)) {
+			return;
 		}
 		
-		tasks.add(task);
-		
-		// Check if the total number of tasks has exceeded the threshold.
-		Queue<PutTask> putQueue = putMap.get(bucketId);
-		int queueSize = ((putQueue != null) ? putQueue.size() : 0 ) + tasks.size();
-		if (queueSize >= Constants.BUFFER_SIZE) {			
+		BucketBatch batch = enterBatch(bucketId);
+		int queueSize;
+		try {
+			batch.getGetQueue().add(task);
+		} finally {
+			queueSize = batch.exit();
+		}
+		checkQueueSize(bucketId, queueSize);
+	}
+	
+	/**
+	 * Adds the task to delete queue.
+	 *
+	 * @param bucketId the bucketId
+	 * @param task the task
+	 */
+	public void addToDeleteQueue(int bucketId, DeleteTask task) {
+		BucketBatch batch = enterBatch(bucketId);
+		int queueSize;
+		try {
+			batch.getDeleteQueue().add(task);
+			// The delete is applied after the pending puts of the bucket, so their data may be gone. The gets that follow are answered by the bucket's batches.
+			batch.getPendingPuts().remove(ByteBuffer.wrap(task.getHash()));
+		} finally {
+			queueSize = batch.exit();
+		}
+		checkQueueSize(bucketId, queueSize);
+	}
+	
+	/**
+	 * Schedules the bucket once the number of its tasks has reached the threshold. Otherwise, its timer is started.
+	 *
+	 * @param bucketId the bucketId
+	 * @param queueSize the number of tasks of the bucket's batch
+	 */
+	private void checkQueueSize(int bucketId, int queueSize) {
+		if (queueSize >= Constants.BUFFER_SIZE) {
 			addToScheduleQueue(bucketId);
 		}
 		else {
-			/** 
-			 * When the bucket doesn't have enough requests buffered, mark the time.
-			 * When it stays without being scheduled for a specified amount of time, schedule it forcefully.
-			 */			
-			if(timerMap.get(bucketId) == null) {
-				timerMap.put(bucketId, System.currentTimeMillis());
-			}
+			startTimer(bucketId);
 		}
-		
-		getMap.put(bucketId, tasks);
 	}
 	
+	/**
+	 * Answers the get task from a pending put task of the bucket with the same hash.
+	 *
+	 * @param bucketId the bucketId
+	 * @param task the task
+	 * @return true, if the task is answered
+	 */
+	private boolean answerFromPendingPut(int bucketId, GetTask task) {
+		BucketBatch batch = batches.get(bucketId);
+		PutTask putTask = batch != null ? batch.getPendingPuts().get(ByteBuffer.wrap(task.getHash())) : null;
+		if (putTask == null) {
+			return false;
+		}
+		
+		task.setStatus(true);
+		task.setResponseData(putTask.getData());
+		try {
+			StorageServerImpl.getInstance().processResponse(Collections.singletonList(task));
+		} catch (RemoteException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
 	
 	/**
-	 * Adds the bucket to schedule queue.
+	 * Adds the bucket to the schedule queue of its disk, or raises its priority if it is there already. O(log(n))
 	 *
 	 * @param bucketId the bucketId
 	 */
-	public synchronized void addToScheduleQueue(int bucketId) {
-		// Remove the bucket from the priority queue before adding it.
-		// O(n)
-		scheduleQueue.remove(bucketId); 
-		// O(log(n))
-		scheduleQueue.add(bucketId);
-		timerMap.remove(bucketId);
+	public void addToScheduleQueue(int bucketId) {
+		Long waitingSince = timerMap.remove(bucketId);
+		scheduleQueues.get(DataSegments.getDisk(bucketId)).offer(bucketId, getQueueSize(bucketId),
+				waitingSince != null ? waitingSince : System.currentTimeMillis());
 	}
 	
+	/**
+	 * Gets the number of tasks that are pending for the bucket.
+	 *
+	 * @param bucketId the bucketId
+	 * @return the number of tasks
+	 */
+	private int getQueueSize(int bucketId) {
+		BucketBatch batch = batches.get(bucketId);
+		return batch != null ? batch.size() : 0;
+	}
 	
 	/**
-	 * The Comparator that defines the ordering (priority) of the elements in the priority queue.
-	 * It is a function of both time (time that is spent waiting before being scheduled) and number of put and get requests.
+	 * When the bucket doesn't have enough requests buffered, mark the time.
+	 * When it stays without being scheduled for a specified amount of time, the timer schedules it forcefully.
+	 *
+	 * @param bucketId the bucketId
 	 */
-	class ScheduleComparator implements Comparator<Integer> {		
-		
-		/* (non-Javadoc)
-		 * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
-		 */
-		@Override
-		public synchronized int compare(Integer i1, Integer i2) {			
-			Queue<PutTask> putQueue1 = putMap.get(i1);
-			Queue<GetTask> getQueue1 = getMap.get(i1);
-			
-			Queue<PutTask> putQueue2 = putMap.get(i2);
-			Queue<GetTask> getQueue2 = getMap.get(i2);
-			Long time1 = timerMap.get(i1);
-			Long time2 = timerMap.get(i2);
-			
-			long currentTime = System.currentTimeMillis();
-						
-			long term1 = (putQueue1 != null ? putQueue1.size() : 0) + (getQueue1 != null ? getQueue1.size() : 0) + (time1 != null ? (currentTime - time1) : 0);
-			long term2 = (putQueue2 != null ? putQueue2.size() : 0) + (getQueue2 != null ? getQueue2.size() : 0) + (time2 != null ? (currentTime - time2) : 0);
-						
-			return (term1 - term2) > 0 ? 1 : (term1 - term2) < 0 ? -1 : 0;			
+	private void startTimer(int bucketId) {
+		long currentTime = System.currentTimeMillis();
+		if (timerMap.putIfAbsent(bucketId, currentTime) == null) {
+			scheduledTimer.add(bucketId, currentTime);
 		}
 	}
 	
 	/**
-	 * Class to execute tasks at scheduled time periods.
-	 * If a bucket does not contain enough get/put requests to perform reading/writing, they are not scheduled. 
-	 * This acts as a timer to check if there are any such tasks which are waiting in the queue for a specified amount of time.
-	 * If so, it schedules those tasks.
+	 * The timer that schedules the buckets which have been waiting for MAX_TIME_IN_QUEUE without enough get/put requests to be scheduled.
+	 * It is a timing wheel with a slot for each SCHEDULED_TIMER_PERIOD: a bucket is added to the slot of its deadline, and every tick only expires its own slot,
+	 * so a tick does not look at the buckets that are not due. Every deadline is MAX_TIME_IN_QUEUE ahead, so a single turn of the wheel covers all of them.
+	 * A bucket that is scheduled before its deadline is not removed from the wheel. Its entry is ignored when it expires, as its timer has changed.
 	 */
 	class ScheduledTimer {
 		
 		/** The scheduled executor service. */
 		private final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+		
+		/** The slots of the wheel. Each maps the buckets whose deadline falls in its tick to the time at which they started waiting. */
+		private final List<Map<Integer, Long>> slots = new ArrayList<Map<Integer, Long>>();
+		
+		/** The next tick to expire. */
+		private long tick = System.currentTimeMillis() / Constants.SCHEDULED_TIMER_PERIOD;
+		
+		/**
+		 * Instantiates a new scheduled timer.
+		 */
+		ScheduledTimer() {
+			int numSlots = Constants.MAX_TIME_IN_QUEUE / Constants.SCHEDULED_TIMER_PERIOD + 2;
+			for (int i = 0; i < numSlots; i++) {
+				slots.add(new HashMap<Integer, Long>());
+			}
+		}
+		
+		/**
+		 * Adds the bucket to the slot of its deadline, the first tick past MAX_TIME_IN_QUEUE after it started waiting.
+		 *
+		 * @param bucketId the bucket id
+		 * @param waitingSince the time at which the bucket started waiting
+		 */
+		synchronized void add(int bucketId, long waitingSince) {
+			long deadline = (waitingSince + Constants.MAX_TIME_IN_QUEUE) / Constants.SCHEDULED_TIMER_PERIOD + 1;
+			slots.get((int) (Math.max(deadline, tick) % slots.size())).put(bucketId, waitingSince);
+		}
+		
+		/**
+		 * Takes the entries of the slots up to the current tick.
+		 *
+		 * @return the entries
+		 */
+		private synchronized List<Map.Entry<Integer, Long>> expire() {
+			List<Map.Entry<Integer, Long>> expired = new ArrayList<Map.Entry<Integer, Long>>();
+			long currentTick = System.currentTimeMillis() / Constants.SCHEDULED_TIMER_PERIOD;
+			for (; tick <= currentTick; tick++) {
+				Map<Integer, Long> slot = slots.get((int) (tick % slots.size()));
+				expired.addAll(new HashMap<Integer, Long>(slot).entrySet());
+				slot.clear();
+			}
+			return expired;
+		}
 
 		/**
 		 * Execute.
@@ -269,20 +385,17 @@ public class Accumulator {
 		private void execute() {
 			final Runnable taskChecker = new Runnable() {
 				
-                public void run() {                	
-                	for (Map.Entry<Integer, Long> entry : timerMap.entrySet()) {
-                		int key = entry.getKey();
-                		long currentTime = System.currentTimeMillis();
-                		
-                		if ((currentTime - entry.getValue()) > Constants.MAX_TIME_IN_QUEUE) {                			
-                			// System.out.println("Adding " + key + " to scheduler queue.");
-                			addToScheduleQueue(key);
-                		}
-                	}
-            	}
-            };
-            
-			scheduledExecutorService.scheduleAtFixedRate(taskChecker, 0, Constants.SCHEDULED_TIMER_PERIOD, TimeUnit.MILLISECONDS);			
+				public void run() {
+					for (Map.Entry<Integer, Long> entry : expire()) {
+						// The bucket is only due if it is still waiting since the same time.
+						if (entry.getValue().equals(timerMap.get(entry.getKey()))) {
+							addToScheduleQueue(entry.getKey());
+						}
+					}
+				}
+			};
+			
+			scheduledExecutorService.scheduleAtFixedRate(taskChecker, 0, Constants.SCHEDULED_TIMER_PERIOD, TimeUnit.MILLISECONDS);
 		}
 	}
 }
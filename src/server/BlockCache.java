@@ -0,0 +1,270 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.Constants;
+
+/**
+ * The in-memory cache of the block contents, keyed by hash, so that the GETs of the hot blocks are answered without reading the disk.
+ * The cache is bounded by a memory budget and evicts the least recently used blocks first.
+ *
+ * A block is only admitted if it has been accessed more often than the blocks that it would evict (TinyLFU), so that blocks that are read once
+ * do not push the popular blocks out. The access frequencies are estimated with a count-min sketch of 4-bit counters,
+ * which is halved periodically so that old accesses fade.
+ *
+ * A block never changes under its hash, so a cached block never goes stale. A GET only looks in the cache once the bucket's index has the hash,
+ * so a deleted block is not served from the cache. It ages out like any other block.
+ */
+public class BlockCache {
+
+	/** The overhead of a cached block in bytes: the map entry, the key and the array headers. */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	/** The number of rows of the frequency sketch. */
+	private static final int SKETCH_DEPTH = 4;
+
+	/** The maximum value of a counter of the frequency sketch. */
+	private static final int MAX_FREQUENCY = 15;
+
+	/** The block cache. */
+	private static BlockCache blockCache;
+
+	/** The cached blocks in the least recently used order. */
+	private LinkedHashMap<ByteBuffer, byte[]> blocks;
+
+	/** The total size of the cached blocks in bytes. */
+	private long totalSize;
+
+	/** The memory budget of the cache in bytes. */
+	private long capacity;
+
+	/** The counters of the frequency sketch, SKETCH_DEPTH rows of a power of two each. */
+	private byte[] sketch;
+
+	/** The mask of a counter index in a row of the sketch. */
+	private int sketchMask;
+
+	/** The number of accesses recorded since the sketch was last halved. */
+	private int sampleCount;
+
+	/** The number of accesses after which the sketch is halved. */
+	private int sampleSize;
+
+	/** The number of lookups that found the block in the cache. */
+	private AtomicLong hits = new AtomicLong();
+
+	/** The number of lookups that did not find the block in the cache. */
+	private AtomicLong misses = new AtomicLong();
+
+	/** The number of blocks that were not admitted. */
+	private AtomicLong rejections = new AtomicLong();
+
+	/** The number of blocks evicted from the cache. */
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Gets the single instance of BlockCache.
+	 *
+	 * @return single instance of BlockCache
+	 */
+	public static synchronized BlockCache getInstance() {
+		if (blockCache == null) {
+			blockCache = new BlockCache(Constants.BLOCK_CACHE_SIZE);
+		}
+		return blockCache;
+	}
+
+	/**
+	 * Instantiates a new block cache.
+	 *
+	 * @param capacity the memory budget in bytes
+	 */
+	private BlockCache(long capacity) {
+		this.capacity = capacity;
+		// Access ordered, so that the eldest entry is the least recently used block.
+		this.blocks = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true);
+		if (capacity <= 0) {
+			return;
+		}
+
+		// A counter for every block that fits in the budget, as in the TinyLFU paper. The sketch is halved after ten times as many accesses.
+		long expectedBlocks = Math.max(1024, capacity / (Constants.BLOCK_CACHE_BLOCK_SIZE + ENTRY_OVERHEAD));
+		int width = Integer.highestOneBit((int) Math.min(expectedBlocks, 1 << 24) - 1) << 1;
+		this.sketch = new byte[SKETCH_DEPTH * width];
+		this.sketchMask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	/**
+	 * Checks whether the cache is enabled.
+	 *
+	 * @return true, if enabled
+	 */
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * Gets the cached block and records the access.
+	 * The array is shared with the other users of the block and must not be modified.
+	 *
+	 * @param hash the hash
+	 * @return the block, or null if it is not cached
+	 */
+	public synchronized byte[] get(byte[] hash) {
+		recordAccess(hash);
+		byte[] data = blocks.get(ByteBuffer.wrap(hash));
+		if (data != null) {
+			hits.incrementAndGet();
+		}
+		else {
+			misses.incrementAndGet();
+		}
+		return data;
+	}
+
+	/**
+	 * Offers a block to the cache. The block is admitted if it fits in the budget and has been accessed more often than the blocks that it would evict.
+	 * The array must not be modified afterwards.
+	 *
+	 * @param hash the hash
+	 * @param data the block
+	 * @param accessed whether the block has been accessed, i.e. it is offered after a PUT rather than after a GET, which has been recorded already
+	 */
+	public synchronized void put(byte[] hash, byte[] data, boolean accessed) {
+		if (accessed) {
+			recordAccess(hash);
+		}
+		ByteBuffer key = ByteBuffer.wrap(hash.clone());
+		long size = getSize(data);
+		// A block that does not fit in the budget by itself is not cached at all.
+		if (size > capacity || blocks.containsKey(key)) {
+			return;
+		}
+
+		/**
+		 * Find the blocks that would be evicted. The candidate is only admitted if it is more popular than each of them.
+		 * The map is access ordered, so the scan only reads the entries: a get would move the victim to the end while it is iterated.
+		 */
+		int frequency = getFrequency(hash);
+		long freed = 0;
+		List<ByteBuffer> victims = new ArrayList<ByteBuffer>();
+		for (Iterator<Map.Entry<ByteBuffer, byte[]>> iter = blocks.entrySet().iterator(); totalSize - freed + size > capacity && iter.hasNext();) {
+			Map.Entry<ByteBuffer, byte[]> victim = iter.next();
+			if (getFrequency(victim.getKey().array()) >= frequency) {
+				rejections.incrementAndGet();
+				return;
+			}
+			freed += getSize(victim.getValue());
+			victims.add(victim.getKey());
+		}
+
+		for (ByteBuffer victim : victims) {
+			blocks.remove(victim);
+			evictions.incrementAndGet();
+		}
+		totalSize -= freed;
+		blocks.put(key, data);
+		totalSize += size;
+	}
+
+	/**
+	 * Gets the accounted size of a cached block.
+	 *
+	 * @param data the block
+	 * @return the size in bytes
+	 */
+	private long getSize(byte[] data) {
+		return data.length + Constants.HASH_LENGTH + ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Records an access to a block in the frequency sketch.
+	 * The hash is uniformly distributed, so its first words serve as the independent hashes of the rows.
+	 *
+	 * @param hash the hash
+	 */
+	private void recordAccess(byte[] hash) {
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			int index = row * (sketchMask + 1) + (getWord(hash, row) & sketchMask);
+			if (sketch[index] < MAX_FREQUENCY) {
+				sketch[index]++;
+			}
+		}
+		if (++sampleCount >= sampleSize) {
+			// Halve all the counters, so that the estimates follow the recent accesses.
+			for (int i = 0; i < sketch.length; i++) {
+				sketch[i] >>= 1;
+			}
+			sampleCount /= 2;
+		}
+	}
+
+	/**
+	 * Gets the estimated access frequency of a block: the smallest of its counters.
+	 *
+	 * @param hash the hash
+	 * @return the frequency
+	 */
+	private int getFrequency(byte[] hash) {
+		int frequency = MAX_FREQUENCY;
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			frequency = Math.min(frequency, sketch[row * (sketchMask + 1) + (getWord(hash, row) & sketchMask)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Gets a word of the hash.
+	 *
+	 * @param hash the hash
+	 * @param i the index of the word
+	 * @return the word
+	 */
+	private static int getWord(byte[] hash, int i) {
+		int offset = 4 * i;
+		return (hash[offset] & 0xff) << 24 | (hash[offset + 1] & 0xff) << 16 | (hash[offset + 2] & 0xff) << 8 | (hash[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Gets the number of cache hits.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of cache misses.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the total size of the cached blocks in bytes.
+	 *
+	 * @return the size
+	 */
+	public synchronized long getSize() {
+		return totalSize;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BlockCache [blocks=" + blocks.size() + ", size=" + totalSize + ", capacity=" + capacity + ", hits=" + hits + ", misses=" + misses
+				+ ", rejections=" + rejections + ", evictions=" + evictions + "]";
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The per-block compression of the data blocks.
+ *
+ * A compressed block is stored as its original length (4 bytes) followed by the Deflater output.
+ * A block is only tried to be compressed if the entropy of a sample of its bytes is low enough, so that data that is already compressed
+ * (media, archives, encrypted data) costs a pass over a few KB instead of a full Deflater pass. A block is only stored compressed if that saves
+ * at least an eighth of its length.
+ *
+ * The Deflaters, the Inflaters and the buffers that the compressed blocks are read into are pooled per thread.
+ */
+public class BlockCodec {
+
+	/** The number of bytes of a block that the entropy check samples. */
+	private static final int SAMPLE_SIZE = 4096;
+
+	/** The length of the header of a compressed block. */
+	private static final int HEADER_LENGTH = 4;
+
+	/** The block codec. */
+	private static BlockCodec blockCodec;
+
+	/** The compression level. */
+	private final int level;
+
+	/** The Deflater of each thread. */
+	private ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+
+		protected Deflater initialValue() {
+			return new Deflater(level);
+		}
+	};
+
+	/** The Inflater of each thread. */
+	private ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/** The buffer of each thread that the compressed blocks are read into. */
+	private ThreadLocal<byte[]> readBuffers = new ThreadLocal<byte[]>();
+
+	/** The number of blocks stored compressed. */
+	private AtomicLong compressed = new AtomicLong();
+
+	/** The number of blocks that failed the entropy check. */
+	private AtomicLong skipped = new AtomicLong();
+
+	/** The number of blocks that were compressed but did not shrink enough. */
+	private AtomicLong rejected = new AtomicLong();
+
+	/** The original length of the blocks stored compressed. */
+	private AtomicLong bytesIn = new AtomicLong();
+
+	/** The compressed length of the blocks stored compressed. */
+	private AtomicLong bytesOut = new AtomicLong();
+
+	/**
+	 * Gets the single instance of BlockCodec.
+	 *
+	 * @return single instance of BlockCodec
+	 */
+	public static synchronized BlockCodec getInstance() {
+		if (blockCodec == null) {
+			blockCodec = new BlockCodec(Constants.COMPRESSION_LEVEL);
+		}
+		return blockCodec;
+	}
+
+	/**
+	 * Instantiates a new block codec.
+	 *
+	 * @param level the compression level
+	 */
+	BlockCodec(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Compresses the block.
+	 *
+	 * @param data the block
+	 * @return the compressed block, or null if the block is to be stored as it is
+	 */
+	public ByteBuffer compress(byte[] data) {
+		if (data.length < Constants.COMPRESSION_MIN_SIZE || entropy(data) > Constants.COMPRESSION_MAX_ENTROPY) {
+			skipped.incrementAndGet();
+			return null;
+		}
+
+		// A compressed block that would not fit in this buffer does not save enough.
+		byte[] block = new byte[data.length - data.length / 8];
+		writeInt(block, data.length);
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		int length = HEADER_LENGTH;
+		while (! deflater.finished() && length < block.length) {
+			length += deflater.deflate(block, length, block.length - length);
+		}
+		if (! deflater.finished()) {
+			rejected.incrementAndGet();
+			return null;
+		}
+
+		compressed.incrementAndGet();
+		bytesIn.addAndGet(data.length);
+		bytesOut.addAndGet(length);
+		return ByteBuffer.wrap(block, 0, length);
+	}
+
+	/**
+	 * Decompresses a block.
+	 *
+	 * @param block the array that holds the compressed block
+	 * @param offset the offset of the compressed block in the array
+	 * @param length the length of the compressed block
+	 * @return the block
+	 */
+	public byte[] decompress(byte[] block, int offset, int length) {
+		byte[] data = new byte[readInt(block, offset)];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(block, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+
+		int inflated = 0;
+		try {
+			while (inflated < data.length) {
+				int n = inflater.inflate(data, inflated, data.length - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new ArchiveException(e);
+		}
+		if (inflated != data.length) {
+			throw new ArchiveException("Corrupt compressed block: " + inflated + " of " + data.length + " bytes");
+		}
+		return data;
+	}
+
+	/**
+	 * Gets the buffer of the current thread that a compressed block of the given length can be read into.
+	 *
+	 * @param length the length
+	 * @return the buffer. Its contents are only valid until the thread's next call.
+	 */
+	public byte[] getReadBuffer(int length) {
+		byte[] buffer = readBuffers.get();
+		if (buffer == null || buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer != null ? buffer.length * 2 : 0)];
+			readBuffers.set(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Estimates the (order-0) entropy of the block from a sample of its bytes spread over the block.
+	 *
+	 * @param data the block
+	 * @return the entropy in bits per byte
+	 */
+	static double entropy(byte[] data) {
+		int[] counts = new int[256];
+		int step = Math.max(1, data.length / SAMPLE_SIZE);
+		int samples = 0;
+		for (int i = 0; i < data.length; i += step) {
+			counts[data[i] & 0xff]++;
+			samples++;
+		}
+
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				double p = (double) count / samples;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	/**
+	 * Writes the int at the start of the array in big-endian order.
+	 */
+	private static void writeInt(byte[] b, int value) {
+		for (int i = 3; i >= 0; i--) {
+			b[i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * Reads a big-endian int at the given offset of the array.
+	 */
+	private static int readInt(byte[] b, int offset) {
+		int value = 0;
+		for (int i = offset; i < offset + 4; i++) {
+			value = (value << 8) | (b[i] & 0xff);
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "BlockCodec [compressed=" + compressed + ", skipped=" + skipped + ", rejected=" + rejected
+				+ ", ratio=" + (bytesOut.get() / (double) Math.max(bytesIn.get(), 1)) + "]";
+	}
+}
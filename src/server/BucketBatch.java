@@ -0,0 +1,137 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import entities.DeleteTask;
+import entities.GetTask;
+import entities.PutTask;
+
+/**
+ * The tasks of a bucket that have accumulated since a scheduler last took the bucket's batch.
+ *
+ * The producers (the RMI threads) add to it without locks: a producer enters the batch, adds its task to a lock-free queue and exits.
+ * A scheduler takes the batch whole: once it has been swapped out of the accumulator, the batch is sealed, which fails the producers that enter from then on
+ * (they go on to the bucket's next batch), and the scheduler waits for the producers that entered before to exit.
+ * So a task is either in the batch that the scheduler took, or in the next one; none is added to a batch after it has been taken.
+ */
+public class BucketBatch {
+
+	/** The bit of the state that marks a sealed batch. The other bits count the producers in the batch. */
+	private static final int SEALED = Integer.MIN_VALUE;
+
+	/** The state: the sealed bit and the number of producers in the batch. */
+	private final AtomicInteger state = new AtomicInteger();
+
+	/** The number of tasks. */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/** The put tasks. */
+	private final Queue<PutTask> putQueue = new ConcurrentLinkedQueue<PutTask>();
+
+	/** The get tasks. */
+	private final Queue<GetTask> getQueue = new ConcurrentLinkedQueue<GetTask>();
+
+	/** The delete tasks. */
+	private final Queue<DeleteTask> deleteQueue = new ConcurrentLinkedQueue<DeleteTask>();
+
+	/** The put tasks with data by hash, which answer the get tasks of the data that is not written yet. */
+	private final Map<ByteBuffer, PutTask> pendingPuts = new ConcurrentHashMap<ByteBuffer, PutTask>();
+
+	/**
+	 * Enters the batch to add a task to it.
+	 *
+	 * @return true, if the batch was entered. False, if it has been sealed
+	 */
+	boolean enter() {
+		while (true) {
+			int current = state.get();
+			if ((current & SEALED) != 0) {
+				return false;
+			}
+			if (state.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Exits the batch after adding a task to it.
+	 *
+	 * @return the number of tasks of the batch
+	 */
+	int exit() {
+		int tasks = size.incrementAndGet();
+		state.decrementAndGet();
+		return tasks;
+	}
+
+	/**
+	 * Seals the batch and waits for the producers in it to exit.
+	 * The batch must have been swapped out of the accumulator already, so that the producers do not keep finding it.
+	 */
+	void seal() {
+		while (true) {
+			int current = state.get();
+			if (state.compareAndSet(current, current | SEALED)) {
+				break;
+			}
+		}
+		// A producer in the batch only adds a task, so it exits right away.
+		while ((state.get() & ~SEALED) != 0) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Gets the number of tasks.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the put queue.
+	 *
+	 * @return the put queue
+	 */
+	public Queue<PutTask> getPutQueue() {
+		return putQueue;
+	}
+
+	/**
+	 * Gets the get queue.
+	 *
+	 * @return the get queue
+	 */
+	public Queue<GetTask> getGetQueue() {
+		return getQueue;
+	}
+
+	/**
+	 * Gets the delete queue.
+	 *
+	 * @return the delete queue
+	 */
+	public Queue<DeleteTask> getDeleteQueue() {
+		return deleteQueue;
+	}
+
+	/**
+	 * Gets the pending puts.
+	 *
+	 * @return the pending puts
+	 */
+	public Map<ByteBuffer, PutTask> getPendingPuts() {
+		return pendingPuts;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The directory of the split buckets (extendible hashing).
+ *
+ * The router picks one of the 2^BUCKET_NUM_BITS root buckets of a hash. A bucket with a depth of d bits is split in two by one more bit of the hash
+ * (see getSplitBit): the bucket keeps the hashes whose bit is 0, and the new bucket, bucketId | 1 << d, takes the hashes whose bit is 1.
+ * Both have a depth of d + 1 afterwards. The server resolves the root bucket of a request to the bucket that holds its hash,
+ * so the router and the placement of the buckets on the servers are not affected by the splits.
+ *
+ * Only the depths of the split buckets are kept. They are persisted in BUCKET_DIRECTORY_FILE, which is written on every split.
+ */
+public class BucketDirectory {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(BucketDirectory.class);
+
+	/** The version of the directory file format. */
+	private static final int FILE_VERSION = 1;
+
+	/** The bucket directory. */
+	private static BucketDirectory bucketDirectory;
+
+	/** The depths of the buckets that have been split or that were created by a split. */
+	private Map<Integer, Integer> depths = new ConcurrentHashMap<Integer, Integer>();
+
+	/**
+	 * Gets the single instance of BucketDirectory.
+	 *
+	 * @return single instance of BucketDirectory
+	 */
+	public static synchronized BucketDirectory getInstance() {
+		if (bucketDirectory == null) {
+			bucketDirectory = new BucketDirectory();
+			bucketDirectory.read();
+		}
+		return bucketDirectory;
+	}
+
+	/**
+	 * Gets the split bit of the hash at the given depth.
+	 * The root bucket is taken from the last bytes of the hash, so the split bits are taken from the middle of the hash, from its 16th byte backwards.
+	 *
+	 * @param hash the hash
+	 * @param depth the depth of the bucket that is split
+	 * @return the bit, 0 or 1
+	 */
+	public static int getSplitBit(byte[] hash, int depth) {
+		int bit = depth - Constants.BUCKET_NUM_BITS;
+		return (hash[15 - bit / 8] >>> (bit % 8)) & 1;
+	}
+
+	/**
+	 * Gets the depth of the bucket, i.e. the number of bits of the hash that select it.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the depth
+	 */
+	public int getDepth(int bucketId) {
+		Integer depth = depths.get(bucketId);
+		return depth != null ? depth : Constants.BUCKET_NUM_BITS;
+	}
+
+	/**
+	 * Resolves the bucket that holds the hash.
+	 *
+	 * @param bucketId the root bucket id, or any bucket that the root bucket was split into
+	 * @param hash the hash
+	 * @return the bucket id
+	 */
+	public int resolve(int bucketId, byte[] hash) {
+		if (depths.isEmpty()) {
+			return bucketId;
+		}
+		int depth = Constants.BUCKET_NUM_BITS;
+		int resolved = bucketId & ((1 << depth) - 1);
+		while (getDepth(resolved) > depth) {
+			resolved |= getSplitBit(hash, depth) << depth;
+			depth++;
+		}
+		return resolved;
+	}
+
+	/**
+	 * Gets the buckets that the root bucket has been split into.
+	 *
+	 * @param rootId the root bucket id
+	 * @return the bucket ids, just the root bucket id if it has not been split
+	 */
+	public List<Integer> getBuckets(int rootId) {
+		List<Integer> bucketIds = new ArrayList<Integer>();
+		addBuckets(rootId, Constants.BUCKET_NUM_BITS, bucketIds);
+		return bucketIds;
+	}
+
+	/**
+	 * Adds the buckets that the bucket of the given depth has been split into.
+	 */
+	private void addBuckets(int bucketId, int depth, List<Integer> bucketIds) {
+		if (getDepth(bucketId) > depth) {
+			addBuckets(bucketId, depth + 1, bucketIds);
+			addBuckets(bucketId | (1 << depth), depth + 1, bucketIds);
+		}
+		else {
+			bucketIds.add(bucketId);
+		}
+	}
+
+	/**
+	 * Gets the number of buckets.
+	 *
+	 * @return the number of buckets
+	 */
+	public int getBucketCount() {
+		int count = 1 << Constants.BUCKET_NUM_BITS;
+		for (int bucketId : depths.keySet()) {
+			if (bucketId >= 1 << Constants.BUCKET_NUM_BITS) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the id of the bucket that a split of the given bucket creates.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the new bucket id
+	 */
+	public int getSplitBucket(int bucketId) {
+		return bucketId | (1 << getDepth(bucketId));
+	}
+
+	/**
+	 * Splits the bucket: the hashes of the bucket with a split bit of 1 are resolved to the new bucket from now on.
+	 * The directory file is written before this returns.
+	 * The caller must hold the bucket's lock, and the new bucket must hold the entries of those hashes already.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the new bucket id
+	 */
+	public synchronized int split(int bucketId) {
+		int depth = getDepth(bucketId);
+		int newBucketId = bucketId | (1 << depth);
+		Map<Integer, Integer> newDepths = new ConcurrentHashMap<Integer, Integer>(depths);
+		newDepths.put(bucketId, depth + 1);
+		newDepths.put(newBucketId, depth + 1);
+		write(newDepths);
+		depths = newDepths;
+		return newBucketId;
+	}
+
+	/**
+	 * Gets the path of the directory file.
+	 *
+	 * @return the path
+	 */
+	private String getPath() {
+		return Constants.BUCKET_DIR + File.separator + Constants.BUCKET_DIRECTORY_FILE;
+	}
+
+	/**
+	 * Reads the directory file. Unlike a filter, the directory cannot be rebuilt, so an unreadable file is an error.
+	 */
+	private void read() {
+		File file = new File(getPath());
+		if (! file.exists()) {
+			return;
+		}
+
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (dis.readInt() != FILE_VERSION) {
+				throw new ArchiveException("Unknown version of the bucket directory " + getPath());
+			}
+			int rootBits = dis.readInt();
+			if (rootBits != Constants.BUCKET_NUM_BITS) {
+				throw new ArchiveException("The bucket directory " + getPath() + " was written with " + rootBits + " bucket bits");
+			}
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++) {
+				int bucketId = dis.readInt();
+				depths.put(bucketId, dis.readInt());
+			}
+			logger.info("Read the depths of " + count + " split bucket(s)");
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (dis != null) {
+					dis.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the directory file.
+	 * The directory is written to a temporary file which then replaces the old directory file.
+	 *
+	 * @param depths the depths of the split buckets
+	 */
+	private void write(Map<Integer, Integer> depths) {
+		String path = getPath();
+		String tempPath = path + ".tmp";
+		FileOutputStream fos = null;
+
+		try {
+			fos = new FileOutputStream(tempPath);
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			dos.writeInt(FILE_VERSION);
+			dos.writeInt(Constants.BUCKET_NUM_BITS);
+			dos.writeInt(depths.size());
+			for (Map.Entry<Integer, Integer> entry : depths.entrySet()) {
+				dos.writeInt(entry.getKey());
+				dos.writeInt(entry.getValue());
+			}
+			dos.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (fos != null) {
+					fos.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+				throw new ArchiveException(e);
+			}
+		}
+
+		try {
+			Files.move(Paths.get(tempPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		}
+	}
+}
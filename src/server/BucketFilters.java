@@ -0,0 +1,203 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import entities.BloomFilter;
+import entities.BucketIndex;
+import exceptions.ArchiveException;
+
+/**
+ * The Bloom filters of the buckets. They are small enough to be kept resident for all the buckets.
+ *
+ * A filter is persisted next to the bucket's index snapshot, by the checkpoint that writes the snapshot.
+ * It is written before the snapshot, so the persisted filter always covers the snapshot.
+ * The entries of the index journal are added to the filter when it is loaded.
+ */
+public class BucketFilters {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(BucketFilters.class);
+
+	/** The version of the filter file format. */
+	private static final int FILE_VERSION = 1;
+
+	/** The bucket filters. */
+	private static BucketFilters bucketFilters;
+
+	/** The loaded filters. */
+	private Map<Integer, BloomFilter> filters = new ConcurrentHashMap<Integer, BloomFilter>();
+
+	/**
+	 * Gets the single instance of BucketFilters.
+	 *
+	 * @return single instance of BucketFilters
+	 */
+	public static synchronized BucketFilters getInstance() {
+		if (bucketFilters == null) {
+			bucketFilters = new BucketFilters();
+		}
+		return bucketFilters;
+	}
+
+	/**
+	 * Gets the loaded filter of the bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the filter, or null if it has not been loaded
+	 */
+	public BloomFilter get(int bucketId) {
+		return filters.get(bucketId);
+	}
+
+	/**
+	 * Sets the loaded filter of the bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @param filter the filter
+	 */
+	public void put(int bucketId, BloomFilter filter) {
+		filters.put(bucketId, filter);
+	}
+
+	/**
+	 * Creates an empty filter sized for the given number of entries.
+	 *
+	 * @param numEntries the number of entries
+	 * @return the bloom filter
+	 */
+	public BloomFilter create(int numEntries) {
+		return new BloomFilter(Math.max(numEntries, Constants.BLOOM_MIN_ENTRIES), Constants.BLOOM_BITS_PER_ENTRY, Constants.BLOOM_NUM_HASHES);
+	}
+
+	/**
+	 * Builds a filter of all the entries of the index. The filter is sized with room for the index to double.
+	 *
+	 * @param index the index
+	 * @return the bloom filter
+	 */
+	public BloomFilter build(BucketIndex index) {
+		BloomFilter filter = create(index.size() * 2);
+		addAll(filter, index);
+		return filter;
+	}
+
+	/**
+	 * Adds all the entries of the index to the filter.
+	 *
+	 * @param filter the filter
+	 * @param index the index
+	 */
+	public void addAll(BloomFilter filter, BucketIndex index) {
+		byte[] hash = new byte[Constants.HASH_LENGTH];
+		for (int slot = 0; slot < index.capacity(); slot++) {
+			if (index.isOccupied(slot)) {
+				index.getHash(slot, hash);
+				filter.add(hash);
+			}
+		}
+	}
+
+	/**
+	 * Gets the path of the filter file of the bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the filter path
+	 */
+	private String getFilterPath(int bucketId) {
+		return Constants.BUCKET_DIR + File.separator + bucketId + Constants.BLOOM_FILE_EXTENSION;
+	}
+
+	/**
+	 * Reads the persisted filter of the bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the filter, or null if the bucket has no (readable) filter file
+	 */
+	public BloomFilter read(int bucketId) {
+		File file = new File(getFilterPath(bucketId));
+		if (! file.exists()) {
+			return null;
+		}
+
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (dis.readInt() != FILE_VERSION) {
+				logger.warn("Ignoring the filter of bucket " + bucketId + " with an unknown version");
+				return null;
+			}
+			return BloomFilter.read(dis);
+		} catch (IOException e) {
+			// The filter can always be rebuilt from the index.
+			logger.warn("Ignoring the unreadable filter of bucket " + bucketId + ". Exception: " + e);
+			return null;
+		} finally {
+			try {
+				if (dis != null) {
+					dis.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+	}
+
+	/**
+	 * Persists the filter of the bucket.
+	 * The filter is written to a temporary file which then replaces the old filter file.
+	 *
+	 * @param bucketId the bucket id
+	 * @param filter the filter
+	 */
+	public void write(int bucketId, BloomFilter filter) {
+		String filterPath = getFilterPath(bucketId);
+		String tempPath = filterPath + ".tmp";
+		FileOutputStream fos = null;
+
+		try {
+			fos = new FileOutputStream(tempPath);
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			dos.writeInt(FILE_VERSION);
+			filter.write(dos);
+			dos.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (fos != null) {
+					fos.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+				throw new ArchiveException(e);
+			}
+		}
+
+		try {
+			Files.move(Paths.get(tempPath), Paths.get(filterPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import entities.Bucket;
+import entities.BucketIndex;
+
+/**
+ * The bucket splitter splits the buckets that have grown past BUCKET_SPLIT_THRESHOLD entries in two (see BucketDirectory), in the background.
+ *
+ * Like a compaction, a split only holds the bucket's lock to take the entries that move to the new bucket and, at the end, to switch over.
+ * The blocks of those entries are copied to a segment of the new bucket without the lock, while the bucket keeps taking requests.
+ * At the end, the entries that were added in the meantime are copied as well, the new bucket's index is checkpointed,
+ * the directory is switched, and the bucket's index is checkpointed without the moved entries. Their old blocks are left to the compactor.
+ * A split holds the compactor's copy lock throughout, so no compaction moves or deletes the blocks that are being copied.
+ */
+public class BucketSplitter extends Thread {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(BucketSplitter.class);
+
+	/** The bucket splitter. */
+	private static BucketSplitter bucketSplitter;
+
+	/** The buckets to split. */
+	private BlockingQueue<Integer> requests = new LinkedBlockingQueue<Integer>();
+
+	/** The buckets that have a split pending. */
+	private Set<Integer> pendingBuckets = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/** The data segments of the buckets. */
+	private DataSegments dataSegments = DataSegments.getInstance();
+
+	/** The directory of the split buckets. */
+	private BucketDirectory bucketDirectory = BucketDirectory.getInstance();
+
+	/** The number of buckets split. */
+	private AtomicLong bucketsSplit = new AtomicLong();
+
+	/** The number of entries moved to the new buckets. */
+	private AtomicLong entriesMoved = new AtomicLong();
+
+	/**
+	 * Gets the single instance of BucketSplitter.
+	 *
+	 * @return single instance of BucketSplitter
+	 */
+	public static synchronized BucketSplitter getInstance() {
+		if (bucketSplitter == null) {
+			bucketSplitter = new BucketSplitter();
+			bucketSplitter.setDaemon(true);
+			bucketSplitter.start();
+		}
+		return bucketSplitter;
+	}
+
+	/**
+	 * Instantiates a new bucket splitter.
+	 */
+	private BucketSplitter() {
+		super("BucketSplitter");
+	}
+
+	/**
+	 * Requests a split of the bucket.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	public void requestSplit(int bucketId) {
+		// Only one split of a bucket needs to be pending at a time.
+		if (pendingBuckets.add(bucketId)) {
+			requests.add(bucketId);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+		while (true) {
+			try {
+				int bucketId = requests.take();
+				try {
+					split(bucketId);
+				} catch (RuntimeException e) {
+					logger.error("Split of bucket " + bucketId + " failed. Exception: " + e);
+				} finally {
+					pendingBuckets.remove(bucketId);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Splits the bucket, unless it is below the threshold or cannot be split any further.
+	 *
+	 * @param bucketId the bucket id
+	 * @throws InterruptedException the interrupted exception
+	 */
+	void split(int bucketId) throws InterruptedException {
+		StorageManager storageManager = StorageManager.getInstance();
+		Compactor compactor = Compactor.getInstance();
+		Object lockObject = storageManager.getLock(bucketId);
+
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		List<Long> locations = new ArrayList<Long>();
+		List<Integer> dataLengths = new ArrayList<Integer>();
+		List<Integer> codecs = new ArrayList<Integer>();
+		int depth;
+		int newBucketId;
+		int outputSegment;
+
+		synchronized (compactor.getCopyLock()) {
+			synchronized (lockObject) {
+				depth = bucketDirectory.getDepth(bucketId);
+				BucketIndex index = storageManager.readIndex(bucketId).getIndex();
+				if (depth >= Constants.MAX_BUCKET_NUM_BITS || index.size() < Constants.BUCKET_SPLIT_THRESHOLD) {
+					return;
+				}
+				newBucketId = bucketDirectory.getSplitBucket(bucketId);
+				takeMovedEntries(index, depth, hashes, locations, dataLengths, codecs);
+				synchronized (storageManager.getLock(newBucketId)) {
+					storageManager.discard(newBucketId);
+					outputSegment = dataSegments.allocate(newBucketId);
+				}
+			}
+
+			long startTime = System.currentTimeMillis();
+			long[] newLocations = compactor.copy(bucketId, hashes, locations, dataLengths, codecs, newBucketId, outputSegment);
+
+			synchronized (lockObject) {
+				synchronized (storageManager.getLock(newBucketId)) {
+					Bucket bucket = storageManager.readIndex(bucketId);
+					BucketIndex index = bucket.getIndex();
+
+					// The copies of the entries that were deleted or re-added in the meantime are left behind.
+					Map<ByteBuffer, Integer> copies = new HashMap<ByteBuffer, Integer>();
+					for (int i = 0; i < hashes.size(); i++) {
+						copies.put(ByteBuffer.wrap(hashes.get(i)), i);
+					}
+					BucketIndex newIndex = new BucketIndex();
+					BucketIndex keptIndex = new BucketIndex();
+					List<byte[]> lateHashes = new ArrayList<byte[]>();
+					List<Long> lateLocations = new ArrayList<Long>();
+					List<Integer> lateDataLengths = new ArrayList<Integer>();
+					List<Integer> lateCodecs = new ArrayList<Integer>();
+					long movedBytes = 0;
+
+					byte[] hash = new byte[Constants.HASH_LENGTH];
+					for (int slot = 0; slot < index.capacity(); slot++) {
+						if (! index.isOccupied(slot)) {
+							continue;
+						}
+						index.getHash(slot, hash);
+						BucketIndex target = keptIndex;
+						long location = index.getOffset(slot);
+						if (BucketDirectory.getSplitBit(hash, depth) == 1) {
+							Integer copy = copies.get(ByteBuffer.wrap(hash));
+							if (copy != null && locations.get(copy) == location) {
+								location = newLocations[copy];
+							}
+							else {
+								lateHashes.add(hash.clone());
+								lateLocations.add(location);
+								lateDataLengths.add(index.getDataLength(slot));
+								lateCodecs.add(index.getCodec(slot));
+							}
+							target = newIndex;
+							movedBytes += index.getDataLength(slot);
+						}
+						target.put(hash, location, index.getDataLength(slot), index.getCodec(slot));
+						target.setRefCount(target.find(hash), index.getRefCount(slot));
+					}
+
+					// The entries that were added since the copy started are copied now. Moving an entry keeps its references.
+					if (! lateHashes.isEmpty()) {
+						long[] lateNewLocations = compactor.copy(bucketId, lateHashes, lateLocations, lateDataLengths, lateCodecs, newBucketId,
+								dataSegments.allocate(newBucketId));
+						for (int i = 0; i < lateHashes.size(); i++) {
+							newIndex.put(lateHashes.get(i), lateNewLocations[i], lateDataLengths.get(i), lateCodecs.get(i));
+						}
+					}
+
+					/**
+					 * The new bucket is on disk before the directory sends it any requests.
+					 * A crash before the bucket's own index is rewritten leaves the moved entries in it, where they are never looked up.
+					 */
+					Bucket newBucket = new Bucket(newBucketId);
+					newBucket.setIndex(newIndex);
+					storageManager.replaceIndex(newBucket);
+					bucketDirectory.split(bucketId);
+					bucket.setIndex(keptIndex);
+					storageManager.replaceIndex(bucket);
+					compactor.addGarbage(bucketId, movedBytes);
+
+					bucketsSplit.incrementAndGet();
+					entriesMoved.addAndGet(newIndex.size());
+					logger.info("Split bucket " + bucketId + " into " + bucketId + " (" + keptIndex.size() + " entries) and " + newBucketId + " ("
+							+ newIndex.size() + " entries, " + lateHashes.size() + " late) in " + (System.currentTimeMillis() - startTime) + " ms");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the entries of the index whose split bit at the given depth is 1.
+	 */
+	private void takeMovedEntries(BucketIndex index, int depth, List<byte[]> hashes, List<Long> locations, List<Integer> dataLengths, List<Integer> codecs) {
+		for (int slot = 0; slot < index.capacity(); slot++) {
+			if (index.isOccupied(slot)) {
+				byte[] hash = new byte[Constants.HASH_LENGTH];
+				index.getHash(slot, hash);
+				if (BucketDirectory.getSplitBit(hash, depth) == 1) {
+					hashes.add(hash);
+					locations.add(index.getOffset(slot));
+					dataLengths.add(index.getDataLength(slot));
+					codecs.add(index.getCodec(slot));
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BucketSplitter [bucketsSplit=" + bucketsSplit + ", entriesMoved=" + entriesMoved + "]";
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The pool of long-lived file channels of the bucket files, so that a batch does not open and close its files every time.
+ *
+ * A channel is opened for both reading and writing, so the read and write phases of a batch share it.
+ * Channels are reference counted: a channel is acquired for the duration of an operation and released afterwards.
+ * Once the number of open channels exceeds the file descriptor budget, the least recently used idle channels are closed.
+ *
+ * Positional reads and writes and force are safe to share between threads. Writes that use the channel's position hold the channel's monitor,
+ * as the buckets of a container share its channel.
+ * The channels that bypass the page cache (see DirectIO) are pooled separately from the plain channels of the same files.
+ *
+ * A file is opened outside the lock of the pool, so that a disk that stalls the opening of a file does not hold up the users of the other disks.
+ * The entry of the file is put in the pool first, and the users of the same file wait for the one that opens it.
+ */
+public class ChannelPool {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(ChannelPool.class);
+
+	/** The channel pool. */
+	private static ChannelPool channelPool;
+
+	/** The open channels, keyed by file path, in the least recently used order. */
+	private LinkedHashMap<String, PooledChannel> channels = new LinkedHashMap<String, PooledChannel>(16, 0.75f, true);
+
+	/** The channels that have been retired while they were in use. They are closed by their last release. */
+	private List<PooledChannel> retiredChannels = new ArrayList<PooledChannel>();
+
+	/** The suffix of the keys of the direct channels. */
+	private static final String DIRECT_SUFFIX = "#direct";
+
+	/** The maximum number of idle open channels. */
+	private int capacity;
+
+	/** The files that the pool has created and whose directory has not been synced since. */
+	private Set<String> createdFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** The number of times that a channel had to be opened. */
+	private AtomicLong opens = new AtomicLong();
+
+	/** The number of times that an open channel was reused. */
+	private AtomicLong reuses = new AtomicLong();
+
+	/**
+	 * Gets the single instance of ChannelPool.
+	 *
+	 * @return single instance of ChannelPool
+	 */
+	public static synchronized ChannelPool getInstance() {
+		if (channelPool == null) {
+			channelPool = new ChannelPool(Constants.MAX_OPEN_FILES);
+		}
+		return channelPool;
+	}
+
+	/**
+	 * Instantiates a new channel pool.
+	 *
+	 * @param capacity the file descriptor budget
+	 */
+	private ChannelPool(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Acquires the channel of the given file. Every acquire must be followed by a release.
+	 *
+	 * @param filePath the file path
+	 * @param create whether the file is created if it does not exist
+	 * @return the channel
+	 * @throws IOException Signals that an I/O exception has occurred, e.g. NoSuchFileException if the file does not exist and is not to be created.
+	 */
+	public FileChannel acquire(String filePath, boolean create) throws IOException {
+		OpenOption[] options = create
+				? new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE }
+				: new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+		return acquire(filePath, filePath, options);
+	}
+
+	/**
+	 * Acquires the direct channel of the given file. Every acquire must be followed by a releaseDirect.
+	 *
+	 * @param filePath the file path
+	 * @param create whether the file is created if it does not exist
+	 * @param directOption the direct open option
+	 * @return the channel
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public FileChannel acquireDirect(String filePath, boolean create, OpenOption directOption) throws IOException {
+		OpenOption[] options = create
+				? new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, directOption }
+				: new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, directOption };
+		return acquire(filePath + DIRECT_SUFFIX, filePath, options);
+	}
+
+	/**
+	 * Acquires the channel of the given key, opening it with the given options if it is not open.
+	 *
+	 * @param key the key of the channel
+	 * @param filePath the file path
+	 * @param options the open options
+	 * @return the channel
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private FileChannel acquire(String key, String filePath, OpenOption[] options) throws IOException {
+		PooledChannel pooledChannel;
+		synchronized (this) {
+			pooledChannel = channels.get(key);
+			if (pooledChannel != null) {
+				reuses.incrementAndGet();
+			}
+			else {
+				pooledChannel = new PooledChannel();
+				channels.put(key, pooledChannel);
+				opens.incrementAndGet();
+			}
+			pooledChannel.refCount++;
+		}
+
+		boolean opened = false;
+		try {
+			pooledChannel.open(filePath, options);
+			opened = true;
+		} finally {
+			synchronized (this) {
+				if (! opened) {
+					discard(key, pooledChannel);
+				}
+				evict();
+			}
+		}
+		return pooledChannel.channel;
+	}
+
+	/**
+	 * Drops a user of a channel that could not be opened. The entry is removed once it has no users left, unless another user has opened it.
+	 *
+	 * @param key the key of the channel
+	 * @param pooledChannel the pooled channel
+	 */
+	private void discard(String key, PooledChannel pooledChannel) {
+		if (--pooledChannel.refCount > 0 || pooledChannel.channel != null) {
+			return;
+		}
+		if (channels.get(key) == pooledChannel) {
+			channels.remove(key);
+		}
+		retiredChannels.remove(pooledChannel);
+	}
+
+	/**
+	 * Syncs the file of the channel to disk. If the pool created the file, its directory is synced too, so that the file itself survives a crash.
+	 *
+	 * @param filePath the file path
+	 * @param channel the channel that was acquired
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void force(String filePath, FileChannel channel) throws IOException {
+		channel.force(false);
+		if (createdFiles.remove(filePath)) {
+			try {
+				syncDirectory(filePath);
+			} catch (IOException e) {
+				createdFiles.add(filePath);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Syncs the directory of the given file, so that its entry of the file is durable.
+	 *
+	 * @param filePath the file path
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void syncDirectory(String filePath) throws IOException {
+		FileChannel directory = FileChannel.open(Paths.get(filePath).toAbsolutePath().getParent(), StandardOpenOption.READ);
+		try {
+			directory.force(true);
+		} finally {
+			directory.close();
+		}
+	}
+
+	/**
+	 * Releases the channel of the given file.
+	 *
+	 * @param filePath the file path
+	 * @param channel the channel that was acquired
+	 */
+	public synchronized void release(String filePath, FileChannel channel) {
+		release(filePath, channel, false);
+	}
+
+	/**
+	 * Releases the direct channel of the given file.
+	 *
+	 * @param filePath the file path
+	 * @param channel the channel that was acquired
+	 */
+	public synchronized void releaseDirect(String filePath, FileChannel channel) {
+		release(filePath, channel, true);
+	}
+
+	/**
+	 * Releases a channel of the given file.
+	 *
+	 * @param filePath the file path
+	 * @param channel the channel that was acquired
+	 * @param direct whether the channel is the direct channel
+	 */
+	private void release(String filePath, FileChannel channel, boolean direct) {
+		PooledChannel pooledChannel = channels.get(direct ? filePath + DIRECT_SUFFIX : filePath);
+		if (pooledChannel != null && pooledChannel.channel == channel) {
+			pooledChannel.refCount--;
+			evict();
+			return;
+		}
+		
+		// The channel has been retired (e.g. its file was deleted) while it was in use.
+		for (Iterator<PooledChannel> iter = retiredChannels.iterator(); iter.hasNext();) {
+			pooledChannel = iter.next();
+			if (pooledChannel.channel == channel) {
+				if (--pooledChannel.refCount == 0) {
+					iter.remove();
+					close(channel);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Retires the channel of the given file, e.g. before the file is deleted or replaced.
+	 * The channel is closed now if it is idle. Otherwise, it is closed by its last release.
+	 *
+	 * @param filePath the file path
+	 */
+	public synchronized void retire(String filePath) {
+		createdFiles.remove(filePath);
+		retireKey(filePath);
+		retireKey(filePath + DIRECT_SUFFIX);
+	}
+
+	/**
+	 * Retires the channel of the given key.
+	 *
+	 * @param key the key of the channel
+	 */
+	private void retireKey(String key) {
+		PooledChannel pooledChannel = channels.remove(key);
+		if (pooledChannel == null) {
+			return;
+		}
+		if (pooledChannel.refCount == 0) {
+			close(pooledChannel.channel);
+		}
+		else {
+			retiredChannels.add(pooledChannel);
+		}
+	}
+
+	/**
+	 * Closes the least recently used idle channels until the pool fits in its budget.
+	 */
+	private void evict() {
+		Iterator<PooledChannel> iter = channels.values().iterator();
+		while (channels.size() > capacity && iter.hasNext()) {
+			PooledChannel pooledChannel = iter.next();
+			if (pooledChannel.refCount == 0) {
+				iter.remove();
+				close(pooledChannel.channel);
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel.
+	 *
+	 * @param channel the channel
+	 */
+	private void close(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ChannelPool [open=" + channels.size() + ", capacity=" + capacity + ", opens=" + opens + ", reuses=" + reuses + "]";
+	}
+
+	/**
+	 * An open channel and the number of its users.
+	 */
+	class PooledChannel {
+
+		/** The channel, or null until it has been opened. */
+		private volatile FileChannel channel;
+
+		/** The number of users that have acquired the channel. */
+		private int refCount;
+
+		/**
+		 * Opens the channel, unless another user has opened it already. The users of the file wait here, outside the lock of the pool.
+		 *
+		 * @param filePath the file path
+		 * @param options the open options
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		synchronized void open(String filePath, OpenOption[] options) throws IOException {
+			if (channel != null) {
+				return;
+			}
+			Path path = Paths.get(filePath);
+			boolean created = Arrays.asList(options).contains(StandardOpenOption.CREATE) && ! Files.exists(path);
+			channel = FileChannel.open(path, options);
+			if (created) {
+				createdFiles.add(filePath);
+			}
+		}
+	}
+}
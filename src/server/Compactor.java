@@ -0,0 +1,430 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import entities.BucketIndex;
+import exceptions.ArchiveException;
+
+/**
+ * The compactor reclaims the space of the deleted blocks. It rewrites the live blocks of the segments that are mostly garbage into a new segment
+ * and deletes the old segments.
+ *
+ * The compaction of a bucket only holds the bucket's lock to take the live entries of its segments and, at the end, to move them over:
+ * the moved entries are journaled and the journal is synced before the old segments are deleted. Copying the blocks is done without the lock,
+ * which is safe because a segment that is not active is never written to. An entry that was deleted or rewritten in the meantime is not moved.
+ * The copy is throttled to COMPACTION_RATE, so the compactor does not starve the foreground I/O.
+ *
+ * The compactor only looks at the buckets in which blocks have been deleted since its last pass.
+ * A compaction holds the copy lock, which keeps it apart from the splits of the buckets (see BucketSplitter) that copy blocks as well.
+ */
+public class Compactor extends Thread {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(Compactor.class);
+
+	/** The compactor. */
+	private static Compactor compactor;
+
+	/** The number of bytes deleted from each bucket since the bucket was last looked at. */
+	private Map<Integer, Long> garbage = new HashMap<Integer, Long>();
+
+	/** The data segments of the buckets. */
+	private DataSegments dataSegments = DataSegments.getInstance();
+
+	/** The pool of the open bucket files. */
+	private ChannelPool channelPool = ChannelPool.getInstance();
+
+	/** The lock that keeps the compactions and the splits apart, so that no blocks are deleted while they are being copied. */
+	private final Object copyLock = new Object();
+
+	/** The number of segments deleted. */
+	private AtomicLong segmentsDeleted = new AtomicLong();
+
+	/** The number of bytes of live blocks copied. */
+	private AtomicLong bytesCopied = new AtomicLong();
+
+	/** The number of bytes of the deleted segments. */
+	private AtomicLong bytesReclaimed = new AtomicLong();
+
+	/**
+	 * Gets the single instance of Compactor.
+	 *
+	 * @return single instance of Compactor
+	 */
+	public static synchronized Compactor getInstance() {
+		if (compactor == null) {
+			compactor = new Compactor();
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+		return compactor;
+	}
+
+	/**
+	 * Instantiates a new compactor.
+	 */
+	private Compactor() {
+		super("Compactor");
+	}
+
+	/**
+	 * Gets the copy lock.
+	 *
+	 * @return the copy lock
+	 */
+	Object getCopyLock() {
+		return copyLock;
+	}
+
+	/**
+	 * Records the blocks deleted from the bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @param bytes the number of bytes deleted
+	 */
+	public synchronized void addGarbage(int bucketId, long bytes) {
+		Long total = garbage.get(bucketId);
+		garbage.put(bucketId, (total != null ? total : 0) + bytes);
+	}
+
+	/**
+	 * Takes the buckets that have deleted blocks.
+	 *
+	 * @return the bucket ids
+	 */
+	private synchronized List<Integer> takeBuckets() {
+		List<Integer> bucketIds = new ArrayList<Integer>(garbage.keySet());
+		garbage.clear();
+		return bucketIds;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(Constants.COMPACTION_PERIOD);
+				for (int bucketId : takeBuckets()) {
+					try {
+						compact(bucketId);
+					} catch (RuntimeException e) {
+						logger.error("Compaction of bucket " + bucketId + " failed. Exception: " + e);
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Compacts the segments of the bucket that are mostly garbage.
+	 *
+	 * @param bucketId the bucket id
+	 * @throws InterruptedException the interrupted exception
+	 */
+	void compact(int bucketId) throws InterruptedException {
+		synchronized (copyLock) {
+			compactSegments(bucketId);
+		}
+	}
+
+	/**
+	 * Compacts the segments of the bucket that are mostly garbage. The caller must hold the copy lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private void compactSegments(int bucketId) throws InterruptedException {
+		StorageManager storageManager = StorageManager.getInstance();
+		Object lockObject = storageManager.getLock(bucketId);
+
+		List<Integer> victims = new ArrayList<Integer>();
+		boolean more = false;
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		List<Long> locations = new ArrayList<Long>();
+		List<Integer> dataLengths = new ArrayList<Integer>();
+		List<Integer> codecs = new ArrayList<Integer>();
+		int outputSegment;
+
+		synchronized (lockObject) {
+			BucketIndex index = storageManager.readIndex(bucketId).getIndex();
+			int activeSegment = dataSegments.getActiveSegment(bucketId);
+
+			Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+			for (int slot = 0; slot < index.capacity(); slot++) {
+				if (index.isOccupied(slot)) {
+					int segmentId = DataSegments.getSegmentId(index.getOffset(slot));
+					Long live = liveBytes.get(segmentId);
+					liveBytes.put(segmentId, (live != null ? live : 0) + index.getDataLength(slot));
+				}
+			}
+
+			// Pick the segments that are mostly garbage, as long as their live blocks fit in a single new segment.
+			List<Integer> emptySegments = new ArrayList<Integer>();
+			long totalLive = 0;
+			for (int segmentId : dataSegments.getSegmentIds(bucketId)) {
+				if (segmentId == activeSegment) {
+					continue;
+				}
+				Long live = liveBytes.get(segmentId);
+				long length = dataSegments.getSegmentLength(bucketId, segmentId);
+				if (live == null) {
+					emptySegments.add(segmentId);
+				}
+				else if (length - live >= length * Constants.COMPACTION_GARBAGE_RATIO) {
+					if (totalLive + live > Constants.DATA_SEGMENT_SIZE) {
+						more = true;
+						continue;
+					}
+					victims.add(segmentId);
+					totalLive += live;
+				}
+			}
+
+			// The segments without live blocks are deleted right away.
+			if (! emptySegments.isEmpty()) {
+				deleteSegments(bucketId, emptySegments);
+			}
+			if (victims.isEmpty()) {
+				return;
+			}
+
+			for (int slot = 0; slot < index.capacity(); slot++) {
+				if (index.isOccupied(slot) && victims.contains(DataSegments.getSegmentId(index.getOffset(slot)))) {
+					byte[] hash = new byte[Constants.HASH_LENGTH];
+					index.getHash(slot, hash);
+					hashes.add(hash);
+					locations.add(index.getOffset(slot));
+					dataLengths.add(index.getDataLength(slot));
+					codecs.add(index.getCodec(slot));
+				}
+			}
+			outputSegment = dataSegments.allocate(bucketId);
+		}
+
+		long startTime = System.currentTimeMillis();
+		long[] newLocations = copy(bucketId, hashes, locations, dataLengths, codecs, bucketId, outputSegment);
+
+		synchronized (lockObject) {
+			BucketIndex index = storageManager.readIndex(bucketId).getIndex();
+			IndexJournal.RecordBatch records = new IndexJournal.RecordBatch();
+			for (int i = 0; i < hashes.size(); i++) {
+				byte[] hash = hashes.get(i);
+				int slot = index.find(hash);
+				if (slot >= 0 && index.getOffset(slot) == locations.get(i)) {
+					// The blocks are copied as they are stored, so they keep their codec.
+					index.put(hash, newLocations[i], dataLengths.get(i), codecs.get(i));
+					records.add(IndexJournal.RECORD_MOVE, hash, newLocations[i], dataLengths.get(i), codecs.get(i));
+				}
+			}
+			IndexJournal.getInstance().append(bucketId, records);
+			deleteSegments(bucketId, victims);
+		}
+		logger.info("Compacted " + victims.size() + " segment(s) of bucket " + bucketId + " into segment " + outputSegment
+				+ " in " + (System.currentTimeMillis() - startTime) + " ms");
+		
+		if (more) {
+			// The rest of the segments that are mostly garbage are compacted by the next pass.
+			addGarbage(bucketId, 0);
+		}
+	}
+
+	/**
+	 * Copies the given blocks to the end of the output segment, in the order of their locations, at no more than COMPACTION_RATE.
+	 * The output segment is written in the current record format, and synced before returning.
+	 * When the blocks do not fit in a segment (an extent of a container), the copy goes on in further segments of the output bucket.
+	 *
+	 * @param bucketId the bucket id of the blocks
+	 * @param hashes the hashes of the blocks
+	 * @param locations the locations of the blocks
+	 * @param dataLengths the lengths of the blocks
+	 * @param codecs the codecs of the blocks
+	 * @param outputBucketId the bucket id of the output segment
+	 * @param outputSegment the output segment id
+	 * @return the new locations of the blocks
+	 * @throws InterruptedException the interrupted exception
+	 */
+	long[] copy(int bucketId, List<byte[]> hashes, List<Long> locations, List<Integer> dataLengths, List<Integer> codecs, int outputBucketId,
+			int outputSegment) throws InterruptedException {
+		long[] newLocations = new long[locations.size()];
+		String outputPath = null;
+		FileChannel output = null;
+		long base = 0;
+		String inputPath = null;
+		FileChannel input = null;
+		int inputSegment = -1;
+		long inputBase = 0;
+		long position = 0;
+		long copied = 0;
+		long startTime = System.currentTimeMillis();
+		boolean framed = Constants.RECORD_FORMAT == Constants.RECORD_FORMAT_FRAMED;
+		int headerLength = framed ? DataRecords.HEADER_LENGTH : 0;
+
+		try {
+
+			// The entries were taken in the slot order. Copy them in the order of their locations, so that the source is read sequentially.
+			Integer[] order = new Integer[locations.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			final List<Long> sortKeys = locations;
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				public int compare(Integer i1, Integer i2) {
+					long l1 = sortKeys.get(i1);
+					long l2 = sortKeys.get(i2);
+					return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+				}
+			});
+
+			for (int i : order) {
+				long location = locations.get(i);
+				int segmentId = DataSegments.getSegmentId(location);
+				if (segmentId != inputSegment) {
+					if (input != null) {
+						channelPool.release(inputPath, input);
+						input = null;
+					}
+					inputSegment = segmentId;
+					inputPath = dataSegments.getSegmentPath(bucketId, segmentId);
+					inputBase = dataSegments.getSegmentBase(bucketId, segmentId);
+					input = channelPool.acquire(inputPath, false);
+				}
+
+				if (output != null && position + headerLength + dataLengths.get(i) > dataSegments.getSegmentCapacity()) {
+					// The output segment is full.
+					FileChannel full = output;
+					output = null;
+					closeOutput(full, outputPath, outputBucketId, outputSegment, position);
+					outputSegment = dataSegments.allocate(outputBucketId);
+				}
+				if (output == null) {
+					dataSegments.create(outputBucketId, outputSegment);
+					outputPath = dataSegments.getSegmentPath(outputBucketId, outputSegment);
+					base = dataSegments.getSegmentBase(outputBucketId, outputSegment);
+					output = channelPool.acquire(outputPath, true);
+					copied += position;
+					position = 0;
+					if (framed) {
+						position += writeFully(output, DataRecords.segmentHeader(), base + position);
+					}
+				}
+
+				ByteBuffer buffer = ByteBuffer.allocate(dataLengths.get(i));
+				long offset = inputBase + DataSegments.getSegmentOffset(location);
+				while (buffer.hasRemaining()) {
+					if (input.read(buffer, offset + buffer.position()) < 0) {
+						throw new ArchiveException("Read beyond the end of " + inputPath);
+					}
+				}
+				buffer.flip();
+				if (framed) {
+					position += writeFully(output, DataRecords.recordHeader(hashes.get(i), buffer, codecs.get(i)), base + position);
+				}
+				newLocations[i] = DataSegments.toLocation(outputSegment, position);
+				position += writeFully(output, buffer, base + position);
+
+				// Throttle the copy.
+				long ahead = (copied + position) * 1000 / Constants.COMPACTION_RATE - (System.currentTimeMillis() - startTime);
+				if (ahead > 0) {
+					Thread.sleep(ahead);
+				}
+			}
+
+			if (output != null) {
+				FileChannel last = output;
+				output = null;
+				closeOutput(last, outputPath, outputBucketId, outputSegment, position);
+			}
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			if (input != null) {
+				channelPool.release(inputPath, input);
+			}
+			if (output != null) {
+				channelPool.release(outputPath, output);
+			}
+		}
+
+		bytesCopied.addAndGet(copied + position);
+		return newLocations;
+	}
+
+	/**
+	 * Records the length of an output segment of a copy, syncs it and releases its channel.
+	 * The copies must be on disk before the entries are moved to them.
+	 *
+	 * @param output the channel of the output segment
+	 * @param outputPath the path of the output segment
+	 * @param outputBucketId the bucket id of the output segment
+	 * @param outputSegment the output segment id
+	 * @param length the length of the output segment
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void closeOutput(FileChannel output, String outputPath, int outputBucketId, int outputSegment, long length) throws IOException {
+		try {
+			dataSegments.setSegmentLength(outputBucketId, outputSegment, length);
+			channelPool.force(outputPath, output);
+		} finally {
+			channelPool.release(outputPath, output);
+		}
+	}
+
+	/**
+	 * Writes the whole buffer to the channel at the given position.
+	 *
+	 * @param channel the channel
+	 * @param buffer the buffer
+	 * @param position the position
+	 * @return the number of bytes written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	/**
+	 * Deletes the given segments of the bucket. Their blocks must no longer be referenced by the index.
+	 * The journal is synced first, so that the records that dropped the references are durable before the data is gone.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentIds the segment ids
+	 */
+	private void deleteSegments(int bucketId, List<Integer> segmentIds) {
+		IndexJournal.getInstance().sync(bucketId);
+		for (int segmentId : segmentIds) {
+			long length = dataSegments.delete(bucketId, segmentId);
+			segmentsDeleted.incrementAndGet();
+			bytesReclaimed.addAndGet(length);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Compactor [segmentsDeleted=" + segmentsDeleted + ", bytesCopied=" + bytesCopied + ", bytesReclaimed=" + bytesReclaimed + "]";
+	}
+}
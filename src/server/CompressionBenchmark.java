@@ -0,0 +1,134 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the compression throughput against the compression ratio of the block codec for each compression level.
+ * Usage: CompressionBenchmark [block size] [file...]
+ * The files are cut into blocks of the given size. Without files, it runs on generated text-like and random blocks.
+ */
+public class CompressionBenchmark {
+
+	/** The number of bytes that each measurement processes at least. */
+	private static final long BYTES_PER_RUN = 256L * 1024 * 1024;
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void main(String[] args) throws IOException {
+		int blockSize = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+
+		if (args.length > 1) {
+			List<byte[]> blocks = new ArrayList<byte[]>();
+			for (int i = 1; i < args.length; i++) {
+				byte[] file = Files.readAllBytes(new File(args[i]).toPath());
+				for (int offset = 0; offset + blockSize <= file.length; offset += blockSize) {
+					byte[] block = new byte[blockSize];
+					System.arraycopy(file, offset, block, 0, blockSize);
+					blocks.add(block);
+				}
+			}
+			run("files", blocks);
+		}
+		else {
+			run("text", generateText(blockSize, 1024));
+			run("random", generateRandom(blockSize, 1024));
+		}
+	}
+
+	/**
+	 * Runs the benchmark on the blocks for each compression level.
+	 *
+	 * @param name the name of the data set
+	 * @param blocks the blocks
+	 */
+	private static void run(String name, List<byte[]> blocks) {
+		System.out.println(name + ": " + blocks.size() + " block(s)");
+		System.out.println("level  compress MB/s  decompress MB/s  ratio  stored compressed");
+		for (int level : new int[] {1, 3, 6, 9}) {
+			BlockCodec codec = new BlockCodec(level);
+			long inBytes = 0;
+			long outBytes = 0;
+			int compressed = 0;
+			List<ByteBuffer> stored = new ArrayList<ByteBuffer>();
+
+			long startTime = System.nanoTime();
+			for (int round = 0; inBytes < BYTES_PER_RUN || round == 0; round++) {
+				for (byte[] block : blocks) {
+					ByteBuffer buffer = codec.compress(block);
+					inBytes += block.length;
+					if (round == 0) {
+						stored.add(buffer);
+						outBytes += buffer != null ? buffer.remaining() : block.length;
+						compressed += buffer != null ? 1 : 0;
+					}
+				}
+			}
+			double compressTime = (System.nanoTime() - startTime) / 1e9;
+
+			long decompressedBytes = 0;
+			startTime = System.nanoTime();
+			while (compressed > 0 && decompressedBytes < BYTES_PER_RUN) {
+				for (ByteBuffer buffer : stored) {
+					if (buffer != null) {
+						decompressedBytes += codec.decompress(buffer.array(), 0, buffer.remaining()).length;
+					}
+				}
+			}
+			double decompressTime = (System.nanoTime() - startTime) / 1e9;
+
+			long totalBytes = 0;
+			for (byte[] block : blocks) {
+				totalBytes += block.length;
+			}
+			System.out.println(String.format("%5d  %13.0f  %15.0f  %5.3f  %d/%d", level, inBytes / compressTime / 1e6,
+					decompressedBytes > 0 ? decompressedBytes / decompressTime / 1e6 : 0.0, outBytes / (double) totalBytes, compressed, blocks.size()));
+		}
+	}
+
+	/**
+	 * Generates text-like blocks: random words from a small vocabulary, with numbers.
+	 */
+	private static List<byte[]> generateText(int blockSize, int count) {
+		String[] words = {"archive", "storage", "bucket", "segment", "index", "journal", "block", "the", "of", "and", "data", "server"};
+		Random random = new Random(1);
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder();
+			while (sb.length() < blockSize) {
+				sb.append(words[random.nextInt(words.length)]).append(' ');
+				if (random.nextInt(8) == 0) {
+					sb.append(random.nextInt(100000)).append(' ');
+				}
+			}
+			blocks.add(sb.substring(0, blockSize).getBytes());
+		}
+		return blocks;
+	}
+
+	/**
+	 * Generates random (incompressible) blocks.
+	 */
+	private static List<byte[]> generateRandom(int blockSize, int count) {
+		Random random = new Random(1);
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			byte[] block = new byte[blockSize];
+			random.nextBytes(block);
+			blocks.add(block);
+		}
+		return blocks;
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The container files of the data segments in the container layout (see SEGMENT_LAYOUT_CONTAINERS).
+ *
+ * A container is a file of CONTAINER_EXTENTS extents of the same size in a data directory. Each extent holds one segment of a bucket of that directory,
+ * so a data directory has a few large files instead of a file per segment of every bucket.
+ * The containers only hold the data segments. The index snapshot, the index journal and the filter of a bucket stay in files of their own.
+ * A container is preallocated to its full length when it is created. Java cannot reserve the blocks, so the file is sparse until the extents are written.
+ *
+ * The allocation table at the start of a container has an entry for each extent: the bucket id and the segment id that it holds (-1 if it is free),
+ * and the number of bytes written to it. The length of an extent is written after the data of every batch, so it is synced along with the data.
+ * Like the file of a segment, an extent is freed when its segment is deleted, and it is then reused by the next segment of the directory.
+ */
+public class Containers {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(Containers.class);
+
+	/** The magic number at the start of a container. */
+	private static final long MAGIC = 0x434f4e5441494e52L;
+
+	/** The version of the container format. */
+	private static final int VERSION = 1;
+
+	/** The length of the container header: the magic, the version, the number of extents and the extent size. */
+	private static final int HEADER_LENGTH = 32;
+
+	/** The length of an entry of the allocation table: the bucket id, the segment id and the length. */
+	private static final int ENTRY_LENGTH = 16;
+
+	/** The containers. */
+	private static Containers containers;
+
+	/** The extents of the segments of each bucket, by segment id. */
+	private Map<Integer, ConcurrentSkipListMap<Integer, Extent>> bucketExtents = new ConcurrentHashMap<Integer, ConcurrentSkipListMap<Integer, Extent>>();
+
+	/** The free extents of each data directory. */
+	private List<Deque<Extent>> freeExtents = new ArrayList<Deque<Extent>>();
+
+	/** The number of containers of each data directory. */
+	private int[] containerCounts = new int[Constants.DATA_DIRS.length];
+
+	/** The channel pool. */
+	private ChannelPool channelPool = ChannelPool.getInstance();
+
+	/**
+	 * An extent of a container.
+	 */
+	public static class Extent {
+
+		/** The path of the container. */
+		private final String path;
+
+		/** The index of the extent in the container. */
+		private final int index;
+
+		/** The bucket id, or -1 if the extent is free. */
+		private int bucketId = -1;
+
+		/** The segment id. */
+		private int segmentId = -1;
+
+		/** The number of bytes written to the extent. */
+		private volatile long length;
+
+		/**
+		 * Instantiates a new extent.
+		 *
+		 * @param path the path of the container
+		 * @param index the index of the extent
+		 */
+		Extent(String path, int index) {
+			this.path = path;
+			this.index = index;
+		}
+
+		/**
+		 * Gets the path of the container.
+		 *
+		 * @return the path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Gets the position of the extent in the container.
+		 *
+		 * @return the base
+		 */
+		public long getBase() {
+			return getTableLength() + index * getExtentSize();
+		}
+
+		/**
+		 * Gets the number of bytes written to the extent.
+		 *
+		 * @return the length
+		 */
+		public long getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * Gets the single instance of Containers.
+	 *
+	 * @return single instance of Containers
+	 */
+	public static synchronized Containers getInstance() {
+		if (containers == null) {
+			containers = new Containers();
+			containers.load();
+		}
+		return containers;
+	}
+
+	/**
+	 * Gets the size of an extent, which is DATA_SEGMENT_SIZE aligned for direct I/O.
+	 *
+	 * @return the extent size
+	 */
+	public static long getExtentSize() {
+		return DirectIO.align(Constants.DATA_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Gets the length of the container header with the allocation table, which is aligned for direct I/O.
+	 *
+	 * @return the table length
+	 */
+	private static long getTableLength() {
+		return DirectIO.align(HEADER_LENGTH + (long) ENTRY_LENGTH * Constants.CONTAINER_EXTENTS);
+	}
+
+	/**
+	 * Gets the path of a container.
+	 *
+	 * @param disk the data directory (see DataSegments.getDisk)
+	 * @param containerId the container id
+	 * @return the path
+	 */
+	private static String getContainerPath(int disk, int containerId) {
+		return Constants.DATA_DIRS[disk] + File.separator + containerId + Constants.CONTAINER_FILE_EXTENSION;
+	}
+
+	/**
+	 * Gets the extent of a segment.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return the extent, or null if the segment does not exist
+	 */
+	public Extent get(int bucketId, int segmentId) {
+		Map<Integer, Extent> extents = bucketExtents.get(bucketId);
+		return extents != null ? extents.get(segmentId) : null;
+	}
+
+	/**
+	 * Gets the ids of the segments of the bucket, in ascending order.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the segment ids
+	 */
+	public List<Integer> getSegmentIds(int bucketId) {
+		ConcurrentSkipListMap<Integer, Extent> extents = bucketExtents.get(bucketId);
+		return extents != null ? new ArrayList<Integer>(extents.keySet()) : new ArrayList<Integer>();
+	}
+
+	/**
+	 * Gets the ids of the buckets that have segments.
+	 *
+	 * @return the bucket ids
+	 */
+	public Set<Integer> getBucketIds() {
+		return bucketExtents.keySet();
+	}
+
+	/**
+	 * Allocates an extent to the segment, in a container of the bucket's data directory. A new container is created when there is no free extent.
+	 * The extent of a segment that has one already is returned as it is.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return the extent
+	 */
+	public synchronized Extent allocate(int bucketId, int segmentId) {
+		Extent extent = get(bucketId, segmentId);
+		if (extent != null) {
+			return extent;
+		}
+
+		int disk = DataSegments.getDisk(bucketId);
+		if (freeExtents.get(disk).isEmpty()) {
+			create(disk);
+		}
+		extent = freeExtents.get(disk).poll();
+		extent.bucketId = bucketId;
+		extent.segmentId = segmentId;
+		extent.length = 0;
+		writeEntry(extent);
+
+		ConcurrentSkipListMap<Integer, Extent> extents = bucketExtents.get(bucketId);
+		if (extents == null) {
+			extents = new ConcurrentSkipListMap<Integer, Extent>();
+			bucketExtents.put(bucketId, extents);
+		}
+		extents.put(segmentId, extent);
+		return extent;
+	}
+
+	/**
+	 * Frees the extent of a segment.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return the number of bytes that were written to the extent
+	 */
+	public synchronized long free(int bucketId, int segmentId) {
+		Map<Integer, Extent> extents = bucketExtents.get(bucketId);
+		Extent extent = extents != null ? extents.remove(segmentId) : null;
+		if (extent == null) {
+			return 0;
+		}
+		if (extents.isEmpty()) {
+			bucketExtents.remove(bucketId);
+		}
+
+		long length = extent.length;
+		extent.bucketId = -1;
+		extent.segmentId = -1;
+		extent.length = 0;
+		writeEntry(extent);
+		freeExtents.get(DataSegments.getDisk(bucketId)).add(extent);
+		return length;
+	}
+
+	/**
+	 * Sets the number of bytes written to the extent of a segment, and writes it to the allocation table.
+	 * Only the writer of the segment sets its length.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @param length the length
+	 */
+	public void setLength(int bucketId, int segmentId, long length) {
+		Extent extent = get(bucketId, segmentId);
+		if (extent == null) {
+			throw new ArchiveException("Segment " + segmentId + " of bucket " + bucketId + " has no extent");
+		}
+		if (length > getExtentSize()) {
+			throw new ArchiveException("Segment " + segmentId + " of bucket " + bucketId + " overflows its extent: " + length);
+		}
+		extent.length = length;
+		writeEntry(extent);
+	}
+
+	/**
+	 * Writes the entry of the extent to the allocation table of its container.
+	 *
+	 * @param extent the extent
+	 */
+	private void writeEntry(Extent extent) {
+		ByteBuffer entry = ByteBuffer.allocate(ENTRY_LENGTH);
+		entry.putInt(extent.bucketId).putInt(extent.segmentId).putLong(extent.length).flip();
+		long position = HEADER_LENGTH + (long) ENTRY_LENGTH * extent.index;
+
+		FileChannel channel = null;
+		try {
+			channel = channelPool.acquire(extent.path, false);
+			while (entry.hasRemaining()) {
+				channel.write(entry, position + entry.position());
+			}
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			if (channel != null) {
+				channelPool.release(extent.path, channel);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new container in the data directory, with all its extents free.
+	 * The container is synced before any of its extents is handed out.
+	 *
+	 * @param disk the data directory
+	 */
+	private void create(int disk) {
+		int containerId = containerCounts[disk];
+		String path = getContainerPath(disk, containerId);
+		File dir = new File(Constants.DATA_DIRS[disk]);
+		if (! dir.exists()) {
+			dir.mkdirs();
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(path, "rw");
+			ByteBuffer table = ByteBuffer.allocate((int) getTableLength());
+			table.putLong(MAGIC).putInt(VERSION).putInt(Constants.CONTAINER_EXTENTS).putLong(getExtentSize());
+			table.position(HEADER_LENGTH);
+			for (int i = 0; i < Constants.CONTAINER_EXTENTS; i++) {
+				table.putInt(-1).putInt(-1).putLong(0);
+			}
+			raf.write(table.array());
+			raf.setLength(getTableLength() + Constants.CONTAINER_EXTENTS * getExtentSize());
+			raf.getFD().sync();
+			ChannelPool.syncDirectory(path);
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+
+		for (int i = 0; i < Constants.CONTAINER_EXTENTS; i++) {
+			freeExtents.get(disk).add(new Extent(path, i));
+		}
+		containerCounts[disk]++;
+		logger.info("Created the container " + path);
+	}
+
+	/**
+	 * Reads the allocation tables of the containers of all the data directories.
+	 */
+	private void load() {
+		for (int disk = 0; disk < Constants.DATA_DIRS.length; disk++) {
+			freeExtents.add(new ArrayDeque<Extent>());
+			// The containers of a directory are numbered from 0.
+			while (new File(getContainerPath(disk, containerCounts[disk])).exists()) {
+				readTable(getContainerPath(disk, containerCounts[disk]), disk);
+				containerCounts[disk]++;
+			}
+			if (containerCounts[disk] > 0) {
+				logger.info("Read the allocation tables of " + containerCounts[disk] + " container(s) in " + Constants.DATA_DIRS[disk]);
+			}
+		}
+	}
+
+	/**
+	 * Reads the allocation table of a container.
+	 *
+	 * @param path the path of the container
+	 * @param disk the data directory
+	 */
+	private void readTable(String path, int disk) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(path, "r");
+			byte[] bytes = new byte[(int) getTableLength()];
+			raf.readFully(bytes);
+			ByteBuffer table = ByteBuffer.wrap(bytes);
+			if (table.getLong() != MAGIC || table.getInt() != VERSION) {
+				throw new ArchiveException(path + " is not a container");
+			}
+			int extents = table.getInt();
+			long extentSize = table.getLong();
+			if (extents != Constants.CONTAINER_EXTENTS || extentSize != getExtentSize()) {
+				throw new ArchiveException("The container " + path + " was written with " + extents + " extents of " + extentSize + " bytes");
+			}
+
+			table.position(HEADER_LENGTH);
+			for (int i = 0; i < extents; i++) {
+				Extent extent = new Extent(path, i);
+				extent.bucketId = table.getInt();
+				extent.segmentId = table.getInt();
+				extent.length = table.getLong();
+				if (extent.bucketId < 0) {
+					freeExtents.get(disk).add(extent);
+					continue;
+				}
+				ConcurrentSkipListMap<Integer, Extent> bucketSegments = bucketExtents.get(extent.bucketId);
+				if (bucketSegments == null) {
+					bucketSegments = new ConcurrentSkipListMap<Integer, Extent>();
+					bucketExtents.put(extent.bucketId, bucketSegments);
+				}
+				bucketSegments.put(extent.segmentId, extent);
+			}
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		int free = 0;
+		for (Deque<Extent> extents : freeExtents) {
+			free += extents.size();
+		}
+		int containerCount = 0;
+		for (int count : containerCounts) {
+			containerCount += count;
+		}
+		return "Containers [containers=" + containerCount + ", freeExtents=" + free + "]";
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CRC32C (Castagnoli) checksum, table-driven.
+ * Use create(), which returns the JDK's java.util.zip.CRC32C when the runtime has it (Java 9 and later), since that one uses the CPU's CRC32C instruction.
+ */
+public class Crc32c implements Checksum {
+
+	/** The reversed Castagnoli polynomial. */
+	private static final int POLYNOMIAL = 0x82F63B78;
+
+	/** The CRC of each byte value. */
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < TABLE.length; i++) {
+			int crc = i;
+			for (int k = 0; k < 8; k++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	/** The JDK's implementation, or null if the runtime does not have it. */
+	private static final Class<?> JDK_CRC32C = findJdkCrc32c();
+
+	/** The current CRC (inverted). */
+	private int crc = 0xffffffff;
+
+	/**
+	 * Creates a CRC32C checksum.
+	 *
+	 * @return the checksum
+	 */
+	public static Checksum create() {
+		if (JDK_CRC32C != null) {
+			try {
+				return (Checksum) JDK_CRC32C.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				// Fall back to the table-driven one.
+			}
+		}
+		return new Crc32c();
+	}
+
+	/**
+	 * Finds the JDK's implementation.
+	 *
+	 * @return the class, or null
+	 */
+	private static Class<?> findJdkCrc32c() {
+		try {
+			return Class.forName("java.util.zip.CRC32C");
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#update(int)
+	 */
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#update(byte[], int, int)
+	 */
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		for (int i = off; i < off + len; i++) {
+			c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+		}
+		crc = c;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#getValue()
+	 */
+	public long getValue() {
+		return ~crc & 0xffffffffL;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.zip.Checksum#reset()
+	 */
+	public void reset() {
+		crc = 0xffffffff;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+import utils.Constants;
+import entities.BucketIndex;
+
+/**
+ * The layout of the framed data segments, which can be scanned without the index (see RecoveryScanner).
+ *
+ * A framed segment starts with SEGMENT_MAGIC (8 bytes). Each block is preceded by a header:
+ * magic (4 bytes), hash (20 bytes), stored length with the codec in its top bits as in the index (4 bytes),
+ * and the CRC32C of the hash, the length word and the stored block (4 bytes).
+ * The index points at the block itself, right after its header, so the blocks are read the same way as in a raw segment.
+ */
+public class DataRecords {
+
+	/** The magic number at the start of a framed segment. */
+	public static final long SEGMENT_MAGIC = 0x4152435345473031L;
+
+	/** The length of the segment header. */
+	public static final int SEGMENT_HEADER_LENGTH = 8;
+
+	/** The magic number at the start of a record header. */
+	public static final int RECORD_MAGIC = 0x424c4b31;
+
+	/** The length of a record header. */
+	public static final int HEADER_LENGTH = 4 + Constants.HASH_LENGTH + 4 + 4;
+
+	/**
+	 * Creates the header of a framed segment.
+	 *
+	 * @return the buffer
+	 */
+	public static ByteBuffer segmentHeader() {
+		ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+		buffer.putLong(SEGMENT_MAGIC);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Creates the header of a block.
+	 *
+	 * @param hash the hash
+	 * @param block the block as it is stored. Its position is not changed.
+	 * @param codec the codec
+	 * @return the buffer
+	 */
+	public static ByteBuffer recordHeader(byte[] hash, ByteBuffer block, int codec) {
+		int lengthWord = (codec << BucketIndex.CODEC_SHIFT) | block.remaining();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		buffer.putInt(RECORD_MAGIC);
+		buffer.put(hash);
+		buffer.putInt(lengthWord);
+
+		Checksum checksum = Crc32c.create();
+		checksum.update(buffer.array(), 4, Constants.HASH_LENGTH + 4);
+		checksum.update(block.array(), block.arrayOffset() + block.position(), block.remaining());
+		buffer.putInt((int) checksum.getValue());
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,393 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The data segments of the buckets. The data of a bucket is appended to its active segment, which rolls over to a new segment once it is full.
+ * Only the active segment is ever appended to, so the other segments are immutable until the compactor deletes them.
+ *
+ * Segment 0 is the file &lt;id&gt;.data, which is also where the data of a bucket that predates the segments lives.
+ * Segment n &gt; 0 is the file &lt;id&gt;.&lt;n&gt;.data.
+ *
+ * The location of a block, which the index stores as its offset, packs the segment id above the offset in the segment.
+ * So the location of a block in segment 0 is its plain file offset.
+ *
+ * In the container layout (see Containers), a segment is an extent of a container file of the bucket's data directory instead of a file of its own.
+ * Its blocks are at the same offsets from the start of the extent (its base), and its length is kept in the container's allocation table.
+ * The callers go through getSegmentPath, getSegmentBase and getSegmentLength, so they handle both layouts alike.
+ *
+ * The active segment of a bucket is only changed under the bucket's lock.
+ */
+public class DataSegments {
+
+	/** The number of bits of a location that hold the offset in the segment. */
+	private static final int OFFSET_BITS = 40;
+
+	/** The largest segment id that fits in a location of the index. */
+	private static final int MAX_SEGMENT_ID = (1 << 16) - 1;
+
+	/** The data segments. */
+	private static DataSegments dataSegments;
+
+	/** The active segment of each bucket. */
+	private Map<Integer, Integer> activeSegments = new ConcurrentHashMap<Integer, Integer>();
+
+	/** The next segment id of each bucket. Segment ids are never reused. */
+	private Map<Integer, Integer> nextSegmentIds = new ConcurrentHashMap<Integer, Integer>();
+	
+	/** Whether the segments that have been looked at are framed, keyed by bucket id and segment id. */
+	private Map<String, Boolean> framedSegments = new ConcurrentHashMap<String, Boolean>();
+
+	/** The containers, in the container layout. */
+	private Containers containers;
+
+	/**
+	 * Gets the single instance of DataSegments.
+	 *
+	 * @return single instance of DataSegments
+	 */
+	public static synchronized DataSegments getInstance() {
+		if (dataSegments == null) {
+			dataSegments = new DataSegments();
+			if (Constants.SEGMENT_LAYOUT == Constants.SEGMENT_LAYOUT_CONTAINERS) {
+				dataSegments.containers = Containers.getInstance();
+			}
+		}
+		return dataSegments;
+	}
+
+	/**
+	 * Gets the location of the given offset of a segment.
+	 *
+	 * @param segmentId the segment id
+	 * @param offset the offset in the segment
+	 * @return the location
+	 */
+	public static long toLocation(int segmentId, long offset) {
+		return ((long) segmentId << OFFSET_BITS) | offset;
+	}
+
+	/**
+	 * Gets the segment id of a location.
+	 *
+	 * @param location the location
+	 * @return the segment id
+	 */
+	public static int getSegmentId(long location) {
+		return (int) (location >>> OFFSET_BITS);
+	}
+
+	/**
+	 * Gets the offset in the segment of a location.
+	 *
+	 * @param location the location
+	 * @return the offset
+	 */
+	public static long getSegmentOffset(long location) {
+		return location & ((1L << OFFSET_BITS) - 1);
+	}
+
+	/**
+	 * Gets the path of the file of a segment of the bucket. In the container layout, it is the path of the segment's container.
+	 * The path of a segment that does not exist is the path of a file that does not exist.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return the segment path
+	 */
+	public String getSegmentPath(int bucketId, int segmentId) {
+		if (containers != null) {
+			Containers.Extent extent = containers.get(bucketId, segmentId);
+			if (extent != null) {
+				return extent.getPath();
+			}
+		}
+		if (segmentId == 0) {
+			return getDataDir(bucketId) + File.separator + bucketId + Constants.DATASTORE_FILE_EXTENSION;
+		}
+		return getDataDir(bucketId) + File.separator + bucketId + "." + segmentId + Constants.DATASTORE_FILE_EXTENSION;
+	}
+
+	/**
+	 * Gets the position of the segment in its file, which is 0 unless the segment is in a container.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return the base of the segment
+	 */
+	public long getSegmentBase(int bucketId, int segmentId) {
+		if (containers != null) {
+			Containers.Extent extent = containers.get(bucketId, segmentId);
+			if (extent != null) {
+				return extent.getBase();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the number of bytes written to the segment.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return the length, 0 if the segment does not exist
+	 */
+	public long getSegmentLength(int bucketId, int segmentId) {
+		if (containers != null) {
+			Containers.Extent extent = containers.get(bucketId, segmentId);
+			return extent != null ? extent.getLength() : 0;
+		}
+		return new File(getSegmentPath(bucketId, segmentId)).length();
+	}
+
+	/**
+	 * Gets the number of bytes that fit in a segment. A file can grow past DATA_SEGMENT_SIZE, an extent cannot.
+	 *
+	 * @return the capacity
+	 */
+	public long getSegmentCapacity() {
+		return containers != null ? Containers.getExtentSize() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Checks whether the segment exists.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return true, if it exists
+	 */
+	public boolean exists(int bucketId, int segmentId) {
+		if (containers != null) {
+			return containers.get(bucketId, segmentId) != null;
+		}
+		return new File(getSegmentPath(bucketId, segmentId)).exists();
+	}
+
+	/**
+	 * Creates the segment before it is written to, unless it exists. In the container layout, this allocates its extent.
+	 * The file of a segment is created by its first write.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 */
+	public void create(int bucketId, int segmentId) {
+		if (containers != null) {
+			containers.allocate(bucketId, segmentId);
+			return;
+		}
+		File dir = new File(getDataDir(bucketId));
+		if (! dir.exists()) {
+			dir.mkdirs();
+		}
+	}
+
+	/**
+	 * Records the number of bytes written to the segment, after a write to it.
+	 * A file keeps its length itself. The length of an extent is written to the allocation table of its container,
+	 * so it has to be synced along with the data.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @param length the length
+	 */
+	public void setSegmentLength(int bucketId, int segmentId, long length) {
+		if (containers != null) {
+			containers.setLength(bucketId, segmentId, length);
+		}
+	}
+
+	/**
+	 * Deletes the segment. Its blocks must no longer be referenced by the index.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return the number of bytes that the segment held
+	 */
+	public long delete(int bucketId, int segmentId) {
+		framedSegments.remove(bucketId + "." + segmentId);
+		if (containers != null) {
+			// The container stays open and mapped for the other extents.
+			return containers.free(bucketId, segmentId);
+		}
+
+		String segmentPath = getSegmentPath(bucketId, segmentId);
+		File file = new File(segmentPath);
+		long length = file.length();
+		ChannelPool.getInstance().retire(segmentPath);
+		MappedDataFiles.getInstance().unmap(segmentPath);
+		if (file.exists() && ! file.delete()) {
+			throw new ArchiveException("Unable to delete " + segmentPath);
+		}
+		return length;
+	}
+
+	/**
+	 * Gets the index of the data directory (disk) of the bucket in DATA_DIRS.
+	 * The placement only depends on the bucket id and the number of directories. Adding a directory moves the buckets whose placement changes,
+	 * so their segments have to be moved along.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the disk
+	 */
+	public static int getDisk(int bucketId) {
+		int disks = Constants.DATA_DIRS.length;
+		return (bucketId % disks + disks) % disks;
+	}
+
+	/**
+	 * Gets the data directory of the bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the data directory
+	 */
+	public static String getDataDir(int bucketId) {
+		return Constants.DATA_DIRS[getDisk(bucketId)];
+	}
+
+	/**
+	 * Gets the ids of the segments of the bucket that exist on disk, in ascending order.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the segment ids
+	 */
+	public List<Integer> getSegmentIds(int bucketId) {
+		if (containers != null) {
+			return containers.getSegmentIds(bucketId);
+		}
+		List<Integer> segmentIds = new ArrayList<Integer>();
+		String[] fileNames = new File(getDataDir(bucketId)).list();
+		if (fileNames == null) {
+			return segmentIds;
+		}
+
+		String prefix = bucketId + ".";
+		for (String fileName : fileNames) {
+			if (fileName.equals(bucketId + Constants.DATASTORE_FILE_EXTENSION)) {
+				segmentIds.add(0);
+			}
+			else if (fileName.startsWith(prefix) && fileName.endsWith(Constants.DATASTORE_FILE_EXTENSION)) {
+				try {
+					segmentIds.add(Integer.parseInt(fileName.substring(prefix.length(), fileName.length() - Constants.DATASTORE_FILE_EXTENSION.length())));
+				} catch (NumberFormatException e) {
+					// Not a segment of this bucket.
+				}
+			}
+		}
+		Collections.sort(segmentIds);
+		return segmentIds;
+	}
+
+	/**
+	 * Checks whether the segment is framed (see DataRecords), i.e. it starts with the segment magic.
+	 * A segment that is empty or does not exist is not framed (yet).
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentId the segment id
+	 * @return true, if the segment is framed
+	 */
+	public boolean isFramed(int bucketId, int segmentId) {
+		String key = bucketId + "." + segmentId;
+		Boolean framed = framedSegments.get(key);
+		if (framed != null) {
+			return framed;
+		}
+
+		long length = getSegmentLength(bucketId, segmentId);
+		if (length == 0) {
+			// The format of an empty segment is decided by its first write.
+			return false;
+		}
+		RandomAccessFile raf = null;
+		try {
+			framed = false;
+			if (length >= DataRecords.SEGMENT_HEADER_LENGTH) {
+				raf = new RandomAccessFile(getSegmentPath(bucketId, segmentId), "r");
+				raf.seek(getSegmentBase(bucketId, segmentId));
+				framed = raf.readLong() == DataRecords.SEGMENT_MAGIC;
+			}
+		} catch (IOException e) {
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				throw new ArchiveException(e);
+			}
+		}
+		framedSegments.put(key, framed);
+		return framed;
+	}
+
+	/**
+	 * Gets the active segment of the bucket. After a restart, it is the newest segment on disk.
+	 * The caller must hold the bucket's lock. The first call of a bucket is made under the same lock as allocate,
+	 * which the compactor calls without the bucket's lock, so that a segment id is never handed out twice.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the active segment id
+	 */
+	public int getActiveSegment(int bucketId) {
+		Integer segmentId = activeSegments.get(bucketId);
+		if (segmentId != null) {
+			return segmentId;
+		}
+		synchronized (this) {
+			segmentId = activeSegments.get(bucketId);
+			if (segmentId == null) {
+				List<Integer> segmentIds = getSegmentIds(bucketId);
+				segmentId = segmentIds.isEmpty() ? 0 : segmentIds.get(segmentIds.size() - 1);
+				activeSegments.put(bucketId, segmentId);
+				if (! nextSegmentIds.containsKey(bucketId)) {
+					nextSegmentIds.put(bucketId, segmentId + 1);
+				}
+			}
+			return segmentId;
+		}
+	}
+
+	/**
+	 * Rolls the bucket over to a new active segment.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the new active segment id
+	 */
+	public int rollOver(int bucketId) {
+		int segmentId = allocate(bucketId);
+		activeSegments.put(bucketId, segmentId);
+		return segmentId;
+	}
+
+	/**
+	 * Allocates a new segment id of the bucket, e.g. for the output of a compaction.
+	 * The writer of the bucket allocates under the bucket's lock, a copy of the compactor without it.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the segment id
+	 */
+	public synchronized int allocate(int bucketId) {
+		getActiveSegment(bucketId);
+		int segmentId = nextSegmentIds.get(bucketId);
+		if (segmentId > MAX_SEGMENT_ID) {
+			throw new ArchiveException("Bucket " + bucketId + " has run out of segment ids");
+		}
+		nextSegmentIds.put(bucketId, segmentId + 1);
+		return segmentId;
+	}
+}
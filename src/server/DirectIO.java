@@ -0,0 +1,231 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The direct I/O (O_DIRECT) of the large blocks, which bypasses the page cache.
+ *
+ * Direct I/O requires the file position, the length and the address of the buffer to be aligned to DIRECT_IO_ALIGNMENT.
+ * A block (with its record header in a framed segment) is written at an aligned position of the segment and padded with zeros to an aligned length.
+ * The gap before it, up to the aligned position, is left as a hole, which reads as zeros.
+ * A block is read from the aligned positions around it, so any block can be read with direct I/O, wherever it was written.
+ * The transfers go through an aligned buffer of each thread, in steps of at most DIRECT_IO_BUFFER_SIZE.
+ *
+ * The direct open option (com.sun.nio.file.ExtendedOpenOption.DIRECT) and aligned buffers (ByteBuffer.alignedSlice) are only available from Java 10,
+ * so they are looked up by reflection. Without them, all blocks go through the page cache.
+ */
+public class DirectIO {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(DirectIO.class);
+
+	/** The direct I/O. */
+	private static DirectIO directIO;
+
+	/** The direct open option, or null if it is not available. */
+	private OpenOption directOption;
+
+	/** The method that slices an aligned buffer out of a direct buffer. */
+	private Method alignedSlice;
+
+	/** The aligned buffer of each thread. */
+	private ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+	/** The number of blocks written. */
+	private AtomicLong writes = new AtomicLong();
+
+	/** The number of blocks read. */
+	private AtomicLong reads = new AtomicLong();
+
+	/**
+	 * Gets the single instance of DirectIO.
+	 *
+	 * @return single instance of DirectIO
+	 */
+	public static synchronized DirectIO getInstance() {
+		if (directIO == null) {
+			directIO = new DirectIO();
+		}
+		return directIO;
+	}
+
+	/**
+	 * Instantiates a new direct I/O.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private DirectIO() {
+		if (Constants.DIRECT_IO_MIN_SIZE < 0) {
+			return;
+		}
+		try {
+			Class optionClass = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+			directOption = (OpenOption) Enum.valueOf(optionClass, "DIRECT");
+		} catch (ReflectiveOperationException e) {
+			logger.warn("Direct I/O is not available on this runtime. All blocks go through the page cache. Exception: " + e);
+		}
+	}
+
+	/**
+	 * Checks whether a block of the given stored length is written and read with direct I/O.
+	 *
+	 * @param dataLength the stored length of the block
+	 * @return true, if direct I/O is used
+	 */
+	public boolean isDirect(int dataLength) {
+		return directOption != null && dataLength >= Constants.DIRECT_IO_MIN_SIZE;
+	}
+
+	/**
+	 * Rounds the position up to the alignment.
+	 *
+	 * @param position the position
+	 * @return the aligned position
+	 */
+	public static long align(long position) {
+		return (position + Constants.DIRECT_IO_ALIGNMENT - 1) / Constants.DIRECT_IO_ALIGNMENT * Constants.DIRECT_IO_ALIGNMENT;
+	}
+
+	/**
+	 * Writes a record to the file at the given position, padded with zeros to an aligned length.
+	 *
+	 * @param filePath the file path
+	 * @param position the position, which must be aligned
+	 * @param record the parts of the record. Their positions are not changed.
+	 * @return the position after the padding
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long write(String filePath, long position, ByteBuffer... record) throws IOException {
+		ChannelPool channelPool = ChannelPool.getInstance();
+		FileChannel channel = channelPool.acquireDirect(filePath, true, directOption);
+		try {
+			ByteBuffer buffer = getBuffer();
+			buffer.clear();
+			for (ByteBuffer part : record) {
+				ByteBuffer source = part.duplicate();
+				while (source.hasRemaining()) {
+					if (! buffer.hasRemaining()) {
+						position = flush(channel, buffer, position);
+					}
+					int length = Math.min(buffer.remaining(), source.remaining());
+					ByteBuffer slice = source.duplicate();
+					slice.limit(slice.position() + length);
+					buffer.put(slice);
+					source.position(source.position() + length);
+				}
+			}
+			// Pad the record to an aligned length.
+			while (buffer.position() % Constants.DIRECT_IO_ALIGNMENT != 0) {
+				buffer.put((byte) 0);
+			}
+			position = flush(channel, buffer, position);
+		} finally {
+			channelPool.releaseDirect(filePath, channel);
+		}
+		writes.incrementAndGet();
+		return position;
+	}
+
+	/**
+	 * Writes the contents of the buffer at the given position and clears the buffer.
+	 *
+	 * @param channel the channel
+	 * @param buffer the buffer
+	 * @param position the position
+	 * @return the position after the contents
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		buffer.clear();
+		return position;
+	}
+
+	/**
+	 * Reads a block of the file.
+	 *
+	 * @param filePath the file path
+	 * @param offset the offset of the block
+	 * @param dataLength the length of the block
+	 * @return the block
+	 * @throws IOException Signals that an I/O exception has occurred, e.g. NoSuchFileException if the file does not exist.
+	 */
+	public byte[] read(String filePath, long offset, int dataLength) throws IOException {
+		ChannelPool channelPool = ChannelPool.getInstance();
+		FileChannel channel = channelPool.acquireDirect(filePath, false, directOption);
+		byte[] data = new byte[dataLength];
+		try {
+			ByteBuffer buffer = getBuffer();
+			int alignment = Constants.DIRECT_IO_ALIGNMENT;
+			long position = offset / alignment * alignment;
+			long end = offset + dataLength;
+			while (position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), align(end) - position));
+				// A read stops short only at the end of the file, which need not be aligned.
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position + buffer.position());
+					if (read <= 0 || buffer.position() % alignment != 0) {
+						break;
+					}
+				}
+				long bufferEnd = position + buffer.position();
+				long from = Math.max(position, offset);
+				long to = Math.min(bufferEnd, end);
+				if (to < end && buffer.hasRemaining()) {
+					throw new EOFException("Read beyond the end of " + filePath + " at " + to);
+				}
+				buffer.position((int) (from - position));
+				buffer.get(data, (int) (from - offset), (int) (to - from));
+				position = bufferEnd;
+			}
+		} finally {
+			channelPool.releaseDirect(filePath, channel);
+		}
+		reads.incrementAndGet();
+		return data;
+	}
+
+	/**
+	 * Gets the aligned buffer of the thread.
+	 *
+	 * @return the buffer
+	 */
+	private ByteBuffer getBuffer() {
+		ByteBuffer buffer = buffers.get();
+		if (buffer == null) {
+			int alignment = Constants.DIRECT_IO_ALIGNMENT;
+			try {
+				buffer = (ByteBuffer) alignedSlice.invoke(ByteBuffer.allocateDirect(Constants.DIRECT_IO_BUFFER_SIZE + alignment), alignment);
+			} catch (ReflectiveOperationException e) {
+				throw new ArchiveException(e);
+			}
+			buffer.limit(Constants.DIRECT_IO_BUFFER_SIZE / alignment * alignment);
+			buffer = buffer.slice();
+			buffers.set(buffer);
+		}
+		return buffer;
+	}
+
+	@Override
+	public String toString() {
+		return "DirectIO [available=" + (directOption != null) + ", writes=" + writes + ", reads=" + reads + "]";
+	}
+}
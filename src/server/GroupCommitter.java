@@ -0,0 +1,234 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import entities.Task;
+import exceptions.ArchiveException;
+
+/**
+ * The group committer holds back the acknowledgements of the writes until the files that they modified have been synced to disk.
+ *
+ * In the batch mode, the committer syncs as soon as there is a pending commit. All the commits that arrive (from any bucket) while a sync is running
+ * are synced together by the next one, so the number of syncs adapts to the load.
+ * In the interval mode, the committer syncs the commits of every interval together.
+ * Either way, a file is synced once per group and the acknowledgements of the group are released together.
+ *
+ * There is a committer for each data directory (disk), which commits the batches of the buckets of that directory,
+ * so that a slow disk only holds back the acknowledgements of its own buckets.
+ * A file that has been created since it was last synced has its directory synced too (see ChannelPool.force), so that the file survives a crash.
+ */
+public class GroupCommitter extends Thread {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(GroupCommitter.class);
+
+	/** The group committers of the data directories. */
+	private static List<GroupCommitter> groupCommitters;
+
+	/** The data directory whose batches the committer commits. */
+	private int disk;
+
+	/** The pending commits. */
+	private BlockingQueue<Commit> commitQueue = new LinkedBlockingQueue<Commit>();
+
+	/** The number of group syncs. */
+	private AtomicLong groups = new AtomicLong();
+
+	/** The number of commits. */
+	private AtomicLong commits = new AtomicLong();
+
+	/** The number of file syncs. */
+	private AtomicLong fileSyncs = new AtomicLong();
+
+	/** The total time spent in syncing (in nanoseconds). */
+	private AtomicLong syncTime = new AtomicLong();
+
+	/** The total time that the acknowledgements were held back (in nanoseconds). */
+	private AtomicLong ackDelay = new AtomicLong();
+
+	/**
+	 * Gets the group committer of a data directory.
+	 *
+	 * @param disk the data directory (see DataSegments.getDisk)
+	 * @return the group committer
+	 */
+	public static synchronized GroupCommitter getInstance(int disk) {
+		if (groupCommitters == null) {
+			groupCommitters = new ArrayList<GroupCommitter>();
+			for (int i = 0; i < Constants.DATA_DIRS.length; i++) {
+				GroupCommitter groupCommitter = new GroupCommitter(i);
+				groupCommitter.setDaemon(true);
+				groupCommitter.start();
+				groupCommitters.add(groupCommitter);
+			}
+		}
+		return groupCommitters.get(disk);
+	}
+
+	/**
+	 * Instantiates a new group committer.
+	 *
+	 * @param disk the data directory
+	 */
+	private GroupCommitter(int disk) {
+		super("GroupCommitter-" + disk);
+		this.disk = disk;
+	}
+
+	/**
+	 * Commits the writes of a batch. The status list is sent to the router once the given files have been synced.
+	 *
+	 * @param filePaths the paths of the files that the batch modified
+	 * @param statusList the status list
+	 */
+	public void commit(List<String> filePaths, List<? extends Task> statusList) {
+		commitQueue.add(new Commit(filePaths, statusList));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+		List<Commit> group = new ArrayList<Commit>();
+		while (true) {
+			try {
+				if (Constants.DURABILITY_MODE == Constants.DURABILITY_INTERVAL) {
+					Thread.sleep(Constants.DURABILITY_SYNC_INTERVAL);
+				}
+				else {
+					// Wait for a commit, then take everything that has piled up behind it.
+					Commit commit = commitQueue.poll(1, TimeUnit.SECONDS);
+					if (commit == null) {
+						continue;
+					}
+					group.add(commit);
+				}
+				commitQueue.drainTo(group);
+				if (group.isEmpty()) {
+					continue;
+				}
+
+				try {
+					sync(group);
+				} catch (ArchiveException e) {
+					// The writes are not known to be durable. Report them as failed instead of holding the clients forever.
+					logger.error("Group commit failed. Exception: " + e);
+					for (Commit commit : group) {
+						for (Task task : commit.statusList) {
+							task.setStatus(false);
+						}
+					}
+				}
+				release(group);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (RemoteException e) {
+				e.printStackTrace();
+			} finally {
+				group.clear();
+			}
+		}
+	}
+
+	/**
+	 * Syncs every file modified by the group once.
+	 *
+	 * @param group the group
+	 */
+	private void sync(List<Commit> group) {
+		Set<String> filePaths = new LinkedHashSet<String>();
+		for (Commit commit : group) {
+			filePaths.addAll(commit.filePaths);
+		}
+
+		ChannelPool channelPool = ChannelPool.getInstance();
+		long startTime = System.nanoTime();
+		for (String filePath : filePaths) {
+			FileChannel channel = null;
+			try {
+				channel = channelPool.acquire(filePath, false);
+				channelPool.force(filePath, channel);
+			} catch (NoSuchFileException e) {
+				// A journal that has been checkpointed in the meantime. The checkpoint has synced the snapshot that replaces it.
+				continue;
+			} catch (IOException e) {
+				logger.error(e);
+				throw new ArchiveException(e);
+			} finally {
+				if (channel != null) {
+					channelPool.release(filePath, channel);
+				}
+			}
+		}
+		syncTime.addAndGet(System.nanoTime() - startTime);
+		fileSyncs.addAndGet(filePaths.size());
+		groups.incrementAndGet();
+	}
+
+	/**
+	 * Releases the acknowledgements of the group.
+	 *
+	 * @param group the group
+	 */
+	private void release(List<Commit> group) throws RemoteException {
+		long now = System.nanoTime();
+		for (Commit commit : group) {
+			StorageServerImpl.getInstance().processResponse(commit.statusList);
+			ackDelay.addAndGet(now - commit.time);
+		}
+		commits.addAndGet(group.size());
+	}
+
+	@Override
+	public String toString() {
+		long numGroups = Math.max(groups.get(), 1);
+		long numCommits = Math.max(commits.get(), 1);
+		return "GroupCommitter [disk=" + disk + ", groups=" + groups + ", commits=" + commits + ", commitsPerGroup=" + (commits.get() / (double) numGroups)
+				+ ", fileSyncs=" + fileSyncs + ", avgSyncMs=" + (syncTime.get() / 1e6 / numGroups)
+				+ ", avgAckDelayMs=" + (ackDelay.get() / 1e6 / numCommits) + "]";
+	}
+
+	/**
+	 * The writes of a batch that wait to be synced.
+	 */
+	class Commit {
+
+		/** The paths of the files modified by the batch. */
+		private List<String> filePaths;
+
+		/** The status list to be sent once the files are synced. */
+		private List<? extends Task> statusList;
+
+		/** The time at which the commit was requested (in nanoseconds). */
+		private long time;
+
+		/**
+		 * Instantiates a new commit.
+		 *
+		 * @param filePaths the file paths
+		 * @param statusList the status list
+		 */
+		Commit(List<String> filePaths, List<? extends Task> statusList) {
+			this.filePaths = filePaths;
+			this.statusList = statusList;
+			this.time = System.nanoTime();
+		}
+	}
+}
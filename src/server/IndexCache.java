@@ -0,0 +1,197 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.Constants;
+import entities.Bucket;
+
+/**
+ * The in-memory cache of the bucket indexes, so that the hot buckets are not read and deserialized from disk for every batch.
+ * The cache is bounded by a memory budget and evicts the least recently used buckets first.
+ *
+ * The cached bucket is the same object that the StorageManager modifies in place (write-through),
+ * so evicting a bucket only drops it from memory: every update is already in the index journal.
+ */
+public class IndexCache {
+
+	/** The index cache. */
+	private static IndexCache indexCache;
+
+	/** The cached buckets in the least recently used order. */
+	private LinkedHashMap<Integer, Bucket> buckets;
+
+	/** The size (in bytes) of each cached bucket, as accounted when it was last put in the cache. */
+	private Map<Integer, Long> sizes;
+
+	/** The total size of the cached buckets in bytes. */
+	private long totalSize;
+
+	/** The memory budget of the cache in bytes. */
+	private long capacity;
+
+	/** The number of lookups that found the bucket in the cache. */
+	private AtomicLong hits = new AtomicLong();
+
+	/** The number of lookups that did not find the bucket in the cache. */
+	private AtomicLong misses = new AtomicLong();
+
+	/** The number of buckets evicted from the cache. */
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Gets the single instance of IndexCache.
+	 *
+	 * @return single instance of IndexCache
+	 */
+	public static synchronized IndexCache getInstance() {
+		if (indexCache == null) {
+			indexCache = new IndexCache(Constants.INDEX_CACHE_SIZE);
+		}
+		return indexCache;
+	}
+
+	/**
+	 * Instantiates a new index cache.
+	 *
+	 * @param capacity the memory budget in bytes
+	 */
+	private IndexCache(long capacity) {
+		this.capacity = capacity;
+		// Access ordered, so that the eldest entry is the least recently used bucket.
+		this.buckets = new LinkedHashMap<Integer, Bucket>(16, 0.75f, true);
+		this.sizes = new HashMap<Integer, Long>();
+	}
+
+	/**
+	 * Gets the cached bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the bucket, or null if it is not cached
+	 */
+	public synchronized Bucket get(int bucketId) {
+		Bucket bucket = buckets.get(bucketId);
+		if (bucket != null) {
+			hits.incrementAndGet();
+		}
+		else {
+			misses.incrementAndGet();
+		}
+		return bucket;
+	}
+
+	/**
+	 * Gets the cached bucket without counting it as a lookup, e.g. to keep a resident bucket up to date with a write that did not need the index.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the bucket, or null if it is not cached
+	 */
+	public synchronized Bucket peek(int bucketId) {
+		return buckets.get(bucketId);
+	}
+
+	/**
+	 * Puts the bucket in the cache, or re-accounts its size if it is already cached.
+	 * Least recently used buckets are evicted until the cache fits in its budget.
+	 *
+	 * @param bucket the bucket
+	 */
+	public synchronized void put(Bucket bucket) {
+		remove(bucket.getId());
+
+		long size = bucket.estimateSize();
+		// A bucket that does not fit in the budget by itself is not cached at all.
+		if (size > capacity) {
+			return;
+		}
+
+		buckets.put(bucket.getId(), bucket);
+		sizes.put(bucket.getId(), size);
+		totalSize += size;
+
+		Iterator<Map.Entry<Integer, Bucket>> iter = buckets.entrySet().iterator();
+		while (totalSize > capacity && iter.hasNext()) {
+			int eldest = iter.next().getKey();
+			iter.remove();
+			totalSize -= sizes.remove(eldest);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Invalidates the cached bucket, e.g. when its in-memory state could have diverged from the disk.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	public synchronized void invalidate(int bucketId) {
+		remove(bucketId);
+	}
+
+	/**
+	 * Removes the bucket from the cache.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	private void remove(int bucketId) {
+		if (buckets.remove(bucketId) != null) {
+			totalSize -= sizes.remove(bucketId);
+		}
+	}
+
+	/**
+	 * Gets the number of cache hits.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of cache misses.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of evictions.
+	 *
+	 * @return the evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the total size of the cached buckets in bytes.
+	 *
+	 * @return the size
+	 */
+	public synchronized long getSize() {
+		return totalSize;
+	}
+
+	/**
+	 * Gets the memory budget of the cache in bytes.
+	 *
+	 * @return the capacity
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "IndexCache [buckets=" + buckets.size() + ", size=" + totalSize + ", capacity=" + capacity
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+}
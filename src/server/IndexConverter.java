@@ -0,0 +1,68 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+
+/**
+ * Converts the Java-serialized index snapshots in BUCKET_DIR to the binary format (see IndexFile), once, before INDEX_FORMAT is switched to binary.
+ * The journal of each bucket is folded into its new snapshot. The snapshots that are already binary are left as they are.
+ * It is meant to run while the storage server is stopped.
+ * Usage: IndexConverter
+ */
+public class IndexConverter {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(IndexConverter.class);
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void main(String[] args) throws IOException {
+		File[] files = new File(Constants.BUCKET_DIR).listFiles();
+		if (files == null) {
+			System.out.println("There is no directory " + Constants.BUCKET_DIR);
+			return;
+		}
+
+		StorageManager storageManager = StorageManager.getInstance();
+		int converted = 0;
+		int skipped = 0;
+		long startTime = System.currentTimeMillis();
+
+		for (File file : files) {
+			String name = file.getName();
+			if (! name.endsWith(Constants.INDEX_FILE_EXTENSION)) {
+				continue;
+			}
+			int bucketId;
+			try {
+				bucketId = Integer.parseInt(name.substring(0, name.length() - Constants.INDEX_FILE_EXTENSION.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			if (IndexFile.isBinary(file.getPath())) {
+				skipped++;
+				continue;
+			}
+			storageManager.convertIndex(bucketId);
+			logger.info("Converted the index of bucket " + bucketId);
+			converted++;
+		}
+
+		System.out.println("Converted " + converted + " index snapshot(s) in " + (System.currentTimeMillis() - startTime) + " ms, "
+				+ skipped + " were already binary.");
+		// The storage manager's checkpointer keeps the JVM alive.
+		System.exit(0);
+	}
+}
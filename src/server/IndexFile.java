@@ -0,0 +1,184 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import entities.Bucket;
+import entities.BucketIndex;
+import exceptions.ArchiveException;
+
+/**
+ * The binary format of the index snapshots, which is mapped into memory instead of being deserialized.
+ *
+ * The file starts with a header: MAGIC (8 bytes), VERSION (4 bytes), the bucket id (4 bytes), the number of slots (4 bytes),
+ * the number of entries (4 bytes) and 8 reserved bytes. The slots of the bucket index follow as they are laid out in memory,
+ * SLOT_WIDTH little-endian longs per slot (the byte order of the common servers, so that the longs are read without swapping).
+ *
+ * Reading a snapshot maps its table privately (copy on write), so opening a bucket costs a single mapping and
+ * the lookups only fault in the pages that they probe. The updates of the bucket only change the process's copy of the pages they touch.
+ * A replaced snapshot stays mapped until its bucket index is garbage collected.
+ *
+ * The older snapshots are Java-serialized buckets. They start with the serialization stream magic, so the two formats are told apart by their first bytes.
+ */
+public class IndexFile {
+
+	/** The magic number at the start of a binary index snapshot. */
+	public static final long MAGIC = 0x4152434249445831L;
+
+	/** The version of the format. */
+	public static final int VERSION = 1;
+
+	/** The length of the header. */
+	public static final int HEADER_LENGTH = 32;
+
+	/** The largest table that is mapped with a single mapping (a mapping cannot exceed 2 GB). Larger tables are read into the heap. */
+	private static final long MAX_MAPPED_LENGTH = Integer.MAX_VALUE;
+
+	/** The number of longs that are written at a time. */
+	private static final int WRITE_CHUNK = 8192;
+
+	/**
+	 * Checks whether the file is a binary index snapshot.
+	 *
+	 * @param path the path of the snapshot
+	 * @return true, if the file starts with MAGIC
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static boolean isBinary(String path) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			int read;
+			do {
+				read = channel.read(magic);
+			} while (read >= 0 && magic.hasRemaining());
+			return ! magic.hasRemaining() && magic.getLong(0) == MAGIC;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads a binary index snapshot.
+	 *
+	 * @param path the path of the snapshot
+	 * @return the bucket
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Bucket read(String path) throws IOException {
+		// A private mapping needs a channel that is open for writing, although nothing is ever written.
+		FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			header.flip();
+			long magic = header.getLong();
+			int version = header.getInt();
+			int bucketId = header.getInt();
+			int capacity = header.getInt();
+			int size = header.getInt();
+
+			long tableLength = (long) capacity * BucketIndex.SLOT_WIDTH * 8;
+			if (magic != MAGIC || version != VERSION) {
+				throw new ArchiveException("Invalid index snapshot " + path + ": magic " + Long.toHexString(magic) + ", version " + version);
+			}
+			if (Integer.bitCount(capacity) != 1 || size < 0 || size > capacity || channel.size() != HEADER_LENGTH + tableLength) {
+				throw new ArchiveException("Invalid index snapshot " + path + ": " + capacity + " slots, " + size + " entries, " + channel.size() + " bytes");
+			}
+
+			LongBuffer table;
+			if (tableLength <= MAX_MAPPED_LENGTH) {
+				table = channel.map(FileChannel.MapMode.PRIVATE, HEADER_LENGTH, tableLength).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			}
+			else {
+				table = LongBuffer.allocate((int) (tableLength / 8));
+				ByteBuffer buffer = ByteBuffer.allocate(WRITE_CHUNK * 8).order(ByteOrder.LITTLE_ENDIAN);
+				for (long position = HEADER_LENGTH; position < HEADER_LENGTH + tableLength; position += buffer.capacity()) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), HEADER_LENGTH + tableLength - position));
+					readFully(channel, buffer, position);
+					buffer.flip();
+					table.put(buffer.asLongBuffer());
+				}
+				table.clear();
+			}
+
+			Bucket bucket = new Bucket(bucketId);
+			bucket.setIndex(new BucketIndex(table, size));
+			return bucket;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes the bucket as a binary index snapshot to the channel.
+	 *
+	 * @param bucket the bucket
+	 * @param channel the channel, at the start of the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void write(Bucket bucket, FileChannel channel) throws IOException {
+		BucketIndex index = bucket.getIndex();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(bucket.getId());
+		header.putInt(index.capacity());
+		header.putInt(index.size());
+		header.clear();
+		writeFully(channel, header);
+
+		LongBuffer table = index.getTable();
+		ByteBuffer buffer = ByteBuffer.allocate(WRITE_CHUNK * 8).order(ByteOrder.LITTLE_ENDIAN);
+		for (int position = 0; position < table.capacity(); position += WRITE_CHUNK) {
+			int length = Math.min(WRITE_CHUNK, table.capacity() - position);
+			table.limit(position + length);
+			table.position(position);
+			buffer.clear();
+			buffer.asLongBuffer().put(table);
+			buffer.limit(length * 8);
+			writeFully(channel, buffer);
+		}
+	}
+
+	/**
+	 * Reads from the channel at the given position until the buffer is full.
+	 *
+	 * @param channel the channel
+	 * @param buffer the buffer
+	 * @param position the position
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Read beyond the end of the index snapshot at " + position);
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Writes the whole buffer to the channel's current position.
+	 *
+	 * @param channel the channel
+	 * @param buffer the buffer
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import entities.BloomFilter;
+import entities.Bucket;
+import entities.BucketIndex;
+import exceptions.ArchiveException;
+
+/**
+ * The append-only journal of index updates of a bucket.
+ * Every write batch appends only the entries that it added to the bucket, instead of re-serializing the whole bucket.
+ * The journal is folded into the bucket's index snapshot by a checkpoint, after which it is reset.
+ *
+ * Each record is laid out as: type (1 byte), hash (20 bytes), offset (8 bytes), data length (4 bytes).
+ * The offset and the data length are only meaningful for the records that place a block (RECORD_ADD and RECORD_MOVE).
+ * The data length holds the codec of the block in its top bits, as in the bucket index.
+ */
+public class IndexJournal {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(IndexJournal.class);
+
+	/** The record type of an entry that was added to the index. */
+	public static final byte RECORD_ADD = 1;
+
+	/** The record type of a reference that was added to an existing entry (a duplicate PUT). */
+	public static final byte RECORD_REFERENCE = 2;
+
+	/** The record type of a reference that was removed from an entry (a DELETE). The entry is removed with its last reference. */
+	public static final byte RECORD_DELETE = 3;
+
+	/** The record type of an entry whose block was moved to another location (by the compactor). */
+	public static final byte RECORD_MOVE = 4;
+
+	/** The size of a journal record in bytes. */
+	public static final int RECORD_SIZE = 1 + Constants.HASH_LENGTH + 8 + 4;
+
+	/** The journal. */
+	private static IndexJournal journal;
+	
+	/** The pool of the open bucket files. */
+	private ChannelPool channelPool = ChannelPool.getInstance();
+
+	/** The number of records in the journal of each bucket, as seen since the journal was last replayed or reset. */
+	private Map<Integer, Integer> recordCounts = new ConcurrentHashMap<Integer, Integer>();
+
+	/**
+	 * Gets the single instance of IndexJournal.
+	 *
+	 * @return single instance of IndexJournal
+	 */
+	public static synchronized IndexJournal getInstance() {
+		if (journal == null) {
+			journal = new IndexJournal();
+		}
+		return journal;
+	}
+
+	/**
+	 * Gets the path of the journal file of the given bucket.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the journal path
+	 */
+	String getJournalPath(int bucketId) {
+		return Constants.BUCKET_DIR + File.separator + bucketId + Constants.INDEX_JOURNAL_FILE_EXTENSION;
+	}
+
+	/**
+	 * Appends the records of a batch to the bucket's journal.
+	 * The bucket's index does not need to be loaded. The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @param records the records
+	 */
+	public void append(int bucketId, RecordBatch records) {
+		if (records.size() == 0) {
+			return;
+		}
+
+		String journalPath = getJournalPath(bucketId);
+		FileChannel channel = null;
+
+		try {
+			// The journal is only appended to under the bucket's lock, so its size is the position of the next record.
+			channel = channelPool.acquire(journalPath, true);
+			ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+			long position = channel.size();
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			if (channel != null) {
+				channelPool.release(journalPath, channel);
+			}
+		}
+
+		Integer count = recordCounts.get(bucketId);
+		recordCounts.put(bucketId, (count != null ? count : 0) + records.size());
+	}
+
+	/**
+	 * Syncs the bucket's journal to disk, e.g. before the data that its records no longer refer to is deleted.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	public void sync(int bucketId) {
+		String journalPath = getJournalPath(bucketId);
+		FileChannel channel = null;
+		try {
+			channel = channelPool.acquire(journalPath, false);
+			channelPool.force(journalPath, channel);
+		} catch (NoSuchFileException e) {
+			// There is nothing to sync.
+			return;
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			if (channel != null) {
+				channelPool.release(journalPath, channel);
+			}
+		}
+	}
+
+	/**
+	 * Replays the bucket's journal on top of the bucket that was read from the index snapshot.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucket the bucket
+	 */
+	public void replay(Bucket bucket) {
+		final BucketIndex index = bucket.getIndex();
+		read(bucket.getId(), new RecordHandler() {
+			
+			public void handle(byte type, byte[] hash, long offset, int dataLength, int codec) {
+				if (type == RECORD_ADD || type == RECORD_MOVE) {
+					index.put(hash, offset, dataLength, codec);
+					return;
+				}
+				int slot = index.find(hash);
+				if (slot < 0) {
+					// The records of an entry are journaled in order, so this only happens to a journal that has been tampered with.
+					logger.warn("Ignoring a journal record of type " + type + " for a missing entry");
+				}
+				else if (type == RECORD_REFERENCE) {
+					index.addReference(slot);
+				}
+				else {
+					index.removeReference(slot);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds the hashes of the bucket's journal to the bucket's filter.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @param filter the filter
+	 */
+	public void addHashes(int bucketId, final BloomFilter filter) {
+		read(bucketId, new RecordHandler() {
+			
+			public void handle(byte type, byte[] hash, long offset, int dataLength, int codec) {
+				if (type == RECORD_ADD) {
+					filter.add(hash);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads all the records of the bucket's journal.
+	 * A record that was only partially written (e.g. because of a crash) is dropped and the journal is truncated to the last complete record.
+	 *
+	 * @param bucketId the bucket id
+	 * @param handler the handler of the records
+	 */
+	private void read(int bucketId, RecordHandler handler) {
+		String journalPath = getJournalPath(bucketId);
+		File file = new File(journalPath);
+		if (! file.exists()) {
+			recordCounts.put(bucketId, 0);
+			return;
+		}
+
+		DataInputStream dis = null;
+		int count = 0;
+		long validLength = 0;
+
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			byte[] hash = new byte[Constants.HASH_LENGTH];
+
+			while (true) {
+				byte type;
+				try {
+					type = dis.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+
+				try {
+					dis.readFully(hash);
+					long offset = dis.readLong();
+					int dataLength = dis.readInt();
+
+					if (type < RECORD_ADD || type > RECORD_MOVE) {
+						throw new ArchiveException("Invalid record type " + type + " in the journal of bucket " + bucketId);
+					}
+
+					handler.handle(type, hash, offset, dataLength & BucketIndex.MAX_DATA_LENGTH, dataLength >>> BucketIndex.CODEC_SHIFT);
+				} catch (EOFException e) {
+					logger.warn("Dropping the partially written record at the end of the journal of bucket " + bucketId);
+					break;
+				}
+
+				count++;
+				validLength += RECORD_SIZE;
+			}
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (dis != null) {
+					dis.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+				throw new ArchiveException(e);
+			}
+		}
+
+		// Appends must start at a record boundary.
+		if (validLength < file.length()) {
+			truncate(journalPath, validLength);
+		}
+		recordCounts.put(bucketId, count);
+	}
+
+	/**
+	 * Truncates the journal file to the given length.
+	 *
+	 * @param journalPath the journal path
+	 * @param length the length
+	 */
+	private void truncate(String journalPath, long length) {
+		FileChannel channel = null;
+		try {
+			channel = channelPool.acquire(journalPath, false);
+			channel.truncate(length);
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			if (channel != null) {
+				channelPool.release(journalPath, channel);
+			}
+		}
+	}
+
+	/**
+	 * Resets the bucket's journal once its records are part of the index snapshot.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	public void reset(int bucketId) {
+		channelPool.retire(getJournalPath(bucketId));
+		File file = new File(getJournalPath(bucketId));
+		if (file.exists() && ! file.delete()) {
+			throw new ArchiveException("Unable to delete the journal of bucket " + bucketId);
+		}
+		recordCounts.put(bucketId, 0);
+	}
+
+	/**
+	 * Gets the number of records in the bucket's journal.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the record count
+	 */
+	public int getRecordCount(int bucketId) {
+		Integer count = recordCounts.get(bucketId);
+		return count != null ? count : 0;
+	}
+
+	/**
+	 * Gets the ids of the buckets whose journal has been seen since startup.
+	 *
+	 * @return the bucket ids
+	 */
+	public Set<Integer> getBucketIds() {
+		return recordCounts.keySet();
+	}
+
+	/**
+	 * The handler of the records read from a journal.
+	 */
+	interface RecordHandler {
+
+		/**
+		 * Handles a record.
+		 *
+		 * @param type the record type
+		 * @param hash the hash. The array is reused for the next record.
+		 * @param offset the offset
+		 * @param dataLength the data length
+		 * @param codec the codec
+		 */
+		void handle(byte type, byte[] hash, long offset, int dataLength, int codec);
+	}
+
+	/**
+	 * The records of a batch, built in memory so that they go to the journal in a single write.
+	 */
+	public static class RecordBatch {
+
+		/** The encoded records. */
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		/** The stream that encodes the records. */
+		private DataOutputStream dos = new DataOutputStream(bytes);
+
+		/** The number of records. */
+		private int size;
+
+		/**
+		 * Adds a record.
+		 *
+		 * @param type the record type
+		 * @param hash the hash
+		 * @param offset the offset
+		 * @param dataLength the data length
+		 * @param codec the codec
+		 */
+		public void add(byte type, byte[] hash, long offset, int dataLength, int codec) {
+			if (hash.length != Constants.HASH_LENGTH) {
+				throw new ArchiveException("Invalid hash length " + hash.length);
+			}
+			try {
+				dos.writeByte(type);
+				dos.write(hash);
+				dos.writeLong(offset);
+				dos.writeInt((codec << BucketIndex.CODEC_SHIFT) | dataLength);
+			} catch (IOException e) {
+				// Writing to memory does not fail.
+				throw new ArchiveException(e);
+			}
+			size++;
+		}
+
+		/**
+		 * Gets the number of records.
+		 *
+		 * @return the size
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Gets the encoded records.
+		 *
+		 * @return the byte array
+		 */
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
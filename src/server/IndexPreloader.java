@@ -0,0 +1,183 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+
+/**
+ * Loads the indexes (and the filters) of all the buckets at startup, so that the first batch of a bucket does not pay for deserializing its index
+ * while it holds the bucket's lock.
+ *
+ * The buckets are split recursively over a fork-join pool of PRELOAD_THREADS threads. A bucket is loaded under its lock, so in the background mode
+ * a batch for a bucket waits for that bucket only, and the buckets that are already loaded take requests right away.
+ * The preload stops loading once the index cache is full, since the buckets that it loads would only evict each other.
+ * The progress is logged every REPORT_PERIOD.
+ */
+public class IndexPreloader {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(IndexPreloader.class);
+
+	/** The time period of the progress reports (in milliseconds). */
+	private static final int REPORT_PERIOD = 5000;
+
+	/** The index preloader. */
+	private static IndexPreloader indexPreloader;
+
+	/** The number of buckets looked at. */
+	private AtomicInteger done = new AtomicInteger();
+
+	/** The number of buckets loaded. */
+	private AtomicInteger loaded = new AtomicInteger();
+
+	/** The number of buckets not loaded because the cache was full. */
+	private AtomicInteger skipped = new AtomicInteger();
+
+	/** The number of buckets that failed to load. */
+	private AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * Gets the single instance of IndexPreloader.
+	 *
+	 * @return single instance of IndexPreloader
+	 */
+	public static synchronized IndexPreloader getInstance() {
+		if (indexPreloader == null) {
+			indexPreloader = new IndexPreloader();
+		}
+		return indexPreloader;
+	}
+
+	/**
+	 * Starts the preload of all the buckets, according to the PRELOAD_MODE.
+	 * In the blocking mode, it returns once all the buckets have been looked at.
+	 */
+	public void preload() {
+		if (Constants.PRELOAD_MODE == Constants.PRELOAD_MODE_NONE) {
+			return;
+		}
+
+		final int numBuckets = BucketDirectory.getInstance().getBucketCount();
+		final long startTime = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(Constants.PRELOAD_THREADS);
+		final ForkJoinTask<Void> task = pool.submit(new PreloadTask(0, numBuckets));
+
+		Thread reporter = new Thread("IndexPreloadReporter") {
+
+			public void run() {
+				while (true) {
+					try {
+						task.get(REPORT_PERIOD, TimeUnit.MILLISECONDS);
+						break;
+					} catch (TimeoutException e) {
+						logger.info(progress(numBuckets, startTime));
+					} catch (InterruptedException e) {
+						return;
+					} catch (ExecutionException e) {
+						logger.error("The preload failed. Exception: " + e.getCause());
+						break;
+					}
+				}
+				logger.info(progress(numBuckets, startTime));
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+
+		if (Constants.PRELOAD_MODE == Constants.PRELOAD_MODE_BLOCKING) {
+			task.join();
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * Gets a progress report.
+	 *
+	 * @param numBuckets the number of buckets
+	 * @param startTime the start time
+	 * @return the report
+	 */
+	private String progress(int numBuckets, long startTime) {
+		return "Preloaded " + loaded + " bucket(s), " + done + " of " + numBuckets + " looked at, in " + (System.currentTimeMillis() - startTime)
+				+ " ms [skipped=" + skipped + ", failed=" + failed + ", " + IndexCache.getInstance() + "]";
+	}
+
+	/**
+	 * Loads the bucket, unless it has no index or the index cache is full.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	private void load(int bucketId) {
+		try {
+			String bucketPath = Constants.BUCKET_DIR + File.separator + bucketId;
+			if (! new File(bucketPath + Constants.INDEX_FILE_EXTENSION).exists() && ! new File(bucketPath + Constants.INDEX_JOURNAL_FILE_EXTENSION).exists()) {
+				return;
+			}
+			IndexCache indexCache = IndexCache.getInstance();
+			if (indexCache.getSize() >= indexCache.getCapacity()) {
+				skipped.incrementAndGet();
+				return;
+			}
+			StorageManager.getInstance().warm(bucketId);
+			loaded.incrementAndGet();
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			logger.error("Preload of bucket " + bucketId + " failed. Exception: " + e);
+		} finally {
+			done.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The preload of a range of buckets.
+	 */
+	private class PreloadTask extends RecursiveAction {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = -6004914245071457291L;
+
+		/** The first bucket id. */
+		private final int from;
+
+		/** The bucket id after the last one. */
+		private final int to;
+
+		/**
+		 * Instantiates a new preload task.
+		 *
+		 * @param from the first bucket id
+		 * @param to the bucket id after the last one
+		 */
+		PreloadTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		protected void compute() {
+			if (to - from == 1) {
+				// The root bucket, or the buckets that it has been split into.
+				for (int bucketId : BucketDirectory.getInstance().getBuckets(from)) {
+					load(bucketId);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new PreloadTask(from, middle), new PreloadTask(middle, to));
+		}
+	}
+}
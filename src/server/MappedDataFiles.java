@@ -0,0 +1,187 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import exceptions.ArchiveException;
+
+/**
+ * The memory mappings of the data segments of the buckets.
+ * A data file is mapped in fixed-size segments (a single mapping cannot exceed 2 GB), which are kept across batches.
+ * When a read goes past the mapped length (the file has grown since), the last segment is remapped and new segments are added.
+ *
+ * A file can be read by several threads at once: in the container layout, the buckets of a container share its mappings, and their reads only hold
+ * their own bucket's lock. So the segments of a file are published as an array that is never changed, and a remap builds a new array under the file's lock.
+ * A reader uses the array that it found, which covers everything that it reads.
+ * A segment is only ever appended to (while it is active) or deleted (by the compactor, which drops its mappings first).
+ * Java does not provide a way to unmap a buffer; a replaced mapping is released once it is garbage collected.
+ */
+public class MappedDataFiles {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(MappedDataFiles.class);
+
+	/** The mapped data files. */
+	private static MappedDataFiles mappedDataFiles;
+
+	/** The mapped segments of each data file, keyed by file path. An array is replaced, never changed. */
+	private Map<String, MappedByteBuffer[]> segmentMap = new ConcurrentHashMap<String, MappedByteBuffer[]>();
+
+	/** The locks that each data file is remapped under, keyed by file path. */
+	private ConcurrentMap<String, Object> lockMap = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Gets the single instance of MappedDataFiles.
+	 *
+	 * @return single instance of MappedDataFiles
+	 */
+	public static synchronized MappedDataFiles getInstance() {
+		if (mappedDataFiles == null) {
+			mappedDataFiles = new MappedDataFiles();
+		}
+		return mappedDataFiles;
+	}
+
+	/**
+	 * Reads the data at the given offset of a data file into the start of the given array.
+	 * The data must have been written before, under the lock of its bucket.
+	 *
+	 * @param filePath the path of the data file
+	 * @param offset the offset
+	 * @param data the array to fill
+	 * @param dataLength the number of bytes to read
+	 */
+	public void read(String filePath, long offset, byte[] data, int dataLength) {
+		MappedByteBuffer[] segments = segmentMap.get(filePath);
+		long end = offset + dataLength;
+		if (segments == null || end > getMappedLength(segments)) {
+			segments = remap(filePath, end);
+		}
+
+		int segmentSize = Constants.MMAP_SEGMENT_SIZE;
+		int copied = 0;
+		while (copied < dataLength) {
+			long position = offset + copied;
+			// A block can span two segments.
+			ByteBuffer segment = segments[(int) (position / segmentSize)].duplicate();
+			segment.position((int) (position % segmentSize));
+			int length = Math.min(dataLength - copied, segment.remaining());
+			segment.get(data, copied, length);
+			copied += length;
+		}
+	}
+
+	/**
+	 * Drops the mappings of a data file, e.g. before the file is deleted.
+	 * The caller must hold the lock of the file's bucket.
+	 *
+	 * @param filePath the path of the data file
+	 */
+	public void unmap(String filePath) {
+		segmentMap.remove(filePath);
+		lockMap.remove(filePath);
+	}
+
+	/**
+	 * Gets the lock that the data file is remapped under.
+	 *
+	 * @param filePath the file path
+	 * @return the lock
+	 */
+	private Object getLock(String filePath) {
+		Object lock = lockMap.get(filePath);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = lockMap.putIfAbsent(filePath, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+
+	/**
+	 * Gets the number of bytes of the file that the segments map.
+	 *
+	 * @param segments the segments
+	 * @return the mapped length
+	 */
+	private long getMappedLength(MappedByteBuffer[] segments) {
+		if (segments.length == 0) {
+			return 0;
+		}
+		return (long) (segments.length - 1) * Constants.MMAP_SEGMENT_SIZE + segments[segments.length - 1].capacity();
+	}
+
+	/**
+	 * Extends the mappings so that they cover the whole file, unless another reader has done so already.
+	 * Only the last (partial) segment is remapped. The full segments are kept as they are.
+	 *
+	 * @param filePath the file path
+	 * @param requiredLength the length that the mappings have to cover at least
+	 * @return the segments
+	 */
+	private MappedByteBuffer[] remap(String filePath, long requiredLength) {
+		synchronized (getLock(filePath)) {
+			MappedByteBuffer[] current = segmentMap.get(filePath);
+			if (current != null && requiredLength <= getMappedLength(current)) {
+				return current;
+			}
+			List<MappedByteBuffer> segments = current != null ? new ArrayList<MappedByteBuffer>(Arrays.asList(current)) : new ArrayList<MappedByteBuffer>();
+			remap(segments, filePath, requiredLength);
+			MappedByteBuffer[] remapped = segments.toArray(new MappedByteBuffer[segments.size()]);
+			segmentMap.put(filePath, remapped);
+			return remapped;
+		}
+	}
+
+	/**
+	 * Replaces the last (partial) segment of the list and adds the segments up to the end of the file.
+	 *
+	 * @param segments the segments
+	 * @param filePath the file path
+	 * @param requiredLength the length that the mappings have to cover at least
+	 */
+	private void remap(List<MappedByteBuffer> segments, String filePath, long requiredLength) {
+		ChannelPool channelPool = ChannelPool.getInstance();
+		FileChannel channel = null;
+		try {
+			channel = channelPool.acquire(filePath, false);
+			long fileLength = channel.size();
+			if (fileLength < requiredLength) {
+				throw new ArchiveException("Read beyond the end of " + filePath + ": " + requiredLength + " > " + fileLength);
+			}
+
+			int segmentSize = Constants.MMAP_SEGMENT_SIZE;
+			if (! segments.isEmpty() && segments.get(segments.size() - 1).capacity() < segmentSize) {
+				segments.remove(segments.size() - 1);
+			}
+			for (long position = (long) segments.size() * segmentSize; position < fileLength; position += segmentSize) {
+				long length = Math.min(segmentSize, fileLength - position);
+				segments.add(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+			}
+			logger.debug("Mapped " + fileLength + " bytes of " + filePath + " in " + segments.size() + " segment(s)");
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} finally {
+			if (channel != null) {
+				channelPool.release(filePath, channel);
+			}
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import entities.DataEntry;
+import entities.GetTask;
+
+/**
+ * The pool of threads that read the blocks of the GET batches in the parallel read mode.
+ *
+ * A batch is split into ranges of blocks that lie close together (as in the stream read mode), and each range is read by a thread of the pool
+ * with a positional read on the pooled channel of its segment. Up to READ_BATCH_QUEUE_DEPTH ranges of a batch are in flight at once, and up to
+ * READ_QUEUE_DEPTH (the number of threads) across all the batches of a disk, so a device that serves several reads at once is kept busy by a few batches.
+ * Each data directory (disk) has threads of its own, so a stalled disk does not hold up the reads of the other disks.
+ * The blocks of a range are filled in (and decompressed) as soon as the range has been read. The batch returns once all its ranges are done.
+ *
+ * A range that cannot be read fails its GETs, instead of the whole batch.
+ */
+public class ReadPool {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(ReadPool.class);
+
+	/** The read pool. */
+	private static ReadPool readPool;
+
+	/** The threads of each data directory. */
+	private List<ExecutorService> executorServices = new ArrayList<ExecutorService>();
+
+	/** The pool of the open bucket files. */
+	private ChannelPool channelPool = ChannelPool.getInstance();
+
+	/** The data segments of the buckets. */
+	private DataSegments dataSegments = DataSegments.getInstance();
+
+	/** The compression of the blocks. */
+	private BlockCodec blockCodec = BlockCodec.getInstance();
+
+	/** The direct I/O of the large blocks. */
+	private DirectIO directIO = DirectIO.getInstance();
+
+	/** The number of ranges read. */
+	private AtomicLong reads = new AtomicLong();
+
+	/** The number of ranges that failed. */
+	private AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Gets the single instance of ReadPool.
+	 *
+	 * @return single instance of ReadPool
+	 */
+	public static synchronized ReadPool getInstance() {
+		if (readPool == null) {
+			readPool = new ReadPool();
+		}
+		return readPool;
+	}
+
+	/**
+	 * Instantiates a new read pool.
+	 */
+	private ReadPool() {
+		for (int disk = 0; disk < Constants.DATA_DIRS.length; disk++) {
+			final int threadDisk = disk;
+			executorServices.add(Executors.newFixedThreadPool(Constants.READ_QUEUE_DEPTH, new ThreadFactory() {
+
+				private AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Reader-" + threadDisk + "-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Reads the blocks of the entries of a batch.
+	 *
+	 * @param bucketId the bucket id
+	 * @param dataEntries the data entries, sorted by location
+	 * @return the tasks of the entries, with their status and data
+	 */
+	public List<GetTask> read(int bucketId, List<DataEntry> dataEntries) {
+		final List<GetTask> statusList = Collections.synchronizedList(new ArrayList<GetTask>());
+		final Semaphore inFlight = new Semaphore(Constants.READ_BATCH_QUEUE_DEPTH);
+		ExecutorService executorService = executorServices.get(DataSegments.getDisk(bucketId));
+
+		int last;
+		for (int first = 0; first < dataEntries.size(); first = last + 1) {
+			last = StorageManager.getRangeEnd(dataEntries, first);
+			final List<DataEntry> range = dataEntries.subList(first, last + 1);
+			int segmentId = DataSegments.getSegmentId(range.get(0).getOffset());
+			final String segmentPath = dataSegments.getSegmentPath(bucketId, segmentId);
+			final long base = dataSegments.getSegmentBase(bucketId, segmentId);
+
+			inFlight.acquireUninterruptibly();
+			executorService.execute(new Runnable() {
+
+				public void run() {
+					try {
+						statusList.addAll(readRange(segmentPath, base, range));
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		}
+
+		// Wait for the ranges that are still in flight.
+		inFlight.acquireUninterruptibly(Constants.READ_BATCH_QUEUE_DEPTH);
+		inFlight.release(Constants.READ_BATCH_QUEUE_DEPTH);
+		return statusList;
+	}
+
+	/**
+	 * Reads a range of blocks of a segment with a single read.
+	 *
+	 * @param segmentPath the segment path
+	 * @param base the position of the segment in the file
+	 * @param range the entries of the range, sorted by location
+	 * @return the tasks of the entries
+	 */
+	private List<GetTask> readRange(String segmentPath, long base, List<DataEntry> range) {
+		List<GetTask> statusList = new ArrayList<GetTask>(range.size());
+		long start = range.get(0).getOffset();
+		long end = start;
+		for (DataEntry dataEntry : range) {
+			end = Math.max(end, dataEntry.getOffset() + dataEntry.getDataLength());
+			statusList.add(dataEntry.getTask());
+		}
+
+		FileChannel channel = null;
+		try {
+			DataEntry first = range.get(0);
+			if (directIO.isDirect(first.getDataLength())) {
+				// A direct block is a range of its own.
+				byte[] data = directIO.read(segmentPath, base + DataSegments.getSegmentOffset(start), first.getDataLength());
+				first.getTask().setResponseData(first.getCodec() == Constants.CODEC_DEFLATE ? blockCodec.decompress(data, 0, data.length) : data);
+				first.getTask().setStatus(true);
+				reads.incrementAndGet();
+				return statusList;
+			}
+			
+			channel = channelPool.acquire(segmentPath, false);
+			byte[] buffer = new byte[(int) (end - start)];
+			ByteBuffer target = ByteBuffer.wrap(buffer);
+			long position = base + DataSegments.getSegmentOffset(start);
+			while (target.hasRemaining()) {
+				if (channel.read(target, position + target.position()) < 0) {
+					throw new EOFException("Read beyond the end of " + segmentPath);
+				}
+			}
+
+			for (DataEntry dataEntry : range) {
+				int offset = (int) (dataEntry.getOffset() - start);
+				int dataLength = dataEntry.getDataLength();
+				byte[] data = dataEntry.getCodec() == Constants.CODEC_DEFLATE ? blockCodec.decompress(buffer, offset, dataLength)
+						: (range.size() == 1 ? buffer : Arrays.copyOfRange(buffer, offset, offset + dataLength));
+				dataEntry.getTask().setResponseData(data);
+				dataEntry.getTask().setStatus(true);
+			}
+			reads.incrementAndGet();
+		} catch (NoSuchFileException e) {
+			logger.error("There is no file " + segmentPath);
+			fail(range);
+		} catch (IOException e) {
+			logger.error(e);
+			fail(range);
+		} catch (RuntimeException e) {
+			logger.error("Read of " + segmentPath + " failed. Exception: " + e);
+			fail(range);
+		} finally {
+			if (channel != null) {
+				channelPool.release(segmentPath, channel);
+			}
+		}
+		return statusList;
+	}
+
+	/**
+	 * Fails the GETs of the entries.
+	 *
+	 * @param range the entries
+	 */
+	private void fail(List<DataEntry> range) {
+		failures.incrementAndGet();
+		for (DataEntry dataEntry : range) {
+			dataEntry.getTask().setResponseData(null);
+			dataEntry.getTask().setStatus(false);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ReadPool [reads=" + reads + ", failures=" + failures + "]";
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The buckets of a disk that are ready to be scheduled, in the order of their priority (an indexed binary heap).
+ *
+ * The priority of a bucket is the number of its pending tasks plus the time (in milliseconds) that it has been waiting.
+ * All the buckets wait for the same time to pass, so the order is the one of the number of tasks minus the time that the bucket started waiting,
+ * which does not change while the bucket is in the heap. A bucket's key is only changed when tasks are added to it, which moves it up in O(log n).
+ * The heap position of every bucket is kept in a map, so that a bucket is found without a scan.
+ */
+public class ReadyQueue {
+
+	/** The buckets, as a heap with the highest key at the top. */
+	private int[] buckets = new int[16];
+
+	/** The keys of the buckets, at the same positions. */
+	private long[] keys = new long[16];
+
+	/** The times at which the buckets started waiting, at the same positions. */
+	private long[] since = new long[16];
+
+	/** The number of buckets. */
+	private int size;
+
+	/** The position of each bucket in the heap. */
+	private Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+
+	/**
+	 * Adds the bucket, or updates its key if it is in the queue already. A bucket keeps the time at which it first started waiting.
+	 *
+	 * @param bucketId the bucket id
+	 * @param tasks the number of pending tasks of the bucket
+	 * @param waitingSince the time at which the bucket started waiting
+	 */
+	public synchronized void offer(int bucketId, int tasks, long waitingSince) {
+		Integer position = positions.get(bucketId);
+		if (position == null) {
+			if (size == buckets.length) {
+				buckets = Arrays.copyOf(buckets, size * 2);
+				keys = Arrays.copyOf(keys, size * 2);
+				since = Arrays.copyOf(since, size * 2);
+			}
+			position = size++;
+			buckets[position] = bucketId;
+			since[position] = waitingSince;
+			positions.put(bucketId, position);
+			notify();
+		}
+		else {
+			since[position] = Math.min(since[position], waitingSince);
+		}
+
+		long key = tasks - since[position];
+		long oldKey = keys[position];
+		keys[position] = key;
+		if (position == size - 1 || key > oldKey) {
+			siftUp(position);
+		}
+		else {
+			siftDown(position);
+		}
+	}
+
+	/**
+	 * Removes the bucket with the highest priority, waiting until there is one.
+	 *
+	 * @return the bucket id
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public synchronized int take() throws InterruptedException {
+		while (size == 0) {
+			wait();
+		}
+		int bucketId = buckets[0];
+		positions.remove(bucketId);
+		size--;
+		if (size > 0) {
+			move(size, 0);
+			siftDown(0);
+		}
+		return bucketId;
+	}
+
+	/**
+	 * Removes the bucket, if it is in the queue.
+	 *
+	 * @param bucketId the bucket id
+	 * @return true, if it was in the queue
+	 */
+	public synchronized boolean remove(int bucketId) {
+		Integer position = positions.remove(bucketId);
+		if (position == null) {
+			return false;
+		}
+		size--;
+		if (position < size) {
+			// The last bucket fills the gap, and moves from there.
+			int last = buckets[size];
+			move(size, position);
+			siftDown(position);
+			siftUp(positions.get(last));
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of buckets in the queue.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Moves the bucket at the given position up until its parent has a higher key.
+	 */
+	private void siftUp(int position) {
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (keys[parent] >= keys[position]) {
+				break;
+			}
+			swap(position, parent);
+			position = parent;
+		}
+	}
+
+	/**
+	 * Moves the bucket at the given position down until its children have lower keys.
+	 */
+	private void siftDown(int position) {
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && keys[child + 1] > keys[child]) {
+				child++;
+			}
+			if (keys[position] >= keys[child]) {
+				break;
+			}
+			swap(position, child);
+			position = child;
+		}
+	}
+
+	/**
+	 * Swaps the buckets at the given positions.
+	 */
+	private void swap(int i, int j) {
+		int bucketId = buckets[i];
+		long key = keys[i];
+		long waitingSince = since[i];
+		move(j, i);
+		buckets[j] = bucketId;
+		keys[j] = key;
+		since[j] = waitingSince;
+		positions.put(bucketId, j);
+	}
+
+	/**
+	 * Moves the bucket at the first position to the second position.
+	 */
+	private void move(int from, int to) {
+		buckets[to] = buckets[from];
+		keys[to] = keys[from];
+		since[to] = since[from];
+		positions.put(buckets[to], to);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReadyQueue [size=" + size + "]";
+	}
+}
@@ -0,0 +1,619 @@
+/*
+ * @author Gautham Narayanasamy
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+import org.apache.log4j.Logger;
+
+import utils.Constants;
+import entities.Bucket;
+import entities.BucketIndex;
+import exceptions.ArchiveException;
+
+/**
+ * The recovery of the bucket indexes from the framed data segments (see DataRecords), at startup.
+ *
+ * In RECOVERY_MODE_VERIFY, the index of each bucket is checked against its framed segments. An entry that points at no valid record is
+ * reported as dangling. A valid record that the index does not have (a deleted block that has not been compacted yet, or a write that was never
+ * acknowledged) is reported as unindexed. A bucket whose index cannot be read is rebuilt. In RECOVERY_MODE_REBUILD, every bucket is rebuilt.
+ *
+ * A rebuilt index has an entry for every valid record, and a later record of a hash replaces an earlier one. The data does not tell how many
+ * references a block has, so the rebuilt entries are permanent: a delete no longer removes them, but no block is lost to a wrong reference count.
+ * The journal is replayed on top of the rebuilt index. An unreadable snapshot is kept as &lt;id&gt;.index.corrupt.
+ * A bucket that has raw segments cannot be rebuilt, since the blocks of a raw segment cannot be found without the index.
+ *
+ * The buckets are recovered by RECOVERY_THREADS threads. A segment is read sequentially in large reads.
+ * The scan skips over a record that does not check out to the next record magic. The startup waits for at most RECOVERY_TIMEOUT;
+ * the buckets that are not done by then stop at their next record and are left as they are.
+ */
+public class RecoveryScanner {
+
+	/** The Constant logger. */
+	private static final Logger logger = Logger.getLogger(RecoveryScanner.class);
+
+	/** The size of the reads of a scan. */
+	private static final int WINDOW_SIZE = 1024 * 1024;
+
+	/** The recovery scanner. */
+	private static RecoveryScanner recoveryScanner;
+
+	/** The data segments of the buckets. */
+	private DataSegments dataSegments = DataSegments.getInstance();
+
+	/** Set once the startup has stopped waiting for the recovery. */
+	private volatile boolean timedOut;
+
+	/**
+	 * Gets the single instance of RecoveryScanner.
+	 *
+	 * @return single instance of RecoveryScanner
+	 */
+	public static synchronized RecoveryScanner getInstance() {
+		if (recoveryScanner == null) {
+			recoveryScanner = new RecoveryScanner();
+		}
+		return recoveryScanner;
+	}
+
+	/**
+	 * Recovers all the buckets that have data, according to the RECOVERY_MODE, and reports the outcome of each bucket.
+	 *
+	 * @return the reports of the buckets
+	 */
+	public List<Report> recover() {
+		List<Report> reports = new ArrayList<Report>();
+		if (Constants.RECOVERY_MODE == Constants.RECOVERY_MODE_NONE) {
+			return reports;
+		}
+
+		long startTime = System.currentTimeMillis();
+		ExecutorService executorService = Executors.newFixedThreadPool(Constants.RECOVERY_THREADS);
+		List<Future<Report>> futures = new ArrayList<Future<Report>>();
+		List<Integer> bucketIds = new ArrayList<Integer>(getBucketIds());
+		for (final int bucketId : bucketIds) {
+			futures.add(executorService.submit(new Callable<Report>() {
+
+				public Report call() {
+					return recover(bucketId);
+				}
+			}));
+		}
+		executorService.shutdown();
+
+		try {
+			if (! executorService.awaitTermination(Constants.RECOVERY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				timedOut = true;
+				logger.error("The recovery did not complete within " + Constants.RECOVERY_TIMEOUT + " ms");
+			}
+		} catch (InterruptedException e) {
+			timedOut = true;
+			Thread.currentThread().interrupt();
+		}
+
+		for (int i = 0; i < futures.size(); i++) {
+			Future<Report> future = futures.get(i);
+			if (! future.isDone()) {
+				logger.error("Bucket " + bucketIds.get(i) + " was not recovered in time");
+				continue;
+			}
+			try {
+				Report report = future.get();
+				reports.add(report);
+				logger.info(report);
+			} catch (Exception e) {
+				logger.error("Recovery of bucket " + bucketIds.get(i) + " failed. Exception: " + e);
+			}
+		}
+		logger.info("Recovered " + reports.size() + " of " + bucketIds.size() + " bucket(s) in " + (System.currentTimeMillis() - startTime) + " ms");
+		return reports;
+	}
+
+	/**
+	 * Gets the ids of the buckets that have data segments.
+	 *
+	 * @return the bucket ids
+	 */
+	private TreeSet<Integer> getBucketIds() {
+		TreeSet<Integer> bucketIds = new TreeSet<Integer>();
+		if (Constants.SEGMENT_LAYOUT == Constants.SEGMENT_LAYOUT_CONTAINERS) {
+			bucketIds.addAll(Containers.getInstance().getBucketIds());
+			return bucketIds;
+		}
+		for (String dataDir : Constants.DATA_DIRS) {
+			String[] fileNames = new File(dataDir).list();
+			if (fileNames == null) {
+				continue;
+			}
+			for (String fileName : fileNames) {
+				if (fileName.endsWith(Constants.DATASTORE_FILE_EXTENSION)) {
+					try {
+						bucketIds.add(Integer.parseInt(fileName.substring(0, fileName.indexOf('.'))));
+					} catch (NumberFormatException e) {
+						// Not a data segment.
+					}
+				}
+			}
+		}
+		return bucketIds;
+	}
+
+	/**
+	 * Recovers the bucket: verifies its index, or rebuilds it.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the report
+	 */
+	Report recover(int bucketId) {
+		StorageManager storageManager = StorageManager.getInstance();
+		long startTime = System.currentTimeMillis();
+		Report report = new Report(bucketId);
+
+		synchronized (storageManager.getLock(bucketId)) {
+			Bucket bucket = null;
+			try {
+				bucket = storageManager.readIndex(bucketId);
+			} catch (ArchiveException e) {
+				logger.error("The index of bucket " + bucketId + " cannot be read. Exception: " + e);
+			}
+
+			List<Integer> segmentIds = dataSegments.getSegmentIds(bucketId);
+			for (int segmentId : segmentIds) {
+				if (! dataSegments.isFramed(bucketId, segmentId) && dataSegments.getSegmentLength(bucketId, segmentId) > 0) {
+					report.rawSegments++;
+				}
+			}
+
+			boolean rebuild = bucket == null || Constants.RECOVERY_MODE == Constants.RECOVERY_MODE_REBUILD;
+			if (rebuild && report.rawSegments > 0) {
+				// An index rebuilt from the framed segments would miss the blocks of the raw segments.
+				logger.error("Bucket " + bucketId + " has raw segments, so its index cannot be rebuilt");
+				rebuild = false;
+			}
+
+			if (rebuild) {
+				rebuild(bucketId, segmentIds, report);
+			}
+			else if (bucket != null) {
+				verify(bucket.getIndex(), bucketId, segmentIds, report);
+			}
+			else {
+				report.action = "failed";
+			}
+		}
+
+		report.time = System.currentTimeMillis() - startTime;
+		return report;
+	}
+
+	/**
+	 * Rebuilds the bucket's index from its segments.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentIds the segment ids
+	 * @param report the report
+	 */
+	private void rebuild(int bucketId, List<Integer> segmentIds, Report report) {
+		final Bucket bucket = new Bucket(bucketId);
+		final BucketIndex index = bucket.getIndex();
+		boolean complete = scan(bucketId, segmentIds, report, new RecordVisitor() {
+
+			public void visit(byte[] hash, long location, int dataLength, int codec) {
+				index.put(hash, location, dataLength, codec);
+				index.makePermanent(index.find(hash));
+			}
+		});
+		if (! complete) {
+			report.action = "timed out";
+			return;
+		}
+
+		String bucketPath = Constants.BUCKET_DIR + File.separator + bucketId + Constants.INDEX_FILE_EXTENSION;
+		if (new File(bucketPath).exists()) {
+			try {
+				Files.move(Paths.get(bucketPath), Paths.get(bucketPath + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				logger.error(e);
+				throw new ArchiveException(e);
+			}
+		}
+		StorageManager.getInstance().restoreIndex(bucket);
+		report.action = "rebuilt";
+	}
+
+	/**
+	 * Verifies the bucket's index against its framed segments.
+	 *
+	 * @param index the index
+	 * @param bucketId the bucket id
+	 * @param segmentIds the segment ids
+	 * @param report the report
+	 */
+	private void verify(final BucketIndex index, int bucketId, List<Integer> segmentIds, final Report report) {
+		// The valid records are scanned in the order of their locations.
+		final long[][] locations = {new long[1024]};
+		final int[][] dataLengths = {new int[1024]};
+		final int[] count = {0};
+
+		boolean complete = scan(bucketId, segmentIds, report, new RecordVisitor() {
+
+			public void visit(byte[] hash, long location, int dataLength, int codec) {
+				if (index.find(hash) < 0) {
+					report.unindexed++;
+				}
+				if (count[0] == locations[0].length) {
+					locations[0] = Arrays.copyOf(locations[0], count[0] * 2);
+					dataLengths[0] = Arrays.copyOf(dataLengths[0], count[0] * 2);
+				}
+				locations[0][count[0]] = location;
+				dataLengths[0][count[0]] = dataLength;
+				count[0]++;
+			}
+		});
+		if (! complete) {
+			report.action = "timed out";
+			return;
+		}
+
+		Map<Integer, Boolean> framedSegments = new HashMap<Integer, Boolean>();
+		for (int slot = 0; slot < index.capacity(); slot++) {
+			if (! index.isOccupied(slot)) {
+				continue;
+			}
+			long location = index.getOffset(slot);
+			int segmentId = DataSegments.getSegmentId(location);
+			Boolean framed = framedSegments.get(segmentId);
+			if (framed == null) {
+				framed = dataSegments.isFramed(bucketId, segmentId);
+				framedSegments.put(segmentId, framed);
+			}
+			// The entries of the raw segments cannot be checked.
+			if (! framed) {
+				continue;
+			}
+			int i = Arrays.binarySearch(locations[0], 0, count[0], location);
+			if (i < 0 || dataLengths[0][i] != index.getDataLength(slot)) {
+				report.dangling++;
+			}
+		}
+		if (report.dangling > 0) {
+			logger.error("The index of bucket " + bucketId + " has " + report.dangling + " entries without a valid record");
+		}
+		report.action = "verified";
+	}
+
+	/**
+	 * Scans the framed segments of the bucket, in order.
+	 *
+	 * @param bucketId the bucket id
+	 * @param segmentIds the segment ids
+	 * @param report the report
+	 * @param visitor the visitor of the valid records
+	 * @return true, if all the segments were scanned before the time out
+	 */
+	private boolean scan(int bucketId, List<Integer> segmentIds, Report report, RecordVisitor visitor) {
+		for (int segmentId : segmentIds) {
+			if (! dataSegments.isFramed(bucketId, segmentId)) {
+				continue;
+			}
+			String segmentPath = dataSegments.getSegmentPath(bucketId, segmentId);
+			FileChannel channel = null;
+			try {
+				// The scan does not go through the channel pool, since the data is read once.
+				channel = FileChannel.open(Paths.get(segmentPath), StandardOpenOption.READ);
+				if (! scanSegment(channel, dataSegments.getSegmentBase(bucketId, segmentId), dataSegments.getSegmentLength(bucketId, segmentId), segmentId,
+						report, visitor)) {
+					return false;
+				}
+			} catch (IOException e) {
+				logger.error(e);
+				throw new ArchiveException(e);
+			} finally {
+				try {
+					if (channel != null) {
+						channel.close();
+					}
+				} catch (IOException e) {
+					logger.error(e);
+				}
+			}
+			report.segments++;
+		}
+		return true;
+	}
+
+	/**
+	 * Scans a framed segment.
+	 *
+	 * @param channel the channel of the segment
+	 * @param base the position of the segment in the file
+	 * @param length the length of the segment
+	 * @param segmentId the segment id
+	 * @param report the report
+	 * @param visitor the visitor of the valid records
+	 * @return true, if the segment was scanned before the time out
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private boolean scanSegment(FileChannel channel, long base, long length, int segmentId, Report report, RecordVisitor visitor) throws IOException {
+		Window window = new Window(channel, base);
+		Checksum checksum = Crc32c.create();
+		byte[] hash = new byte[Constants.HASH_LENGTH];
+		long position = DataRecords.SEGMENT_HEADER_LENGTH;
+		long next;
+
+		while (position + DataRecords.HEADER_LENGTH <= length) {
+			if (timedOut) {
+				return false;
+			}
+			int lengthWord = readRecord(window, position, length, hash, checksum);
+			if (lengthWord != -1) {
+				int dataLength = lengthWord & BucketIndex.MAX_DATA_LENGTH;
+				long location = DataSegments.toLocation(segmentId, position + DataRecords.HEADER_LENGTH);
+				visitor.visit(hash, location, dataLength, lengthWord >>> BucketIndex.CODEC_SHIFT);
+				report.records++;
+				position += DataRecords.HEADER_LENGTH + dataLength;
+			}
+			else if ((next = skipPadding(window, position, length)) > position) {
+				position = next;
+			}
+			else {
+				next = findMagic(window, position + 1, length);
+				report.corruptBytes += next - position;
+				position = next;
+			}
+		}
+		// A partially written record at the end, e.g. of a batch that was torn by a crash.
+		position = skipPadding(window, position, length);
+		report.corruptBytes += Math.max(0, length - position);
+		report.bytesScanned += length;
+		return true;
+	}
+
+	/**
+	 * Reads the record at the given position and checks its CRC.
+	 *
+	 * @param window the window
+	 * @param position the position of the record header
+	 * @param length the length of the segment
+	 * @param hash the array to read the hash into
+	 * @param checksum the checksum to use
+	 * @return the length word of the record, or -1 if there is no valid record at the position
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private int readRecord(Window window, long position, long length, byte[] hash, Checksum checksum) throws IOException {
+		window.ensure(position, DataRecords.HEADER_LENGTH);
+		ByteBuffer header = ByteBuffer.wrap(window.buffer, window.indexOf(position), DataRecords.HEADER_LENGTH);
+		if (header.getInt() != DataRecords.RECORD_MAGIC) {
+			return -1;
+		}
+		header.get(hash);
+		int lengthWord = header.getInt();
+		int storedChecksum = header.getInt();
+		int dataLength = lengthWord & BucketIndex.MAX_DATA_LENGTH;
+		if (position + DataRecords.HEADER_LENGTH + dataLength > length) {
+			return -1;
+		}
+
+		checksum.reset();
+		checksum.update(window.buffer, window.indexOf(position) + 4, Constants.HASH_LENGTH + 4);
+		long dataPosition = position + DataRecords.HEADER_LENGTH;
+		int remaining = dataLength;
+		while (remaining > 0) {
+			int n = Math.min(remaining, WINDOW_SIZE);
+			window.ensure(dataPosition, n);
+			checksum.update(window.buffer, window.indexOf(dataPosition), n);
+			dataPosition += n;
+			remaining -= n;
+		}
+		return (int) checksum.getValue() == storedChecksum ? lengthWord : -1;
+	}
+
+	/**
+	 * Skips the zeros that pad the space around a record that was written with direct I/O (see DirectIO).
+	 * Padding runs up to the next aligned position or the end of the segment.
+	 *
+	 * @param window the window
+	 * @param position the position to start from
+	 * @param length the length of the segment
+	 * @return the position after the padding, or the given position if there is no padding there
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private long skipPadding(Window window, long position, long length) throws IOException {
+		if (position >= length) {
+			return position;
+		}
+		long end = Math.min(DirectIO.align(position + 1), length);
+		window.ensure(position, (int) (end - position));
+		int start = window.indexOf(position);
+		for (int i = 0; i < end - position; i++) {
+			if (window.buffer[start + i] != 0) {
+				return position;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Finds the next record magic.
+	 *
+	 * @param window the window
+	 * @param position the position to start from
+	 * @param length the length of the segment
+	 * @return the position of the magic, or the length of the segment if there is none
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private long findMagic(Window window, long position, long length) throws IOException {
+		for (; position + 4 <= length; position++) {
+			window.ensure(position, 4);
+			int i = window.indexOf(position);
+			byte[] b = window.buffer;
+			int magic = (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+			if (magic == DataRecords.RECORD_MAGIC) {
+				return position;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * The part of a segment that has been read into memory.
+	 */
+	private static class Window {
+
+		/** The channel. */
+		private final FileChannel channel;
+
+		/** The position of the segment in the file. */
+		private final long base;
+
+		/** The buffer. */
+		private final byte[] buffer = new byte[WINDOW_SIZE];
+
+		/** The position of the start of the buffer in the segment. */
+		private long start;
+
+		/** The number of bytes in the buffer. */
+		private int count;
+
+		/**
+		 * Instantiates a new window.
+		 *
+		 * @param channel the channel
+		 * @param base the position of the segment in the file
+		 */
+		Window(FileChannel channel, long base) {
+			this.channel = channel;
+			this.base = base;
+		}
+
+		/**
+		 * Makes sure that the given range of the segment is in the buffer. The range must exist and be no longer than the buffer.
+		 *
+		 * @param position the position
+		 * @param length the length
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void ensure(long position, int length) throws IOException {
+			if (position >= start && position + length <= start + count) {
+				return;
+			}
+			start = position;
+			count = 0;
+			ByteBuffer target = ByteBuffer.wrap(buffer);
+			while (count < length) {
+				int n = channel.read(target, base + start + count);
+				if (n < 0) {
+					throw new ArchiveException("Read beyond the end of a segment at " + (start + count));
+				}
+				count += n;
+			}
+		}
+
+		/**
+		 * Gets the index in the buffer of a position in the segment.
+		 *
+		 * @param position the position
+		 * @return the index
+		 */
+		int indexOf(long position) {
+			return (int) (position - start);
+		}
+	}
+
+	/**
+	 * The visitor of the valid records of a scan.
+	 */
+	interface RecordVisitor {
+
+		/**
+		 * Visits a record.
+		 *
+		 * @param hash the hash. The array is reused for the next record.
+		 * @param location the location of the block
+		 * @param dataLength the stored length of the block
+		 * @param codec the codec of the block
+		 */
+		void visit(byte[] hash, long location, int dataLength, int codec);
+	}
+
+	/**
+	 * The outcome of the recovery of a bucket.
+	 */
+	public static class Report {
+
+		/** The bucket id. */
+		private final int bucketId;
+
+		/** What was done to the bucket. */
+		private String action;
+
+		/** The number of framed segments scanned. */
+		private int segments;
+
+		/** The number of non-empty raw segments, which cannot be scanned. */
+		private int rawSegments;
+
+		/** The number of bytes scanned. */
+		private long bytesScanned;
+
+		/** The number of valid records. */
+		private long records;
+
+		/** The number of bytes that are not part of a valid record. */
+		private long corruptBytes;
+
+		/** The number of valid records whose hash is not in the index. */
+		private long unindexed;
+
+		/** The number of index entries in framed segments that point at no valid record. */
+		private long dangling;
+
+		/** The time taken (in milliseconds). */
+		private long time;
+
+		/**
+		 * Instantiates a new report.
+		 *
+		 * @param bucketId the bucket id
+		 */
+		Report(int bucketId) {
+			this.bucketId = bucketId;
+		}
+
+		/**
+		 * Gets the number of index entries that point at no valid record.
+		 *
+		 * @return the dangling entries
+		 */
+		public long getDangling() {
+			return dangling;
+		}
+
+		@Override
+		public String toString() {
+			return "Bucket " + bucketId + " " + action + " in " + time + " ms [segments=" + segments + ", rawSegments=" + rawSegments
+					+ ", bytesScanned=" + bytesScanned + ", records=" + records + ", corruptBytes=" + corruptBytes
+					+ ", unindexed=" + unindexed + ", dangling=" + dangling + "]";
+		}
+	}
+}
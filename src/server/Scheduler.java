@@ -3,27 +3,26 @@
  */
 package server;
 
-import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-
-import entities.GetTask;
-import entities.PutTask;
 
 
 /**
- * The Class Scheduler.
+ * The Class Scheduler. A scheduler thread processes the buckets of a single disk.
  */
 public class Scheduler extends Thread {
 
 	private int threadId;
 	
+	/** The disk whose buckets the thread processes. */
+	private int disk;
+	
 	/** The accumulator. */
 	private Accumulator accumulator;
 
 	
-	public Scheduler(int threadId, Accumulator accumulator) {
+	public Scheduler(int threadId, int disk, Accumulator accumulator) {
 		this.threadId = threadId;
+		this.disk = disk;
 		this.accumulator = accumulator;
 	}
 	
@@ -31,27 +30,28 @@ public class Scheduler extends Thread {
 	 * @see java.lang.Thread#run()
 	 */
 	public void run() {
-		System.out.println("Starting scheduler thread " + threadId);
-		Map<Integer, Queue<PutTask>> putMap = accumulator.getPutMap();
-		Map<Integer, Queue<GetTask>> getMap = accumulator.getGetMap();
-		BlockingQueue<Integer> priorityQueue = accumulator.getScheduleQueue();
-		Map<Integer, Long> timerMap = accumulator.getTimerMap();
-		
-		Queue<PutTask> putQueue = null;
-		Queue<GetTask> getQueue = null;
+		System.out.println("Starting scheduler thread " + threadId + " for disk " + disk);
+		ReadyQueue priorityQueue = accumulator.getScheduleQueue(disk);
 		int bucket = 0;
 		
 		while (true) {
 			try {
-				// The task queues of the bucket that has the highest priority can be removed and processed.				
-				// O(log(n))			
+				// The batch of the bucket that has the highest priority can be taken and processed.
+				// O(log(n))
 				bucket = priorityQueue.take();
 				
-				getQueue = getMap.remove(bucket);
-				putQueue = putMap.remove(bucket);
-				timerMap.remove(bucket);
+				// The gets that arrive from now on go to the next batch, which is only processed after this batch's puts are written.
+				BucketBatch batch = accumulator.beginBatch(bucket);
+				if (batch == null) {
+					// Another thread has taken the batch since the bucket was queued again, or is still processing the bucket.
+					continue;
+				}
 				
-				StorageManager.getInstance().processData(bucket, getQueue, putQueue);
+				try {
+					StorageManager.getInstance().processData(bucket, nonEmpty(batch.getGetQueue()), nonEmpty(batch.getPutQueue()), nonEmpty(batch.getDeleteQueue()));
+				} finally {
+					accumulator.endBatch(bucket);
+				}
 				
 			}
 			catch(Exception e) {
@@ -62,4 +62,14 @@ public class Scheduler extends Thread {
 		}
 		
 	}
+	
+	/**
+	 * Gets the queue, or null if it is empty, as the storage manager skips the operations without a queue.
+	 *
+	 * @param queue the queue
+	 * @return the queue or null
+	 */
+	private static <T> Queue<T> nonEmpty(Queue<T> queue) {
+		return queue.isEmpty() ? null : queue;
+	}
 }
@@ -3,29 +3,47 @@
  */
 package server;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
 import utils.Constants;
+import entities.BloomFilter;
 import entities.Bucket;
+import entities.BucketIndex;
 import entities.DataEntry;
+import entities.DeleteTask;
 import entities.GetTask;
 import entities.PutTask;
 import entities.Task;
@@ -44,6 +62,42 @@ public class StorageManager {
 		
 	/** The hashmap to synchronize access to a bucket. */
 	private Map<Integer, Object> syncMap = new ConcurrentHashMap<Integer, Object>(); 
+	
+	/** The journal of the index updates. */
+	private IndexJournal journal = IndexJournal.getInstance();
+	
+	/** The cache of the bucket indexes. */
+	private IndexCache indexCache = IndexCache.getInstance();
+	
+	/** The Bloom filters of the buckets. */
+	private BucketFilters bucketFilters = BucketFilters.getInstance();
+	
+	/** The position at which the next batch is appended to the data file of each bucket. */
+	private Map<Integer, Long> writePositions = new ConcurrentHashMap<Integer, Long>();
+	
+	/** The pool of the open bucket files. */
+	private ChannelPool channelPool = ChannelPool.getInstance();
+	
+	/** The memory mappings of the data files, used by the mapped read mode. */
+	private MappedDataFiles mappedDataFiles = MappedDataFiles.getInstance();
+	
+	/** The data segments of the buckets. */
+	private DataSegments dataSegments = DataSegments.getInstance();
+	
+	/** The compression of the blocks. */
+	private BlockCodec blockCodec = BlockCodec.getInstance();
+	
+	/** The direct I/O of the large blocks. */
+	private DirectIO directIO = DirectIO.getInstance();
+	
+	/** The cache of the hot blocks. */
+	private BlockCache blockCache = BlockCache.getInstance();
+	
+	/** The directory of the split buckets. */
+	private BucketDirectory bucketDirectory = BucketDirectory.getInstance();
+	
+	/** The checkpointer that folds the index journals into the index snapshots. */
+	private IndexCheckpointer checkpointer;
 
 	/**
 	 * Gets the single instance of StorageManager.
@@ -56,6 +110,15 @@ public class StorageManager {
 		}
 		return storageManager;
 	}
+	
+	/**
+	 * Instantiates a new storage manager.
+	 */
+	private StorageManager() {
+		checkpointer = new IndexCheckpointer();
+		checkpointer.execute();
+		Compactor.getInstance();
+	}
 
 	/**
 	 * Process data.
@@ -63,8 +126,9 @@ public class StorageManager {
 	 * @param bucketId the bucket id
 	 * @param getQueue the get queue
 	 * @param putQueue the put queue
+	 * @param deleteQueue the delete queue
 	 */
-	public void processData(int bucketId, Queue<GetTask> getQueue, Queue<PutTask> putQueue) {
+	public void processData(int bucketId, Queue<GetTask> getQueue, Queue<PutTask> putQueue, Queue<DeleteTask> deleteQueue) {
 		//System.out.println("StorageManager - Processing Bucket: " + bucketId);
 		
 		/** The lockObject acts as the lock for the following critical section. 
@@ -72,28 +136,115 @@ public class StorageManager {
 		 *  Any number of threads can execute this section as long as they are operating on different buckets. 
 		 */
 		Object lockObject = getLock(bucketId);
+		Map<Integer, Queue<GetTask>> movedGets;
+		Map<Integer, Queue<PutTask>> movedPuts;
+		Map<Integer, Queue<DeleteTask>> movedDeletes;
 		
-		synchronized (lockObject) {			
-			if ((getQueue == null || getQueue.size() == 0) && (putQueue == null || putQueue.size() == 0)) {
-				// throw new IllegalArgumentException("Invalid task queues.");
-				return;
+		synchronized (lockObject) {
+			// The tasks that were queued before the bucket was split may belong to the new bucket.
+			movedGets = takeMoved(bucketId, getQueue);
+			movedPuts = takeMoved(bucketId, putQueue);
+			movedDeletes = takeMoved(bucketId, deleteQueue);
+			
+			if ((getQueue != null && getQueue.size() > 0) || (putQueue != null && putQueue.size() > 0) || (deleteQueue != null && deleteQueue.size() > 0)) {
+				processBatch(bucketId, getQueue, putQueue, deleteQueue);
 			}
-			//long startTime = System.currentTimeMillis();
-			//System.out.println("size: " + putQueue.size());
-			Bucket bucket = readIndex(bucketId);
-			//System.out.println("Bucket: " + bucket);
+		}
+		
+		if (movedGets != null || movedPuts != null || movedDeletes != null) {
+			Set<Integer> bucketIds = new TreeSet<Integer>();
+			bucketIds.addAll(movedGets != null ? movedGets.keySet() : Collections.<Integer>emptySet());
+			bucketIds.addAll(movedPuts != null ? movedPuts.keySet() : Collections.<Integer>emptySet());
+			bucketIds.addAll(movedDeletes != null ? movedDeletes.keySet() : Collections.<Integer>emptySet());
+			for (int movedBucketId : bucketIds) {
+				processData(movedBucketId, movedGets != null ? movedGets.get(movedBucketId) : null, movedPuts != null ? movedPuts.get(movedBucketId) : null,
+						movedDeletes != null ? movedDeletes.get(movedBucketId) : null);
+			}
+		}
+		// System.out.println("Requests " + requests);
+	}
+	
+	/**
+	 * Takes the tasks whose hashes no longer resolve to the bucket, because the bucket has been split since they were queued.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @param tasks the tasks
+	 * @return the tasks that were taken by the bucket they resolve to, or null if there are none
+	 */
+	private <T extends Task> Map<Integer, Queue<T>> takeMoved(int bucketId, Queue<T> tasks) {
+		// Only a bucket that has been split gives hashes away.
+		if (tasks == null || bucketDirectory.getDepth(bucketId) == Constants.BUCKET_NUM_BITS) {
+			return null;
+		}
+		Map<Integer, Queue<T>> moved = null;
+		for (Iterator<T> iter = tasks.iterator(); iter.hasNext();) {
+			T task = iter.next();
+			int resolved = bucketDirectory.resolve(bucketId, task.getHash());
+			if (resolved != bucketId) {
+				if (moved == null) {
+					moved = new HashMap<Integer, Queue<T>>();
+				}
+				Queue<T> movedTasks = moved.get(resolved);
+				if (movedTasks == null) {
+					movedTasks = new LinkedBlockingQueue<T>();
+					moved.put(resolved, movedTasks);
+				}
+				movedTasks.add(task);
+				iter.remove();
+			}
+		}
+		return moved;
+	}
+	
+	/**
+	 * Process the batch of the bucket. 
+	 * The order of the tasks within a batch is not known, so the batch is applied as its PUTs, then its GETs, then its DELETEs:
+	 * a GET sees the blocks that the batch writes and none that it deletes, and a DELETE of a block that the batch writes finds it.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 * @param getQueue the get queue
+	 * @param putQueue the put queue
+	 * @param deleteQueue the delete queue
+	 */
+	private void processBatch(int bucketId, Queue<GetTask> getQueue, Queue<PutTask> putQueue, Queue<DeleteTask> deleteQueue) {
+		//long startTime = System.currentTimeMillis();
+		//System.out.println("size: " + putQueue.size());
+		BloomFilter filter = loadFilter(bucketId);
+		
+		/**
+		 * The index is only needed when the filter cannot rule out a hash of the batch.
+		 * Otherwise, the GETs and DELETEs are definite misses and the PUTs are definitely new, so they go straight to the append path.
+		 * A resident bucket is still kept up to date with those writes.
+		 */
+		boolean needsIndex = mightContainAny(filter, getQueue) || mightContainAny(filter, putQueue) || mightContainAny(filter, deleteQueue);
+		Bucket bucket = needsIndex ? readIndex(bucketId) : indexCache.peek(bucketId);
+		//System.out.println("Bucket: " + bucket);
+		try {
 			if(putQueue != null) {
 				// Do the write operations.
-				writeData(bucket, putQueue);
+				writeData(bucketId, bucket, filter, putQueue);
+			}
+			if (bucket == null && (mightContainAny(filter, deleteQueue) || mightContainAny(filter, getQueue))) {
+				// The PUTs of the batch may have added the hashes of its GETs or DELETEs. The index is loaded with their journal records.
+				bucket = readIndex(bucketId);
 			}
 			if(getQueue != null) {
 				// Do the read operations.
-				readData(bucket, getQueue);
-			}			
-			//long endTime = System.currentTimeMillis();
-			//System.out.println("Time taken: " + (endTime - startTime) + " ms");
+				readData(bucketId, bucket, filter, getQueue);
+			}
+			if(deleteQueue != null) {
+				// Do the delete operations.
+				deleteData(bucketId, bucket, filter, deleteQueue);
+			}
+		} catch (RuntimeException e) {
+			// The cached bucket may hold entries that never made it to the journal.
+			indexCache.invalidate(bucketId);
+			throw e;
 		}
-		// System.out.println("Requests " + requests);
+		//long endTime = System.currentTimeMillis();
+		//System.out.println("Time taken: " + (endTime - startTime) + " ms");
 	}
 	
 	/**
@@ -102,7 +253,7 @@ public class StorageManager {
 	 * @param bucketId the bucket id
 	 * @return the lock
 	 */
-	private synchronized Object getLock(int bucketId) {		
+	synchronized Object getLock(int bucketId) {		
 		Object obj = syncMap.get(bucketId);
 		if (obj == null) {
 			obj = new Object();
@@ -111,42 +262,94 @@ public class StorageManager {
 		return obj;
 	}
 
+	/**
+	 * Gets a copy of the bucket's filter, which the router uses to send the PUTs of stored blocks as references.
+	 * The router only knows the root buckets. The filter of a root bucket that has been split is the union of the filters of all the buckets it was split into,
+	 * so that no index has to be read for it.
+	 *
+	 * @param bucketId the root bucket id
+	 * @return the filter
+	 */
+	public BloomFilter getFilter(int bucketId) {
+		List<Integer> bucketIds = bucketDirectory.getBuckets(bucketId);
+		if (bucketIds.size() == 1) {
+			synchronized (getLock(bucketId)) {
+				return loadFilter(bucketId).copy();
+			}
+		}
+		
+		List<BloomFilter> filters = new ArrayList<BloomFilter>(bucketIds.size());
+		for (int splitBucketId : bucketIds) {
+			synchronized (getLock(splitBucketId)) {
+				filters.add(loadFilter(splitBucketId).copy());
+			}
+		}
+		// The router adds the hashes of its acknowledged PUTs to the filter's own bits.
+		return bucketFilters.create(0).union(filters);
+	}
+
+	/**
+	 * Checks whether the queue has a hash that the bucket's filter cannot rule out.
+	 *
+	 * @param filter the filter
+	 * @param tasks the tasks
+	 * @return true, if the bucket's index is needed for the tasks
+	 */
+	private boolean mightContainAny(BloomFilter filter, Queue<? extends Task> tasks) {
+		if (tasks != null) {
+			for (Task task : tasks) {
+				if (filter.mightContain(task.getHash())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Read data.
 	 * 
-	 * @param bucket the bucket
+	 * @param bucketId the bucket id
+	 * @param bucket the bucket, or null if no hash of the batch can be in the bucket
+	 * @param filter the bucket's filter
 	 * @param tasks the tasks
 	 */
-	private void readData(Bucket bucket, Queue<GetTask> tasks) {
-		Map<String, DataEntry> index = bucket.getIndex();
+	private void readData(int bucketId, Bucket bucket, BloomFilter filter, Queue<GetTask> tasks) {
+		BucketIndex index = bucket != null ? bucket.getIndex() : null;
 		/**
 		 * Get the offset of the data associated with each task in the queue.
 		 * Sort the offsets and do a lookup in the disk.
 		 */
 		List<DataEntry> dataEntryList = new ArrayList<DataEntry>();
-		DataEntry dataEntry = null;
-		String hash = null;
 		List<GetTask> statusList = new ArrayList<GetTask>();
+		byte[] cached;
 		// System.out.println("Reading " + tasks.size() + " task(s) at a time!");
-		Map<String, GetTask> taskMap = new HashMap<String, GetTask>();
 		
 		for (Iterator<GetTask> iter = tasks.iterator(); iter.hasNext();) {
 			GetTask task = iter.next();
-			hash = new String(task.getHash());
-			
-			dataEntry = index.get(hash);
+			// The bucket is loaded whenever the filter cannot rule out a hash.
+			int slot = filter.mightContain(task.getHash()) ? index.find(task.getHash()) : -1;
 
 			// If the index does not contain the hash
-			if (dataEntry == null) {
+			if (slot < 0) {
 				task.setStatus(false);
 				statusList.add(task);
 				logger.error("Error: There is no data associated with the hash " + task.getHash());
 				System.out.println("There is no data associated with the hash " + task.getHash());	
 				
 			}
+			else if (blockCache.isEnabled() && (cached = blockCache.get(task.getHash())) != null) {
+				// A hot block is answered from the cache.
+				task.setStatus(true);
+				task.setResponseData(cached);
+				statusList.add(task);
+			}
 			else {
-				taskMap.put(hash, task);
-				dataEntry.setHash(hash);
+				DataEntry dataEntry = new DataEntry();
+				dataEntry.setOffset(index.getOffset(slot));
+				dataEntry.setDataLength(index.getDataLength(slot));
+				dataEntry.setCodec(index.getCodec(slot));
+				dataEntry.setTask(task);
 				dataEntryList.add(dataEntry);
 			}
 			
@@ -160,9 +363,15 @@ public class StorageManager {
 		// Sort the list based on the disk offsets to do sequential reads. 
 		Collections.sort(dataEntryList);
 		
-		List<GetTask> readList = readDataFromDisk(bucket, dataEntryList, taskMap);
-		
-		if (readList != null) {
+		if (! dataEntryList.isEmpty()) {
+			List<GetTask> readList = readDataFromDisk(bucketId, dataEntryList);
+			if (blockCache.isEnabled()) {
+				for (GetTask task : readList) {
+					if (task.getStatus()) {
+						blockCache.put(task.getHash(), task.getResponseData(), false);
+					}
+				}
+			}
 			statusList.addAll(readList);
 		}
 		
@@ -173,36 +382,42 @@ public class StorageManager {
 	/**
 	 * Write data.
 	 * 
-	 * @param bucket the bucket
+	 * @param bucketId the bucket id
+	 * @param bucket the bucket, or null if every hash of the batch is definitely new
+	 * @param filter the bucket's filter
 	 * @param tasks the tasks
 	 */
-	private void writeData(Bucket bucket, Queue<PutTask> tasks) {
-		Map<String, DataEntry> index = bucket.getIndex();
-
+	private void writeData(int bucketId, Bucket bucket, BloomFilter filter, Queue<PutTask> tasks) {
 		/**
 		 * Filter the data that is to be written to disk. i.e. Write only the
 		 * blocks that are not already there.
 		 */
 		List<PutTask> dataToWrite = new ArrayList<PutTask>();
+		// So, when the task queue has two or more data blocks which are same, we will add only one copy to 'dataToWrite' list.
+		Set<ByteBuffer> newHashes = new HashSet<ByteBuffer>();
+		// The hashes that get one more reference: the blocks that are already stored and the repeated blocks of this batch.
+		List<byte[]> references = new ArrayList<byte[]>();
 		List<PutTask> statusList = new ArrayList<PutTask>();		
-		String hash = null;
+		List<String> modifiedFiles = new ArrayList<String>();
 		
 		// System.out.println("Writing " + tasks.size() + " task(s) at a time!");
 		
 		for (Iterator<PutTask> iter = tasks.iterator(); iter.hasNext();) {
 			PutTask task = iter.next();
-			hash = new String(task.getHash());			
+			byte[] hash = task.getHash();
 			
-			// If the incoming data block is not a duplicate
-			if (! index.containsKey(hash)) {
+			// If the incoming data block is not a duplicate. The bucket is loaded whenever the filter cannot rule out a hash.
+			boolean stored = filter.mightContain(hash) && bucket.getIndex().contains(hash);
+			if (task.isReference() && ! stored && ! newHashes.contains(ByteBuffer.wrap(hash))) {
+				// The block of the reference is not stored after all. The router sends the data again.
+				task.setStatus(false);
+				statusList.add(task);
+			}
+			else if (! stored && newHashes.add(ByteBuffer.wrap(hash))) {
 				dataToWrite.add(task);
-				/** 
-				 * Put a dummy entry in the index.
-				 * So, when the task queue has two or more data blocks which are same, we will add only one copy to 'dataToWrite' map.
-				 */
-				index.put(hash, null);
 			}
-			else {				
+			else {
+				references.add(hash);
 				task.setStatus(true);
 				statusList.add(task);
 			}
@@ -213,42 +428,273 @@ public class StorageManager {
 			iter.remove();			
 		}		
 		
+		IndexJournal.RecordBatch records = new IndexJournal.RecordBatch();
+		
 		if (dataToWrite.size() > 0) {	
-			// The bucket's index will be modified in place.
-			statusList.addAll(writeDataToDisk(bucket, dataToWrite));
-	
-			// Write (serialize) the modified bucket back to disk.
-			writeIndex(bucket);						
+			// Compress the new blocks. The blocks that do not compress are stored as they are.
+			ByteBuffer[] blocks = new ByteBuffer[dataToWrite.size()];
+			int[] codecs = new int[blocks.length];
+			for (int i = 0; i < blocks.length; i++) {
+				byte[] data = dataToWrite.get(i).getData();
+				ByteBuffer block = Constants.COMPRESSION_CODEC == Constants.CODEC_DEFLATE ? blockCodec.compress(data) : null;
+				codecs[i] = block != null ? Constants.CODEC_DEFLATE : Constants.CODEC_NONE;
+				blocks[i] = block != null ? block : ByteBuffer.wrap(data);
+			}
+			
+			int[] storedLengths = new int[blocks.length];
+			for (int i = 0; i < blocks.length; i++) {
+				storedLengths[i] = blocks[i].remaining();
+			}
+			long[] locations = writeDataToDisk(bucketId, dataToWrite, blocks, codecs);
+			
+			for (int i = 0; i < locations.length; i++) {
+				PutTask task = dataToWrite.get(i);
+				if (bucket != null) {
+					// Add the entry to the bucket's index.
+					bucket.getIndex().put(task.getHash(), locations[i], storedLengths[i], codecs[i]);
+				}
+				filter.add(task.getHash());
+				records.add(IndexJournal.RECORD_ADD, task.getHash(), locations[i], storedLengths[i], codecs[i]);
+				task.setStatus(true);
+				if (blockCache.isEnabled() && Constants.BLOCK_CACHE_FILL == Constants.BLOCK_CACHE_FILL_READ_WRITE) {
+					blockCache.put(task.getHash(), task.getData(), true);
+				}
+			}
+			statusList.addAll(dataToWrite);
+			
+			// A batch is written to a single segment, unless it did not fit in one.
+			for (int i = 0; i < locations.length; i++) {
+				if (i == 0 || DataSegments.getSegmentId(locations[i]) != DataSegments.getSegmentId(locations[i - 1])) {
+					String segmentPath = dataSegments.getSegmentPath(bucketId, DataSegments.getSegmentId(locations[i]));
+					if (! modifiedFiles.contains(segmentPath)) {
+						modifiedFiles.add(segmentPath);
+					}
+				}
+			}
 		}
 		
-		processResponse(statusList);
+		// The references follow the new entries, so that a reference to a block of this batch is replayed after the block.
+		for (byte[] hash : references) {
+			if (bucket != null) {
+				BucketIndex index = bucket.getIndex();
+				index.addReference(index.find(hash));
+			}
+			records.add(IndexJournal.RECORD_REFERENCE, hash, 0, 0, Constants.CODEC_NONE);
+		}
+		
+		if (records.size() > 0) {
+			// Append only the new entries and references to the bucket's index journal.
+			writeIndex(bucketId, filter, records);
+			
+			if (bucket != null) {
+				// The cached bucket has been updated in place. Account for its new size.
+				indexCache.put(bucket);
+			}
+			modifiedFiles.add(journal.getJournalPath(bucketId));
+		}
+		
+		/**
+		 * Even a batch of duplicates waits for the group commit. 
+		 * The blocks that it refers to may have been written by an earlier batch that is not synced yet.
+		 */
+		respond(bucketId, modifiedFiles, statusList);
 		statusList = null;
 	}
 
 	/**
-	 * Read index.
+	 * Delete data. A DELETE removes a reference from the block of its hash. 
+	 * The block is removed from the index with its last reference and its space is reclaimed later by the compactor.
+	 * 
+	 * @param bucketId the bucket id
+	 * @param bucket the bucket, or null if no hash of the batch can be in the bucket
+	 * @param filter the bucket's filter
+	 * @param tasks the tasks
+	 */
+	private void deleteData(int bucketId, Bucket bucket, BloomFilter filter, Queue<DeleteTask> tasks) {
+		List<DeleteTask> statusList = new ArrayList<DeleteTask>();
+		List<String> modifiedFiles = new ArrayList<String>();
+		IndexJournal.RecordBatch records = new IndexJournal.RecordBatch();
+		long garbage = 0;
+		
+		for (Iterator<DeleteTask> iter = tasks.iterator(); iter.hasNext();) {
+			DeleteTask task = iter.next();
+			byte[] hash = task.getHash();
+			// The bucket is loaded whenever the filter cannot rule out a hash.
+			int slot = filter.mightContain(hash) ? bucket.getIndex().find(hash) : -1;
+			
+			// If the index does not contain the hash
+			if (slot < 0) {
+				task.setStatus(false);
+				logger.error("Error: There is no data associated with the hash " + hash);
+			}
+			else {
+				BucketIndex index = bucket.getIndex();
+				int dataLength = index.getDataLength(slot);
+				if (index.removeReference(slot) == 0) {
+					garbage += dataLength;
+				}
+				records.add(IndexJournal.RECORD_DELETE, hash, 0, 0, Constants.CODEC_NONE);
+				task.setStatus(true);
+			}
+			statusList.add(task);
+			
+			/**
+			 * Remove the task after processing it in order to avoid situations
+			 * where there will be duplicate task entries in the bucket queues because of multi-threading.
+			 */
+			iter.remove();
+		}
+		
+		if (records.size() > 0) {
+			writeIndex(bucketId, filter, records);
+			modifiedFiles.add(journal.getJournalPath(bucketId));
+		}
+		if (garbage > 0) {
+			Compactor.getInstance().addGarbage(bucketId, garbage);
+		}
+		
+		respond(bucketId, modifiedFiles, statusList);
+	}
+
+	/**
+	 * Read index. The bucket is served from the index cache when it is resident.
+	 * Otherwise, it is read from the index snapshot, the index journal is replayed on top of it and the bucket is cached.
 	 * 
 	 * @param bucketId the bucket id
 	 * @return bucket
 	 */
-	private Bucket readIndex(int bucketId) {
+	Bucket readIndex(int bucketId) {
+		Bucket bucket = indexCache.get(bucketId);
+		if (bucket != null) {
+			return bucket;
+		}
+		
+		bucket = loadIndex(bucketId);
+		indexCache.put(bucket);
+		return bucket;
+	}
+	
+	/**
+	 * Load filter. The filter is kept resident once loaded.
+	 * Otherwise, it is read from its file, or built from the index if the bucket has no filter file yet (e.g. it predates the filters),
+	 * and the hashes of the index journal are added to it.
+	 *
+	 * @param bucketId the bucket id
+	 * @return the bucket's filter
+	 */
+	private BloomFilter loadFilter(int bucketId) {
+		BloomFilter filter = bucketFilters.get(bucketId);
+		if (filter != null) {
+			return filter;
+		}
+		
+		filter = bucketFilters.read(bucketId);
+		if (filter == null) {
+			String bucketPath = Constants.BUCKET_DIR + File.separator + bucketId + Constants.INDEX_FILE_EXTENSION;
+			if (new File(bucketPath).exists()) {
+				// The index already includes the journal.
+				filter = bucketFilters.build(readIndex(bucketId).getIndex());
+				bucketFilters.write(bucketId, filter);
+				bucketFilters.put(bucketId, filter);
+				return filter;
+			}
+			filter = bucketFilters.create(0);
+		}
+		
+		journal.addHashes(bucketId, filter);
+		bucketFilters.put(bucketId, filter);
+		return filter;
+	}
+	
+	/**
+	 * Load the bucket from the index snapshot and the index journal.
+	 *
+	 * @param bucketId the bucket id
+	 * @return bucket
+	 */
+	private Bucket loadIndex(int bucketId) {
 		String bucketPath = Constants.BUCKET_DIR + File.separator + bucketId + Constants.INDEX_FILE_EXTENSION;
+		
+		File file = new File(bucketPath.substring(0, bucketPath.lastIndexOf("/")));
+		
+		// Create the directory if it is not already there.			
+		if (! file.exists()) {				
+			file.mkdirs();
+			return new Bucket(bucketId);
+		}
+		
+		// If the bucket file is not present, start from a new bucket.
+		Bucket bucket = new File(bucketPath).exists() ? readSnapshot(bucketPath) : new Bucket(bucketId);
+		
+		if (bucket.getLegacyIndex() != null) {
+			migrateLegacyIndex(bucket);
+		}
+		
+		journal.replay(bucket);
+		return bucket;
+	}
+	
+	/**
+	 * Migrate the index of an older snapshot, which is keyed by the String form of the hash, to the bucket index.
+	 * That String form is lossy, so the hash of every entry is recomputed from its data on disk. 
+	 * The migrated bucket is written back as a new snapshot, so this happens only once per bucket.
+	 *
+	 * @param bucket the bucket
+	 */
+	private void migrateLegacyIndex(Bucket bucket) {
+		logger.info("Migrating the index of bucket " + bucket.getId());
+		// The older data files are the first segment.
+		String filePath = dataSegments.getSegmentPath(bucket.getId(), 0);
+		BucketIndex index = bucket.getIndex();
+		RandomAccessFile raf = null;
+		
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			raf = new RandomAccessFile(filePath, "r");
+			
+			for (DataEntry dataEntry : bucket.getLegacyIndex().values()) {
+				// Dummy entries of a batch that never completed.
+				if (dataEntry == null) {
+					continue;
+				}
+				byte[] data = new byte[dataEntry.getDataLength()];
+				raf.seek(dataEntry.getOffset());
+				raf.readFully(data);
+				index.put(md.digest(data), dataEntry.getOffset(), dataEntry.getDataLength(), Constants.CODEC_NONE);
+			}
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new ArchiveException(e);
+		} finally {
+			try {
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+				throw new ArchiveException(e);
+			}
+		}
+		
+		bucket.setLegacyIndex(null);
+		writeSnapshot(bucket, Constants.INDEX_FORMAT);
+	}
+	
+	/**
+	 * Read the bucket from the index snapshot. A binary snapshot is mapped, an older snapshot is deserialized.
+	 *
+	 * @param bucketPath the bucket path
+	 * @return bucket
+	 */
+	private Bucket readSnapshot(String bucketPath) {
 		ObjectInputStream inputStream = null;
 		Bucket bucket = null;
 		try {			
-			File file = new File(bucketPath.substring(0, bucketPath.lastIndexOf("/")));
-			
-			// Create the directory if it is not already there.			
-			if (! file.exists()) {				
-				file.mkdirs();
-				return new Bucket(bucketId);
-			}
-			
-			// If the bucket file is not present, simply return a new bucket.
-			if (! new File(bucketPath).exists()) {
-				return new Bucket(bucketId);
+			if (IndexFile.isBinary(bucketPath)) {
+				return IndexFile.read(bucketPath);
 			}
-			
 			inputStream = new ObjectInputStream(new FileInputStream(bucketPath));
 			bucket = (Bucket) inputStream.readObject();						
 			
@@ -274,66 +720,174 @@ public class StorageManager {
 	}
 
 	/**
-	 * Write index.
+	 * Write index. Only the records of the batch are appended to the bucket's index journal.
+	 * A checkpoint is requested once the journal grows past the threshold, or once the bucket's filter holds more entries than it was sized for.
 	 * 
-	 * @param bucket the bucket
+	 * @param bucketId the bucket id
+	 * @param filter the bucket's filter
+	 * @param records the records of the batch
 	 */
-	private void writeIndex(Bucket bucket) {
-		if (bucket == null) {
-			throw new IllegalArgumentException("Invalid bucketId or task queue.");
+	private void writeIndex(int bucketId, BloomFilter filter, IndexJournal.RecordBatch records) {
+		journal.append(bucketId, records);
+		
+		if (journal.getRecordCount(bucketId) >= Constants.JOURNAL_CHECKPOINT_THRESHOLD || filter.getCount() > filter.getCapacity()) {
+			checkpointer.requestCheckpoint(bucketId);
 		}
-
+	}
+	
+	/**
+	 * Write (serialize) the whole bucket to the index snapshot. 
+	 * The snapshot is written to a temporary file which then replaces the old snapshot, so that a torn write never leaves a corrupt snapshot behind.
+	 *
+	 * @param bucket the bucket
+	 * @param format the snapshot format
+	 */
+	private void writeSnapshot(Bucket bucket, int format) {
 		String bucketPath = Constants.BUCKET_DIR + File.separator + bucket.getId() + Constants.INDEX_FILE_EXTENSION;
-		ObjectOutputStream outputStream = null;
+		String tempPath = bucketPath + ".tmp";
+		FileOutputStream fos = null;
 
 		try {
-			outputStream = new ObjectOutputStream(new FileOutputStream(bucketPath));
-			outputStream.writeObject(bucket);
-			outputStream.flush();
+			fos = new FileOutputStream(tempPath);
+			if (format == Constants.INDEX_FORMAT_BINARY) {
+				IndexFile.write(bucket, fos.getChannel());
+			}
+			else {
+				ObjectOutputStream outputStream = new ObjectOutputStream(fos);
+				outputStream.writeObject(bucket);
+				outputStream.flush();
+			}
+			// The snapshot must be on disk before the journal that it replaces is deleted.
+			fos.getFD().sync();
 		} catch (IOException e) {
 			logger.error(e);
 			throw new ArchiveException(e);
 		} finally {
 			try {
-				if (outputStream != null) {
-					outputStream.close();
+				if (fos != null) {
+					fos.close();
 				}
 			} catch (IOException e) {
 				logger.error(e);
 				throw new ArchiveException(e);
 			}
 		}
+		
+		try {
+			Files.move(Paths.get(tempPath), Paths.get(bucketPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error(e);
+			throw new ArchiveException(e);
+		}
 	}
 
 	/**
 	 * Read data from disk.
 	 *
-	 * @param bucket the bucket
+	 * @param bucketId the bucket id
 	 * @param dataEntries the data entries
 	 * @return list
 	 */
-	private List<GetTask> readDataFromDisk(Bucket bucket, List<DataEntry> dataEntries, Map<String, GetTask> taskMap) {
+	private List<GetTask> readDataFromDisk(int bucketId, List<DataEntry> dataEntries) {
+		if (Constants.READ_MODE == Constants.READ_MODE_PARALLEL) {
+			return ReadPool.getInstance().read(bucketId, dataEntries);
+		}
+		
 		List<GetTask> statusList = new ArrayList<GetTask>();
 
-		String filePath = Constants.DATA_DIR + File.separator + bucket.getId() + Constants.DATASTORE_FILE_EXTENSION;
-		RandomAccessFile raf = null;
-		// System.out.println("Reading data from disk for bucket " + bucket.getId());		
+		String filePath = null;
+		int fileSegmentId = -1;
+		long base = 0;
+		boolean fileExists = false;
+		FileChannel channel = null;
+		// The buffer of the merged reads.
+		byte[] range = null;
+		// System.out.println("Reading data from disk for bucket " + bucketId);		
 		try {
-			File file = new File(filePath);
-			if (! file.exists()) {
-				logger.error("There is no file for bucket " + bucket.getId());
-				System.out.println("There is no file for bucket " + bucket.getId());
-				return null;
-			}
-			
-			raf = new RandomAccessFile(filePath, "r");
-			for (DataEntry dataEntry : dataEntries) {
-				byte[] data = new byte[dataEntry.getDataLength()];
-				// Seek to the data's offset and read the data.
-				raf.seek(dataEntry.getOffset());
-				raf.read(data, 0, data.length);				
+			for (int i = 0; i < dataEntries.size(); i++) {
+				DataEntry dataEntry = dataEntries.get(i);
+				GetTask task = dataEntry.getTask();
+				long location = dataEntry.getOffset();
+				
+				// The entries are sorted by location, so the entries of a segment are read together.
+				int segmentId = DataSegments.getSegmentId(location);
+				if (segmentId != fileSegmentId) {
+					if (channel != null) {
+						channelPool.release(filePath, channel);
+						channel = null;
+					}
+					fileSegmentId = segmentId;
+					filePath = dataSegments.getSegmentPath(bucketId, segmentId);
+					base = dataSegments.getSegmentBase(bucketId, segmentId);
+					fileExists = dataSegments.exists(bucketId, segmentId);
+					if (! fileExists) {
+						logger.error("There is no file " + filePath + " for bucket " + bucketId);
+						System.out.println("There is no file " + filePath + " for bucket " + bucketId);
+					}
+					else if (Constants.READ_MODE == Constants.READ_MODE_STREAM) {
+						channel = channelPool.acquire(filePath, false);
+					}
+				}
+				
+				if (! fileExists) {
+					task.setStatus(false);
+					statusList.add(task);
+					continue;
+				}
+				
+				int dataLength = dataEntry.getDataLength();
+				boolean compressed = dataEntry.getCodec() == Constants.CODEC_DEFLATE;
+				long offset = base + DataSegments.getSegmentOffset(location);
+				if (directIO.isDirect(dataLength)) {
+					// Read the large block past the page cache.
+					byte[] data = directIO.read(filePath, offset, dataLength);
+					task.setStatus(true);
+					task.setResponseData(compressed ? blockCodec.decompress(data, 0, dataLength) : data);
+					statusList.add(task);
+					continue;
+				}
+				
+				int last = channel != null ? getRangeEnd(dataEntries, i) : i;
+				if (last > i) {
+					// Read the blocks that lie close together with a single read, and slice them out of it.
+					long rangeEnd = location;
+					for (int k = i; k <= last; k++) {
+						rangeEnd = Math.max(rangeEnd, dataEntries.get(k).getOffset() + dataEntries.get(k).getDataLength());
+					}
+					int rangeLength = (int) (rangeEnd - location);
+					if (range == null || range.length < rangeLength) {
+						range = new byte[Math.max(rangeLength, Constants.READ_COALESCE_MAX_SIZE)];
+					}
+					readFully(channel, ByteBuffer.wrap(range, 0, rangeLength), offset);
+					
+					for (int k = i; k <= last; k++) {
+						DataEntry entry = dataEntries.get(k);
+						int start = (int) (entry.getOffset() - location);
+						int length = entry.getDataLength();
+						byte[] data = entry.getCodec() == Constants.CODEC_DEFLATE ? blockCodec.decompress(range, start, length)
+								: Arrays.copyOfRange(range, start, start + length);
+						entry.getTask().setStatus(true);
+						entry.getTask().setResponseData(data);
+						statusList.add(entry.getTask());
+					}
+					i = last;
+					continue;
+				}
+				
+				// A compressed block is read into the thread's buffer and decompressed from there.
+				byte[] data = compressed ? blockCodec.getReadBuffer(dataLength) : new byte[dataLength];
+				if (channel != null) {
+					// Read the data at its offset.
+					readFully(channel, ByteBuffer.wrap(data, 0, dataLength), offset);
+				}
+				else {
+					// Copy the data out of the page cache.
+					mappedDataFiles.read(filePath, offset, data, dataLength);
+				}
+				if (compressed) {
+					data = blockCodec.decompress(data, 0, dataLength);
+				}
 				
-				GetTask task = taskMap.get(dataEntry.getHash());
 				task.setStatus(true);
 				task.setResponseData(data);
 				
@@ -344,85 +898,338 @@ public class StorageManager {
 			logger.error(e);
 			throw new ArchiveException(e);
 		} finally {
-			try {
-				if (raf != null) {
-					raf.close();
-				}				
-			} catch (IOException e) {
-				logger.error(e);
-				throw new ArchiveException(e);
+			if (channel != null) {
+				channelPool.release(filePath, channel);
 			}
 		}
 		
 		return statusList;
 
 	}
+	
+	/**
+	 * Gets the last of the entries, starting from the given one, that can be read with a single read:
+	 * they are in the same segment, the gap before each of them is at most READ_COALESCE_GAP, and they span at most READ_COALESCE_MAX_SIZE.
+	 * The blocks that are read with direct I/O are read on their own.
+	 *
+	 * @param dataEntries the data entries, sorted by location
+	 * @param first the index of the first entry
+	 * @return the index of the last entry
+	 */
+	static int getRangeEnd(List<DataEntry> dataEntries, int first) {
+		DirectIO directIO = DirectIO.getInstance();
+		if (Constants.READ_COALESCE_GAP < 0 || directIO.isDirect(dataEntries.get(first).getDataLength())) {
+			return first;
+		}
+		long start = dataEntries.get(first).getOffset();
+		long end = start + dataEntries.get(first).getDataLength();
+		int segmentId = DataSegments.getSegmentId(start);
+		int last = first;
+		
+		for (int i = first + 1; i < dataEntries.size(); i++) {
+			long location = dataEntries.get(i).getOffset();
+			long locationEnd = location + dataEntries.get(i).getDataLength();
+			if (DataSegments.getSegmentId(location) != segmentId || location - end > Constants.READ_COALESCE_GAP
+					|| directIO.isDirect(dataEntries.get(i).getDataLength())
+					|| Math.max(end, locationEnd) - start > Constants.READ_COALESCE_MAX_SIZE) {
+				break;
+			}
+			end = Math.max(end, locationEnd);
+			last = i;
+		}
+		return last;
+	}
+	
+	/**
+	 * Read from the channel at the given position until the buffer is full.
+	 *
+	 * @param channel the channel
+	 * @param buffer the buffer
+	 * @param position the position
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Read beyond the end of the file at " + position);
+			}
+			position += read;
+		}
+	}
 
 	/**
 	 * Write data to disk.
 	 *
-	 * @param bucket the bucket
-	 * @param dataToWrite the data
-	 * @return list
+	 * @param bucketId the bucket id
+	 * @param dataToWrite the tasks of the blocks
+	 * @param blocks the blocks as they are stored
+	 * @param codecs the codecs of the blocks
+	 * @return the locations at which the blocks have been written
 	 */
-	private List<PutTask> writeDataToDisk(Bucket bucket, List<PutTask> dataToWrite) {
-		OutputStream os = null;
+	private long[] writeDataToDisk(int bucketId, List<PutTask> dataToWrite, ByteBuffer[] blocks, int[] codecs) {
+		FileChannel channel = null;
 
-		String filePath = Constants.DATA_DIR + File.separator + bucket.getId() + Constants.DATASTORE_FILE_EXTENSION;
+		int segmentId = dataSegments.getActiveSegment(bucketId);
+		String filePath = null;
 		
-		List<PutTask> statusList = new ArrayList<PutTask>();
+		long[] locations = new long[blocks.length];
 		
 		try {
-			File f = new File(filePath.substring(0, filePath.lastIndexOf("/")));
-			// If this is the first write, create the dir first.
-			if(! f.exists()) {
-				f.mkdirs();
+			// The position is tracked across batches. It is only read from the file system (or the allocation table) on the first write of the bucket.
+			Long position = writePositions.get(bucketId);
+			if (position == null) {
+				position = dataSegments.getSegmentLength(bucketId, segmentId);
 			}
 			
-			long offset = 0;
-			f = new File(filePath);
-			
-			if(f.exists()) {
-				offset = f.length();
+			boolean framed = Constants.RECORD_FORMAT == Constants.RECORD_FORMAT_FRAMED;
+			int headerLength = framed ? DataRecords.HEADER_LENGTH : 0;
+			long batchLength = 0;
+			for (ByteBuffer block : blocks) {
+				batchLength += headerLength + block.remaining();
+				if (directIO.isDirect(block.remaining())) {
+					// The padding around a direct block.
+					batchLength += 2 * Constants.DIRECT_IO_ALIGNMENT;
+				}
 			}
 			
-			os = new FileOutputStream(filePath, true);
-			Map<String, DataEntry> index = bucket.getIndex();			
+			/**
+			 * Roll over to a new segment once the active segment is full, or if it is in the other record format. 
+			 * A batch is only split across segments if it does not fit in a segment (an extent of a container) of its own.
+			 */
+			if (position > 0 && (position + batchLength > Constants.DATA_SEGMENT_SIZE || dataSegments.isFramed(bucketId, segmentId) != framed)) {
+				segmentId = dataSegments.rollOver(bucketId);
+				position = 0L;
+			}
+			dataSegments.create(bucketId, segmentId);
+			filePath = dataSegments.getSegmentPath(bucketId, segmentId);
+			// The offsets are relative to the segment, the writes go to its base in the file.
+			long base = dataSegments.getSegmentBase(bucketId, segmentId);
 			
-			for (PutTask task : dataToWrite) {
-				byte[] data = task.getData();
-				os.write(data);
-				
-				DataEntry dataEntry = new DataEntry();
-				dataEntry.setOffset(offset);
-				dataEntry.setDataLength(data.length);
-				if(index.get(task.getHash()) != null){
-					System.out.println("Goner!!");
+			/**
+			 * Gather the whole batch, so that it goes to the file in as few (vectored) writes as possible.
+			 * A direct block (with its header) is written on its own, at an aligned offset, and padded to an aligned length.
+			 */
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(framed ? 2 * blocks.length + 1 : blocks.length);
+			long offset = position;
+			channel = channelPool.acquire(filePath, true);
+			if (framed && position == 0) {
+				buffers.add(DataRecords.segmentHeader());
+				offset += DataRecords.SEGMENT_HEADER_LENGTH;
+			}
+			for (int i = 0; i < locations.length; i++) {
+				ByteBuffer header = framed ? DataRecords.recordHeader(dataToWrite.get(i).getHash(), blocks[i], codecs[i]) : null;
+				long recordLength = headerLength + blocks[i].remaining() + (directIO.isDirect(blocks[i].remaining()) ? 2 * Constants.DIRECT_IO_ALIGNMENT : 0);
+				if (i > 0 && offset + recordLength > dataSegments.getSegmentCapacity()) {
+					// The rest of the batch goes to a new segment.
+					writeFully(channel, base + position, buffers.toArray(new ByteBuffer[buffers.size()]));
+					buffers.clear();
+					dataSegments.setSegmentLength(bucketId, segmentId, offset);
+					channelPool.release(filePath, channel);
+					channel = null;
+					
+					segmentId = dataSegments.rollOver(bucketId);
+					dataSegments.create(bucketId, segmentId);
+					filePath = dataSegments.getSegmentPath(bucketId, segmentId);
+					base = dataSegments.getSegmentBase(bucketId, segmentId);
+					channel = channelPool.acquire(filePath, true);
+					position = 0L;
+					offset = 0;
+					if (framed) {
+						buffers.add(DataRecords.segmentHeader());
+						offset += DataRecords.SEGMENT_HEADER_LENGTH;
+					}
 				}
-				// Add the entry to the bucket's index.
-				index.put(new String(task.getHash()), dataEntry);
-
-				offset += data.length;				
-				
-				task.setStatus(true);
-				statusList.add(task);
+				if (offset + recordLength > dataSegments.getSegmentCapacity()) {
+					writePositions.remove(bucketId);
+					throw new ArchiveException("A block of " + blocks[i].remaining() + " bytes of bucket " + bucketId + " does not fit in a segment");
+				}
+				if (directIO.isDirect(blocks[i].remaining())) {
+					// Write the blocks before it first.
+					writeFully(channel, base + position, buffers.toArray(new ByteBuffer[buffers.size()]));
+					buffers.clear();
+					
+					long recordOffset = DirectIO.align(offset);
+					locations[i] = DataSegments.toLocation(segmentId, recordOffset + headerLength);
+					offset = (framed ? directIO.write(filePath, base + recordOffset, header, blocks[i])
+							: directIO.write(filePath, base + recordOffset, blocks[i])) - base;
+					position = offset;
+					continue;
+				}
+				if (framed) {
+					buffers.add(header);
+					offset += headerLength;
+				}
+				buffers.add(blocks[i]);
+				locations[i] = DataSegments.toLocation(segmentId, offset);
+				offset += blocks[i].remaining();
 			}
+			
+			writeFully(channel, base + position, buffers.toArray(new ByteBuffer[buffers.size()]));
+			dataSegments.setSegmentLength(bucketId, segmentId, offset);
+			writePositions.put(bucketId, offset);
 
 		} catch (IOException e) {
+			// The batch may have been written partially. Start from the segment's length again.
+			writePositions.remove(bucketId);
 			logger.error(e);
 			throw new ArchiveException(e);
 		} finally {
-			try {
-				if (os != null) {
-					os.close();
+			if (channel != null) {
+				channelPool.release(filePath, channel);
+			}
+		}
+		return locations;
+	}
+	
+	/**
+	 * Write all the buffers at the given position of the channel with gathering writes.
+	 * A single gathering write takes at most MAX_GATHER_BUFFERS buffers (the limit of the operating system on the number of I/O vectors).
+	 * A gathering write goes to the channel's position, so the channel is locked while it is moved: in the container layout, the buckets of a container
+	 * share its channel.
+	 *
+	 * @param channel the channel
+	 * @param position the position
+	 * @param buffers the buffers
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeFully(FileChannel channel, long position, ByteBuffer[] buffers) throws IOException {
+		synchronized (channel) {
+			channel.position(position);
+			int first = 0;
+			while (first < buffers.length) {
+				channel.write(buffers, first, Math.min(buffers.length - first, Constants.MAX_GATHER_BUFFERS));
+				// Skip the buffers that have been written completely. A write may stop in the middle of a buffer.
+				while (first < buffers.length && ! buffers[first].hasRemaining()) {
+					first++;
 				}
-			} catch (IOException e) {
-				logger.error(e);
-				throw new ArchiveException(e);
 			}
-
 		}
-		return statusList;
+	}
+	
+	/**
+	 * Fold the bucket's index journal into its index snapshot. The bucket's filter is rebuilt from the whole index, with room for the index to grow.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	private void checkpoint(int bucketId) {
+		Object lockObject = getLock(bucketId);
+		
+		synchronized (lockObject) {
+			if (journal.getRecordCount(bucketId) == 0) {
+				return;
+			}
+			long startTime = System.currentTimeMillis();
+			Bucket bucket = readIndex(bucketId);
+			writeCheckpoint(bucket, Constants.INDEX_FORMAT);
+			logger.info("Checkpointed the index of bucket " + bucketId + " in " + (System.currentTimeMillis() - startTime) + " ms");
+			
+			if (Constants.BUCKET_SPLIT_THRESHOLD > 0 && bucket.getIndex().size() >= Constants.BUCKET_SPLIT_THRESHOLD) {
+				BucketSplitter.getInstance().requestSplit(bucketId);
+			}
+		}
+	}
+	
+	/**
+	 * Write the bucket's filter and index snapshot, and reset its index journal, whose records the snapshot includes.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucket the bucket
+	 * @param format the snapshot format
+	 */
+	private void writeCheckpoint(Bucket bucket, int format) {
+		int bucketId = bucket.getId();
+		// The filter is written first, so that a persisted filter always covers the snapshot.
+		BloomFilter filter = bucketFilters.build(bucket.getIndex());
+		bucketFilters.write(bucketId, filter);
+		writeSnapshot(bucket, format);
+		journal.reset(bucketId);
+		bucketFilters.put(bucketId, filter);
+	}
+	
+	/**
+	 * Rewrites the bucket's index snapshot in the binary format (see IndexConverter), folding its journal into it.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	void convertIndex(int bucketId) {
+		synchronized (getLock(bucketId)) {
+			writeCheckpoint(readIndex(bucketId), Constants.INDEX_FORMAT_BINARY);
+		}
+	}
+	
+	/**
+	 * Warms up the bucket: loads its filter and its index into memory, and finds its active segment.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	void warm(int bucketId) {
+		synchronized (getLock(bucketId)) {
+			loadFilter(bucketId);
+			readIndex(bucketId);
+			dataSegments.getActiveSegment(bucketId);
+		}
+	}
+	
+	/**
+	 * Replaces the bucket's index with the given bucket, e.g. one that was rebuilt from the data, and checkpoints it.
+	 * The records of the bucket's journal are replayed on top of it first.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucket the bucket
+	 */
+	void restoreIndex(Bucket bucket) {
+		journal.replay(bucket);
+		writeCheckpoint(bucket, Constants.INDEX_FORMAT);
+		indexCache.put(bucket);
+	}
+	
+	/**
+	 * Replaces the bucket's index with the given bucket, which already includes the records of the bucket's journal, and checkpoints it.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucket the bucket
+	 */
+	void replaceIndex(Bucket bucket) {
+		writeCheckpoint(bucket, Constants.INDEX_FORMAT);
+		indexCache.put(bucket);
+	}
+	
+	/**
+	 * Deletes the files and drops the state of a bucket that does not exist, e.g. what an interrupted split of its parent bucket left behind.
+	 * The caller must hold the bucket's lock.
+	 *
+	 * @param bucketId the bucket id
+	 */
+	void discard(int bucketId) {
+		indexCache.invalidate(bucketId);
+		journal.reset(bucketId);
+		writePositions.remove(bucketId);
+		for (int segmentId : dataSegments.getSegmentIds(bucketId)) {
+			dataSegments.delete(bucketId, segmentId);
+			logger.info("Deleted the leftover segment " + segmentId + " of bucket " + bucketId);
+		}
+		File snapshot = new File(Constants.BUCKET_DIR + File.separator + bucketId + Constants.INDEX_FILE_EXTENSION);
+		if (snapshot.exists() && ! snapshot.delete()) {
+			throw new ArchiveException("Unable to delete " + snapshot);
+		}
+	}
+	
+	/**
+	 * Send the response of a batch that modified the given files.
+	 * Unless the writes are not synced at all, the response is held back until the files have been synced by the group committer of the bucket's disk.
+	 *
+	 * @param bucketId the bucket id
+	 * @param modifiedFiles the modified files
+	 * @param statusList the status list
+	 */
+	private void respond(int bucketId, List<String> modifiedFiles, List<? extends Task> statusList) {
+		if (Constants.DURABILITY_MODE == Constants.DURABILITY_NONE) {
+			processResponse(statusList);
+		}
+		else {
+			GroupCommitter.getInstance(DataSegments.getDisk(bucketId)).commit(modifiedFiles, statusList);
+		}
 	}
 	
 	/**
@@ -438,4 +1245,76 @@ public class StorageManager {
 		}
 	}	
 	
+	/**
+	 * Class to checkpoint the index journals in the background.
+	 * A bucket is checkpointed as soon as its journal grows past the threshold. 
+	 * In addition, all the non-empty journals are checkpointed periodically, so that replaying a journal stays cheap.
+	 */
+	class IndexCheckpointer {
+		
+		/** The scheduled executor service. */
+		private final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+		
+		/** The buckets that have a checkpoint pending. */
+		private final Set<Integer> pendingBuckets = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		
+		/**
+		 * Request a checkpoint of the given bucket. 
+		 *
+		 * @param bucketId the bucket id
+		 */
+		private void requestCheckpoint(final int bucketId) {
+			// Only one checkpoint of a bucket needs to be pending at a time.
+			if (! pendingBuckets.add(bucketId)) {
+				return;
+			}
+			scheduledExecutorService.execute(new Runnable() {
+				
+				public void run() {
+					pendingBuckets.remove(bucketId);
+					try {
+						checkpoint(bucketId);
+					} catch (Exception e) {
+						logger.error("Checkpoint of bucket " + bucketId + " failed. Exception: " + e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Execute.
+		 */
+		private void execute() {
+			final Runnable journalChecker = new Runnable() {
+				
+				public void run() {
+					logger.info(indexCache);
+					if (blockCache.isEnabled()) {
+						logger.info(blockCache);
+					}
+					logger.info(channelPool);
+					if (Constants.DURABILITY_MODE != Constants.DURABILITY_NONE) {
+						for (int disk = 0; disk < Constants.DATA_DIRS.length; disk++) {
+							logger.info(GroupCommitter.getInstance(disk));
+						}
+					}
+					logger.info(Compactor.getInstance());
+					if (Constants.BUCKET_SPLIT_THRESHOLD > 0) {
+						logger.info(BucketSplitter.getInstance());
+					}
+					if (Constants.COMPRESSION_CODEC != Constants.CODEC_NONE) {
+						logger.info(blockCodec);
+					}
+					for (int bucketId : journal.getBucketIds()) {
+						if (journal.getRecordCount(bucketId) > 0) {
+							requestCheckpoint(bucketId);
+						}
+					}
+				}
+			};
+			
+			scheduledExecutorService.scheduleAtFixedRate(journalChecker, Constants.JOURNAL_CHECKPOINT_PERIOD, Constants.JOURNAL_CHECKPOINT_PERIOD, TimeUnit.MILLISECONDS);
+		}
+	}
+	
 }
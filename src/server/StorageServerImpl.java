@@ -13,6 +13,8 @@ import java.util.concurrent.LinkedBlockingQueue;
 import api.Router;
 import api.ServerToRouter;
 import api.StorageServer;
+import entities.BloomFilter;
+import entities.DeleteTask;
 import entities.GetTask;
 import entities.PutTask;
 import entities.Task;
@@ -87,6 +89,8 @@ public class StorageServerImpl extends UnicastRemoteObject implements StorageSer
 	public void assignTask(int bucketId, Task task) {
 		
 		Accumulator accumulator = Accumulator.getInstance();
+		// The router picks the root bucket. It may have been split since.
+		bucketId = BucketDirectory.getInstance().resolve(bucketId, task.getHash());
 		// if put task
 		if (task instanceof PutTask) {
 			accumulator.addToPutQueue(bucketId, (PutTask) task);
@@ -95,11 +99,23 @@ public class StorageServerImpl extends UnicastRemoteObject implements StorageSer
 		else if (task instanceof GetTask) {
 			accumulator.addToGetQueue(bucketId, (GetTask) task);
 		}
+		// if delete task
+		else if (task instanceof DeleteTask) {
+			accumulator.addToDeleteQueue(bucketId, (DeleteTask) task);
+		}
 		else {
 			throw new ArchiveException("Invalid Task");
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see api.StorageServer#getFilter(int)
+	 */
+	@Override
+	public BloomFilter getFilter(int bucketId) {
+		return StorageManager.getInstance().getFilter(bucketId);
+	}
+	
 	/**
 	 * Process response.
 	 *
@@ -144,6 +160,11 @@ public class StorageServerImpl extends UnicastRemoteObject implements StorageSer
 		String routerURL = "//" + routerDomainName + "/" + Router.SERVICE_NAME;
 		ServerToRouter router = (ServerToRouter) Naming.lookup(routerURL);
 		
+		// Verify or rebuild the bucket indexes before taking any requests.
+		RecoveryScanner.getInstance().recover();
+		// Load the bucket indexes, so that the first batch of a bucket does not have to. This waits for the preload only in the blocking mode.
+		IndexPreloader.getInstance().preload();
+		
 		StorageServerImpl server = StorageServerImpl.getInstance();
 		router.register(server);
 		server.setRouter(router);
@@ -11,36 +11,295 @@ public class Constants {
 	/** The Constant BUCKET_DIR. */
 	public static final String BUCKET_DIR = "/home/gautham/data-archiving/new_storage_3";
 	
-	/** The Constant DATA_DIR. */
-	public static final String DATA_DIR = "/home/gautham/data-archiving/new_storage_3";
+	/**
+	 * The directories of the data segments, one per disk. The buckets are spread over them by id (see DataSegments.getDisk),
+	 * and each of them has its own scheduler threads. The index files are kept in BUCKET_DIR, which can be on a device of its own.
+	 */
+	public static final String[] DATA_DIRS = { "/home/gautham/data-archiving/new_storage_3" };
 	
 	/** The Constant BUCKET_FILE_EXTENSION. */
 	public static final String INDEX_FILE_EXTENSION = ".index";
 	
+	/** The index snapshot format of Java-serialized buckets. */
+	public static final int INDEX_FORMAT_SERIALIZED = 0;
+	
+	/** The binary index snapshot format, which is mapped into memory and probed in place (see IndexFile). */
+	public static final int INDEX_FORMAT_BINARY = 1;
+	
+	/** The format in which the index snapshots are written. Both formats are read. */
+	public static final int INDEX_FORMAT = INDEX_FORMAT_SERIALIZED;
+	
 	/** The Constant DATASTORE_FILE_EXTENSION. */
 	public static final String DATASTORE_FILE_EXTENSION = ".data";
 	
+	/** The Constant INDEX_JOURNAL_FILE_EXTENSION. */
+	public static final String INDEX_JOURNAL_FILE_EXTENSION = ".journal";
+	
+	/** The length of the (SHA-1) hash of a data block in bytes. */
+	public static final int HASH_LENGTH = 20;
+	
 	/** The Constant OPERATION_PUT. */
 	public static final int OPERATION_PUT = 0;
 	
 	/** The Constant OPERATION_GET. */
 	public static final int OPERATION_GET = 1;
 	
+	/** The Constant OPERATION_DELETE. */
+	public static final int OPERATION_DELETE = 2;
+	
+	/** The read mode that reads the data with a seek and a read per block. */
+	public static final int READ_MODE_STREAM = 0;
+	
+	/** The read mode that copies the data out of memory mappings of the data files, which are kept across batches. */
+	public static final int READ_MODE_MMAP = 1;
+	
+	/**
+	 * The read mode that reads the blocks of a batch on the read pool, with up to READ_BATCH_QUEUE_DEPTH reads of the batch in flight,
+	 * so that the device works on several reads at once (for SSDs).
+	 */
+	public static final int READ_MODE_PARALLEL = 2;
+	
+	/** The read mode used by the storage server. */
+	public static final int READ_MODE = READ_MODE_STREAM;
+	
+	/**
+	 * The largest gap (in bytes) between two blocks of a GET batch that are still read with a single read in the stream read mode.
+	 * The gap is read and thrown away, which is cheaper than a seek up to about the amount that the disk transfers in the time of a seek. -1 disables the merging.
+	 */
+	public static final int READ_COALESCE_GAP = 32 * 1024;
+	
+	/** The maximum size of a merged read (in bytes). */
+	public static final int READ_COALESCE_MAX_SIZE = 1024 * 1024;
+	
+	/** The number of threads of the read pool, i.e. the maximum number of reads in flight across all the buckets in the parallel read mode. */
+	public static final int READ_QUEUE_DEPTH = 32;
+	
+	/** The maximum number of reads in flight of a single batch in the parallel read mode. */
+	public static final int READ_BATCH_QUEUE_DEPTH = 8;
+	
+	/**
+	 * The stored size from which a block is written and read with direct I/O (O_DIRECT), bypassing the page cache, so that large cold blocks
+	 * do not evict the index files and the small blocks. -1 disables direct I/O.
+	 */
+	public static final int DIRECT_IO_MIN_SIZE = -1;
+	
+	/** The alignment of the positions, lengths and buffers of direct I/O (in bytes). It must be a multiple of the block size of the data disk. */
+	public static final int DIRECT_IO_ALIGNMENT = 4096;
+	
+	/** The size of the aligned buffer of a thread for direct I/O (in bytes). Larger blocks are transferred in several steps. */
+	public static final int DIRECT_IO_BUFFER_SIZE = 4 * 1024 * 1024;
+	
+	/** The size of a memory mapped segment of a data file (in bytes). A single mapping cannot exceed 2 GB. */
+	public static final int MMAP_SEGMENT_SIZE = 1024 * 1024 * 1024;
+	
+	/** The durability mode that acknowledges the writes without syncing them to disk. */
+	public static final int DURABILITY_NONE = 0;
+	
+	/** The durability mode that acknowledges the writes once a (group) sync that covers them has completed. A sync starts as soon as there are writes to sync. */
+	public static final int DURABILITY_BATCH = 1;
+	
+	/** The durability mode that syncs the writes every DURABILITY_SYNC_INTERVAL and acknowledges them after the sync. */
+	public static final int DURABILITY_INTERVAL = 2;
+	
+	/** The durability mode used by the storage server. */
+	public static final int DURABILITY_MODE = DURABILITY_NONE;
+	
+	/** The time period of the syncs in the interval durability mode (in milliseconds). */
+	public static final int DURABILITY_SYNC_INTERVAL = 10;
+	
+	/** The size after which the active data segment of a bucket rolls over to a new segment (in bytes). */
+	public static final long DATA_SEGMENT_SIZE = 256L * 1024 * 1024;
+	
+	/** The segment layout that keeps every data segment in a file of its own. */
+	public static final int SEGMENT_LAYOUT_FILES = 0;
+	
+	/**
+	 * The segment layout that keeps the data segments of many buckets in a few large container files of each data directory (see Containers).
+	 * A segment takes a fixed extent of DATA_SEGMENT_SIZE bytes, so a batch or a copy that does not fit in a segment goes on in the next one.
+	 * Only the data is packed: every bucket still has its own index, journal and filter files in BUCKET_DIR.
+	 */
+	public static final int SEGMENT_LAYOUT_CONTAINERS = 1;
+	
+	/** The segment layout. The layout of existing data cannot be changed. */
+	public static final int SEGMENT_LAYOUT = SEGMENT_LAYOUT_FILES;
+	
+	/** The number of extents (segments) of a container file. */
+	public static final int CONTAINER_EXTENTS = 256;
+	
+	/** The extension of the container files. */
+	public static final String CONTAINER_FILE_EXTENSION = ".container";
+	
+	/** The fraction of a data segment that has to be garbage (deleted blocks) for the segment to be compacted. */
+	public static final double COMPACTION_GARBAGE_RATIO = 0.5;
+	
+	/** The time period of the compaction passes over the buckets that have deleted blocks (in milliseconds). */
+	public static final int COMPACTION_PERIOD = 60 * 1000;
+	
+	/** The maximum rate at which the compactor copies live data (in bytes per second), so that it does not starve the foreground I/O. */
+	public static final long COMPACTION_RATE = 32L * 1024 * 1024;
+	
+	/** The codec that stores a block as it is. */
+	public static final int CODEC_NONE = 0;
+	
+	/** The codec that stores a block compressed with java.util.zip.Deflater. */
+	public static final int CODEC_DEFLATE = 1;
+	
+	/** The codec with which new blocks are stored. The blocks that do not compress are stored with CODEC_NONE either way. */
+	public static final int COMPRESSION_CODEC = CODEC_NONE;
+	
+	/** The Deflater compression level (1 is the fastest, 9 compresses the most). */
+	public static final int COMPRESSION_LEVEL = 1;
+	
+	/** The entropy (in bits per byte) of a sample of a block above which the block is not even tried to be compressed. */
+	public static final double COMPRESSION_MAX_ENTROPY = 7.5;
+	
+	/** The size below which the blocks are not compressed (in bytes). */
+	public static final int COMPRESSION_MIN_SIZE = 512;
+	
+	/** The record format that stores the blocks back to back, which can only be read through the index. */
+	public static final int RECORD_FORMAT_RAW = 0;
+	
+	/** The record format that frames every block with its hash, length and CRC32C, so that the index can be verified or rebuilt from the data. */
+	public static final int RECORD_FORMAT_FRAMED = 1;
+	
+	/** The record format of the new data segments. A segment is never written in both formats; the bucket rolls over to a new segment instead. */
+	public static final int RECORD_FORMAT = RECORD_FORMAT_RAW;
+	
+	/** The recovery mode that does not scan the data at startup. */
+	public static final int RECOVERY_MODE_NONE = 0;
+	
+	/** The recovery mode that checks the indexes against the framed data at startup, and rebuilds the indexes that cannot be read. */
+	public static final int RECOVERY_MODE_VERIFY = 1;
+	
+	/** The recovery mode that rebuilds every index whose data is all framed at startup. */
+	public static final int RECOVERY_MODE_REBUILD = 2;
+	
+	/** The recovery mode used by the storage server. */
+	public static final int RECOVERY_MODE = RECOVERY_MODE_NONE;
+	
+	/** The number of buckets that are recovered in parallel. */
+	public static final int RECOVERY_THREADS = 4;
+	
+	/** The time after which the startup stops waiting for the recovery, and the buckets that are not done yet are left as they are (in milliseconds). */
+	public static final int RECOVERY_TIMEOUT = 10 * 60 * 1000;
+	
+	/** The ingest mode that stores every payload as a single block under its hash. */
+	public static final int INGEST_MODE_WHOLE = 0;
+	
+	/**
+	 * The ingest mode that splits the large payloads into content-defined chunks, each stored under its own hash, and stores a manifest of the chunks
+	 * under the payload's hash. A delete in this mode looks the payload up first, so that the chunks of a manifest are deleted with it.
+	 */
+	public static final int INGEST_MODE_CHUNKED = 1;
+	
+	/** The ingest mode used by the storage client. */
+	public static final int INGEST_MODE = INGEST_MODE_WHOLE;
+	
+	/** The size from which the payloads are chunked in the chunked ingest mode (in bytes). */
+	public static final int CHUNKING_THRESHOLD = 64 * 1024;
+	
+	/** The minimum size of a chunk (in bytes). */
+	public static final int CHUNK_MIN_SIZE = 2 * 1024;
+	
+	/** The average size of a chunk (in bytes). It must be a power of 2. */
+	public static final int CHUNK_AVG_SIZE = 8 * 1024;
+	
+	/** The maximum size of a chunk (in bytes). */
+	public static final int CHUNK_MAX_SIZE = 64 * 1024;
+	
+	/** The maximum number of bucket files that are kept open by the channel pool. */
+	public static final int MAX_OPEN_FILES = 512;
+	
+	/** The maximum number of buffers in a single gathering write (IOV_MAX on Linux). */
+	public static final int MAX_GATHER_BUFFERS = 1024;
+	
 	/** The number of bits used to represent a bucket. */
 	public static final int BUCKET_NUM_BITS = 7;
+	
+	/** The number of index entries past which a bucket is split in two (see BucketDirectory). 0 disables the splitting. */
+	public static final int BUCKET_SPLIT_THRESHOLD = 0;
+	
+	/** The maximum number of bits of a bucket id that a bucket is split to. */
+	public static final int MAX_BUCKET_NUM_BITS = 20;
+	
+	/** The name of the file in BUCKET_DIR that holds the depths of the split buckets. */
+	public static final String BUCKET_DIRECTORY_FILE = "buckets.directory";
 
 	/** The size of the buffer. Once the number of tasks in the scheduler queue exceeds this, the bucket becomes ready to be scheduled. */
 	public static final int BUFFER_SIZE = 500;
 	
 	/** The Constant THREADS_PER_PROCESSOR. */
 	public static final int THREADS_PER_PROCESSOR = 4;
+	
+	/** The number of scheduler threads of each data directory, which bounds the batches in progress on its disk. */
+	public static final int THREADS_PER_DISK = THREADS_PER_PROCESSOR;
 		
 	/** The maximum amount of time that a bucket can be a "zombie" without being scheduled (in milliseconds). */
 	public static final int MAX_TIME_IN_QUEUE = 1000;
 	
 	/** The time period for scheduling tasks that are run by the ExecutorService in the Accumulator (in milliseconds). */
 	public static final int SCHEDULED_TIMER_PERIOD = 100;
+	
+	/** The number of records in a bucket's index journal after which the journal is folded into the index snapshot. */
+	public static final int JOURNAL_CHECKPOINT_THRESHOLD = 100000;
+	
+	/** The time period after which the non-empty index journals are folded into their snapshots (in milliseconds). */
+	public static final int JOURNAL_CHECKPOINT_PERIOD = 5 * 60 * 1000;
+	
+	/** The memory budget of the in-memory cache of the bucket indexes (in bytes). */
+	public static final long INDEX_CACHE_SIZE = 4L * 1024 * 1024 * 1024;
+	
+	/** The memory budget of the in-memory cache of the block contents, which answers the GETs of hot blocks (in bytes). 0 disables the cache. */
+	public static final long BLOCK_CACHE_SIZE = 0;
+	
+	/** The expected size of a cached block (in bytes), which sizes the frequency sketch of the block cache. */
+	public static final int BLOCK_CACHE_BLOCK_SIZE = 4096;
+	
+	/** The block cache is filled with the blocks that are read. */
+	public static final int BLOCK_CACHE_FILL_READ = 0;
+	
+	/** The block cache is filled with the blocks that are read and written. */
+	public static final int BLOCK_CACHE_FILL_READ_WRITE = 1;
+	
+	/** The blocks that the block cache is filled with. */
+	public static final int BLOCK_CACHE_FILL = BLOCK_CACHE_FILL_READ;
+
+	/** The extension of the bucket's Bloom filter file, kept next to the index snapshot. */
+	public static final String BLOOM_FILE_EXTENSION = ".bloom";
+	
+	/** The number of bits of a bucket's Bloom filter per entry. 10 bits and 7 hashes give a false positive rate of about 1%. */
+	public static final int BLOOM_BITS_PER_ENTRY = 10;
+	
+	/** The number of bit positions per hash in a bucket's Bloom filter. */
+	public static final int BLOOM_NUM_HASHES = 7;
+	
+	/** The minimum number of entries that a bucket's Bloom filter is sized for. */
+	public static final int BLOOM_MIN_ENTRIES = 1 << 16;
 
+	/** The preload mode that loads the bucket indexes on their first batch. */
+	public static final int PRELOAD_MODE_NONE = 0;
+	
+	/** The preload mode that loads all the bucket indexes before the storage server registers with the router. */
+	public static final int PRELOAD_MODE_BLOCKING = 1;
+	
+	/** The preload mode that loads the bucket indexes in the background while the storage server already takes requests. */
+	public static final int PRELOAD_MODE_BACKGROUND = 2;
+	
+	/** The preload mode used by the storage server. */
+	public static final int PRELOAD_MODE = PRELOAD_MODE_NONE;
+	
+	/** The number of threads that preload the bucket indexes. */
+	public static final int PRELOAD_THREADS = Runtime.getRuntime().availableProcessors();
+	
 	/** The number of receiver threads in the Router */
 	public static final int RESPONSE_ROUTER_THREADS = 2;
+	
+	/** The router sends every PUT with its data. */
+	public static final int ROUTER_FILTER_NONE = 0;
+	
+	/** The router sends the PUTs of the hashes that the bucket's membership filter holds as references without data. */
+	public static final int ROUTER_FILTER_REFERENCE = 1;
+	
+	/** The way the router uses the membership filters of the buckets. */
+	public static final int ROUTER_FILTER = ROUTER_FILTER_NONE;
 }